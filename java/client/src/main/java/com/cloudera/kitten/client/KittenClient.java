@@ -93,7 +93,7 @@ public class KittenClient extends Configured implements Tool {
 		}
 		System.out.println("Operators: "+operators);
 		System.out.println("InputDatasets: "+inputDatasets);
-	    LuaYarnClientParameters params = new LuaYarnClientParameters(args[0], args[0], operators, inputDatasets, conf,
+	    LuaYarnClientParameters params = new LuaYarnClientParameters(args[0], args[0], d, operators, inputDatasets, conf,
 	        extraLuaValues, extraLocalResources);
 	    service = new YarnClientServiceImpl(params);
     }
@@ -16,14 +16,17 @@ package com.cloudera.kitten.client.params.lua;
 
 import gr.ntua.cslab.asap.rest.beans.WorkflowDictionary;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -32,6 +35,7 @@ import org.apache.hadoop.yarn.api.records.ApplicationId;
 
 import com.cloudera.kitten.ContainerLaunchParameters;
 import com.cloudera.kitten.client.YarnClientParameters;
+import com.cloudera.kitten.lua.ExecutionPlan;
 import com.cloudera.kitten.lua.LuaContainerLaunchParameters;
 import com.cloudera.kitten.lua.LuaFields;
 import com.cloudera.kitten.lua.LuaPair;
@@ -47,6 +51,8 @@ public class LuaYarnClientParameters implements YarnClientParameters {
   private final List<LuaWrapper> env;
   private final Configuration conf;
   private final Extras extras;
+  // The local input datasets of a workflow, which may be uploaded after it is submitted.
+  private final Set<String> datasets = new HashSet<String>();
 
 private String jobName;
   
@@ -79,11 +85,24 @@ private String jobName;
 public LuaYarnClientParameters(String name, String workflow, HashMap<String, String> operators,
 		HashMap<String, String> inputDatasets, Configuration conf, Map<String, Object> extraLuaValues,
 		Map<String, String> resources) {
+	this(name, workflow, null, operators, inputDatasets, conf, extraLuaValues, resources);
+}
+
+/**
+ * @param dictionary The parsed workflow, if the caller has it, so that the execution plan
+ *     also holds the dependencies between its operators
+ */
+public LuaYarnClientParameters(String name, String workflow, WorkflowDictionary dictionary,
+		HashMap<String, String> operators, HashMap<String, String> inputDatasets,
+		Configuration conf, Map<String, Object> extraLuaValues, Map<String, String> resources) {
 	  	this.env = new ArrayList<LuaWrapper>();
 	    this.extras = new Extras();
+	    Map<String, LuaWrapper> tables = new HashMap<String, LuaWrapper>();
 	    //String dir = "/opt/npapa/asapWorkflow/";
 	  	for( Entry<String, String> e : operators.entrySet()){
-	  		this.env.add(new LuaWrapper(e.getValue(), extraLuaValues).getTable("operator"));
+	  		LuaWrapper table = new LuaWrapper(e.getValue(), extraLuaValues).getTable("operator");
+	  		this.env.add(table);
+	  		tables.put(e.getKey(), table);
 	  	    this.extras.putResource(e.getKey()+".lua", e.getValue());
 	  	}
 	  	for( Entry<String, String> e : inputDatasets.entrySet()){
@@ -93,6 +112,7 @@ public LuaYarnClientParameters(String name, String workflow, HashMap<String, Str
 		  		}
 		  		else{
 		  			this.extras.putResource(e.getKey(),  e.getValue());
+		  			this.datasets.add(e.getValue());
 		  		}
 	  		}
 	  	}
@@ -105,7 +125,32 @@ public LuaYarnClientParameters(String name, String workflow, HashMap<String, Str
 	      this.extras.putEnv(LuaFields.KITTEN_EXTRA_LUA_VALUES,
 	          LocalDataHelper.serialize(extraLuaValues));
 	    }
+	    if (this.conf.getBoolean(ExecutionPlan.ENABLED, true)) {
+	      writeExecutionPlan(tables, dictionary);
+	    }
 }
+
+  /**
+   * Ships the operator tables evaluated here to the application master, which would
+   * otherwise evaluate every operator's Lua file again.
+   */
+  private void writeExecutionPlan(Map<String, LuaWrapper> tables, WorkflowDictionary dictionary) {
+    ExecutionPlan plan = new ExecutionPlan();
+    for (Map.Entry<String, LuaWrapper> e : tables.entrySet()) {
+      plan.addOperator(e.getKey(), e.getValue());
+    }
+    if (dictionary != null) {
+      plan.addEdges(dictionary);
+    }
+    try {
+      File tmpFile = File.createTempFile("kitten_plan", ".bin");
+      tmpFile.deleteOnExit();
+      plan.write(tmpFile);
+      this.extras.putResource(LuaFields.KITTEN_EXECUTION_PLAN_FILE, tmpFile.getAbsolutePath());
+    } catch (IOException e) {
+      LOG.warn("Could not write the execution plan, the master will evaluate the workflow", e);
+    }
+  }
   
   private static Configuration initConf(LuaWrapper lv, Configuration conf) {
     if (!lv.isNil(LuaFields.CONF)) {
@@ -168,7 +213,11 @@ public LuaYarnClientParameters(String name, String workflow, HashMap<String, Str
     // Map the files that were specified by the framework itself.
     for (String localFileName : extras.getResources().values()) {
       try {
-        lfh.copyToHdfs(localFileName);
+        if (datasets.contains(localFileName)) {
+          lfh.copyDatasetToHdfs(localFileName);
+        } else {
+          lfh.copyToHdfs(localFileName);
+        }
       } catch (IOException e) {
         LOG.error("Error copying local file " + localFileName + " to hdfs", e);
       }
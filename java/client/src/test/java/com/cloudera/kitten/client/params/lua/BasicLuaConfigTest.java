@@ -17,7 +17,12 @@ package com.cloudera.kitten.client.params.lua;
 import static com.google.common.io.Resources.getResource;
 import static com.google.common.io.Resources.newInputStreamSupplier;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.util.Map;
 
@@ -29,7 +34,11 @@ import org.junit.Test;
 
 import com.cloudera.kitten.ContainerLaunchParameters;
 import com.cloudera.kitten.client.YarnClientParameters;
+import com.cloudera.kitten.lua.ExecutionPlan;
+import com.cloudera.kitten.lua.LuaFields;
+import com.cloudera.kitten.lua.LuaWrapper;
 import com.cloudera.kitten.util.LocalDataHelper;
+import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.io.Files;
 
@@ -68,5 +77,49 @@ public class BasicLuaConfigTest {
       assertEquals(e.getValue(), actEnv.get(e.getKey()));
     }
   }
+
+  @Test
+  public void testPerInstanceEnvironment() throws Exception {
+    File tmpFile = File.createTempFile("kitten", ".lua");
+    Files.copy(newInputStreamSupplier(getResource("lua/test1.lua")), tmpFile);
+    tmpFile.deleteOnExit();
+    YarnClientParameters params = new LuaYarnClientParameters(tmpFile.getAbsolutePath(), "distshell",
+        conf);
+    ContainerLaunchParameters clp = params.getApplicationMasterParameters(null);
+    assertFalse(clp.getEnvironment().containsKey("part"));
+    assertEquals("2/4", clp.getInstanceEnvironment(2, 4).get("part"));
+    assertEquals("0/1", clp.getInstanceEnvironment(0, 1).get("part"));
+  }
+
+  @Test
+  public void testExecutionPlan() throws Exception {
+    File tmpFile = File.createTempFile("kitten", ".lua");
+    Files.write("op = yarn { name = \"op\", user = \"u\", master = { memory = 64 },\n"
+        + "  container = { memory = 128, env = { a = 1 }, command = \"ls\" } }\n",
+        tmpFile, Charsets.UTF_8);
+    tmpFile.deleteOnExit();
+    ExecutionPlan plan = new ExecutionPlan();
+    assertTrue(plan.addOperator("op", new LuaWrapper(tmpFile.getAbsolutePath()).getTable("op")));
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    plan.write(baos);
+
+    plan = ExecutionPlan.read(new ByteArrayInputStream(baos.toByteArray()));
+    LuaWrapper container = plan.getOperator("op").getTable(LuaFields.CONTAINER);
+    assertEquals(128, container.getInteger(LuaFields.MEMORY));
+    assertEquals("1", container.getTable(LuaFields.ENV).asMap().get("a"));
+    // Inherited from the enclosing yarn table.
+    assertEquals("op", container.getString(LuaFields.APP_NAME));
+    assertNull(plan.getOperator("other"));
+  }
+
+  @Test
+  public void testExecutionPlanSkipsFunctions() throws Exception {
+    File tmpFile = File.createTempFile("kitten", ".lua");
+    Files.copy(newInputStreamSupplier(getResource("lua/test1.lua")), tmpFile);
+    tmpFile.deleteOnExit();
+    ExecutionPlan plan = new ExecutionPlan();
+    assertFalse(plan.addOperator("distshell",
+        new LuaWrapper(tmpFile.getAbsolutePath()).getTable("distshell")));
+  }
   
 }
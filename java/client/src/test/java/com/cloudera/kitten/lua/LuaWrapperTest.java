@@ -0,0 +1,76 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.lua;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+public class LuaWrapperTest {
+
+  private static String script(String code) throws Exception {
+    File f = File.createTempFile("kitten", ".lua");
+    f.deleteOnExit();
+    Files.write(code, f, Charsets.UTF_8);
+    return f.getAbsolutePath();
+  }
+
+  @Test
+  public void testGlobalsDoNotLeakBetweenScripts() throws Exception {
+    String loaded = script("from_file = 1");
+    LuaWrapper a = new LuaWrapper(script(
+        "leaked = 1\n" +
+        "_G.via_g = 1\n" +
+        "string.leaked = 1\n" +
+        "loadstring('from_string = 1')()\n" +
+        "dofile('" + loaded + "')\n" +
+        "op = { leaked = leaked, via_g = via_g, string = string.leaked,\n" +
+        "  from_string = from_string, from_file = from_file }"));
+    LuaWrapper op = a.getTable("op");
+    assertEquals(1, op.getInteger("leaked"));
+    assertEquals(1, op.getInteger("via_g"));
+    assertEquals(1, op.getInteger("string"));
+    assertEquals(1, op.getInteger("from_string"));
+    assertEquals(1, op.getInteger("from_file"));
+
+    LuaWrapper b = new LuaWrapper(script(
+        "op = { leaked = leaked, via_g = via_g, string = string.leaked,\n" +
+        "  from_string = from_string, from_file = from_file,\n" +
+        "  upper = string.upper('x') }"));
+    op = b.getTable("op");
+    assertTrue(op.isNil("leaked"));
+    assertTrue(op.isNil("via_g"));
+    assertTrue(op.isNil("string"));
+    assertTrue(op.isNil("from_string"));
+    assertTrue(op.isNil("from_file"));
+    assertEquals("X", op.getString("upper"));
+  }
+
+  @Test
+  public void testCompiledChunksAreReused() throws Exception {
+    String name = script("counter = (counter or 0) + 1\nop = { counter = counter }");
+    new LuaWrapper(name);
+    int hits = LuaWrapper.getCompileHits();
+    LuaWrapper second = new LuaWrapper(name);
+    assertEquals(hits + 1, LuaWrapper.getCompileHits());
+    assertEquals(1, second.getTable("op").getInteger("counter"));
+  }
+}
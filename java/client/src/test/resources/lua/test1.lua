@@ -12,6 +12,7 @@ base_master = {
   env = cat(dshell_env) {
     foo = "bar",
     biz = "baz",
+    part = per_instance(function(i, n) return i .. "/" .. n end),
   },
   resources = {
     -- Same
@@ -21,6 +21,7 @@ import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -66,6 +67,44 @@ public class ContainerLaunchContextFactory {
   }
   
   
+  /**
+   * Creates the launch context for one instance of a container from a template that was
+   * built with {@link #create}. The commands and local resources are copied from the
+   * template as they are, so nothing is regenerated or re-uploaded; only the given
+   * instance-specific environment variables are added.
+   */
+  public ContainerLaunchContext createInstance(ContainerLaunchContext template,
+      Map<String, String> instanceEnv) {
+    return createInstance(template, instanceEnv, new HashMap<String, LocalResource>());
+  }
+
+  /**
+   * Like {@link #createInstance(ContainerLaunchContext, Map)}, but also adds the given
+   * instance-specific local resources.
+   */
+  public ContainerLaunchContext createInstance(ContainerLaunchContext template,
+      Map<String, String> instanceEnv, Map<String, LocalResource> instanceResources) {
+    ContainerLaunchContext clc = Records.newRecord(ContainerLaunchContext.class);
+    clc.setCommands(new ArrayList<String>(template.getCommands()));
+    Map<String, String> env = new HashMap<String, String>(template.getEnvironment());
+    env.putAll(instanceEnv);
+    clc.setEnvironment(env);
+    Map<String, LocalResource> resources =
+        new HashMap<String, LocalResource>(template.getLocalResources());
+    resources.putAll(instanceResources);
+    clc.setLocalResources(resources);
+    if (template.getServiceData() != null) {
+      clc.setServiceData(template.getServiceData());
+    }
+    if (template.getTokens() != null) {
+      clc.setTokens(template.getTokens().duplicate());
+    }
+    if (template.getApplicationACLs() != null) {
+      clc.setApplicationACLs(template.getApplicationACLs());
+    }
+    return clc;
+  }
+  
   public Resource createResource(ContainerLaunchParameters parameters) {
     return parameters.getContainerResource(clusterMax);
   }
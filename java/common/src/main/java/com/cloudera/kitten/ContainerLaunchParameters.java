@@ -41,7 +41,70 @@ public interface ContainerLaunchParameters {
    */
   int getNumInstances();
 
+  /**
+   * The estimated running time of one instance of this container, in seconds, or 0 if
+   * it is not known.
+   */
+  double getEstimatedRuntime();
+
+  /**
+   * Whether instance i of this container only reads the output of instance i of each
+   * of the containers it depends on. The inputs must name that output with
+   * $KITTEN_CONTAINER_INSTANCE, e.g. {@code $HDFS_DIR/op/part-$KITTEN_CONTAINER_INSTANCE},
+   * for instance i to start before the other instances of those containers finish.
+   */
+  boolean isPartitionWise();
+
+  /**
+   * How many times an instance that was lost to preemption or a node problem may be
+   * retried, or -1 to use the application master's default.
+   */
+  int getMaxRetries();
+
+  /**
+   * The delay before the first retry of a lost instance in milliseconds, which doubles
+   * with each further retry, or -1 to use the application master's default.
+   */
+  long getRetryBackoff();
+
+  /**
+   * Whether the instances of this container pull the files of their input one at a time
+   * from a queue kept by the application master, rather than each reading all of it.
+   */
+  boolean isWorkQueue();
+
+  /**
+   * The number of instances a work queue container may grow to while its queue is
+   * backed up, or that a container split by input size is capped at; -1 if unset.
+   */
+  int getMaxInstances();
+
+  /**
+   * The fewest instances a container split by input size runs, or -1 if unset.
+   */
+  int getMinInstances();
+
+  /**
+   * The number of input bytes each instance should read, or -1 to run the fixed
+   * {@link #getNumInstances()} instances. When set, the application master derives the
+   * instance count from the size of the input and gives each instance its own files.
+   */
+  long getSplitSize();
+
   List<String> getStageOutFiles();
+
+  /**
+   * The HDFS paths (or globs) that the container reads its input from, which are used
+   * to place it close to its data.
+   */
+  List<String> getInputPaths();
+
+  /**
+   * The HDFS directory that the container stages its output out to, or null if it does
+   * not stage out to a directory of its own.
+   */
+  String getOutputDir();
+
   /**
    * The local resources for the application in the container.
  * @throws IOException 
@@ -53,6 +116,19 @@ public interface ContainerLaunchParameters {
    */
   Map<String, String> getEnvironment();
 
+  /**
+   * The environment variables that are computed separately for the given (zero-based)
+   * instance of the container, which are added to those of {@link #getEnvironment()}.
+   */
+  Map<String, String> getInstanceEnvironment(int instance, int numInstances);
+
+  /**
+   * The local resources that are computed separately for the given (zero-based)
+   * instance of the container, which are added to those of {@link #getLocalResources()}.
+   */
+  Map<String, LocalResource> getInstanceLocalResources(int instance, int numInstances)
+      throws IOException;
+
   /**
    * The commands to execute that start the application within the container.
  * @throws IOException 
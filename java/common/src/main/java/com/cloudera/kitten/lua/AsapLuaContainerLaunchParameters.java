@@ -29,10 +29,12 @@ import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import java.util.UUID;
 
 import org.apache.commons.logging.Log;
@@ -52,12 +54,19 @@ import org.luaj.vm2.LuaValue;
 
 import com.cloudera.kitten.ContainerLaunchParameters;
 import com.cloudera.kitten.util.Extras;
+import com.cloudera.kitten.util.LocalDataHelper;
+import com.cloudera.kitten.util.OutputCommitter;
+import com.cloudera.kitten.util.StagingAgent;
+import com.google.common.base.Joiner;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 public class AsapLuaContainerLaunchParameters implements ContainerLaunchParameters {
 
   private static final Log LOG = LogFactory.getLog(AsapLuaContainerLaunchParameters.class);
+
+  // The staging agent jar uploaded to each application directory.
+  private static final Map<String, FileStatus> stagingAgentJars = Maps.newHashMap();
   
   private final LuaWrapper lv;
   public final Configuration conf;
@@ -113,6 +122,25 @@ public class AsapLuaContainerLaunchParameters implements ContainerLaunchParamete
 	    ret.addAll(outputFiles);
 	    return ret;
   }
+
+  @Override
+  public String getOutputDir() {
+    String appDir = getAppDir();
+    return appDir == null ? null : appDir + "/" + name;
+  }
+
+  /**
+   * The HDFS directory that the job files were staged in, which the operators write
+   * their output under.
+   */
+  private String getAppDir() {
+    URI jobXml = localFileUris.get(LuaFields.KITTEN_JOB_XML_FILE);
+    if (jobXml == null) {
+      return null;
+    }
+    String appDir = jobXml.getPath();
+    return appDir.substring(0, appDir.lastIndexOf("/"));
+  }
   
 
  /* private List<String> getStageInFiles() {
@@ -153,14 +181,84 @@ public class AsapLuaContainerLaunchParameters implements ContainerLaunchParamete
   public int getNumInstances() {
     return lv.isNil(LuaFields.INSTANCES) ? 1 : lv.getInteger(LuaFields.INSTANCES);
   }
+
+  @Override
+  public double getEstimatedRuntime() {
+    return lv.isNil(LuaFields.RUNTIME) ? 0.0 : lv.getDouble(LuaFields.RUNTIME);
+  }
+
+  @Override
+  public boolean isPartitionWise() {
+    return !lv.isNil(LuaFields.PARTITION_WISE) && lv.getBoolean(LuaFields.PARTITION_WISE);
+  }
+
+  @Override
+  public int getMaxRetries() {
+    return lv.isNil(LuaFields.MAX_RETRIES) ? -1 : lv.getInteger(LuaFields.MAX_RETRIES);
+  }
+
+  @Override
+  public long getRetryBackoff() {
+    return lv.isNil(LuaFields.RETRY_BACKOFF) ? -1L : lv.getLong(LuaFields.RETRY_BACKOFF);
+  }
+
+  @Override
+  public boolean isWorkQueue() {
+    return !lv.isNil(LuaFields.WORK_QUEUE) && lv.getBoolean(LuaFields.WORK_QUEUE);
+  }
+
+  @Override
+  public int getMaxInstances() {
+    return lv.isNil(LuaFields.MAX_INSTANCES) ? -1 : lv.getInteger(LuaFields.MAX_INSTANCES);
+  }
+
+  @Override
+  public int getMinInstances() {
+    return lv.isNil(LuaFields.MIN_INSTANCES) ? -1 : lv.getInteger(LuaFields.MIN_INSTANCES);
+  }
+
+  @Override
+  public long getSplitSize() {
+    return lv.isNil(LuaFields.SPLIT_SIZE) ? -1L : lv.getLong(LuaFields.SPLIT_SIZE);
+  }
+
+  @Override
+  public List<String> getInputPaths() {
+    List<String> ret = new ArrayList<String>();
+    String inDir = getAppDir();
+    for (String in : operator.getInputFiles().values()) {
+      if (in.startsWith("hdfs://")) {
+        ret.add(in);
+      } else if (inDir != null) {
+        if (in.startsWith("$HDFS")) {
+          ret.add(in.replace("$HDFS_DIR", inDir).replace("$HDFS_OP_DIR", inDir + "/" + name));
+        } else {
+          ret.add(inDir + "/" + in);
+        }
+      }
+    }
+    return ret;
+  }
   
   @Override
   public Map<String, LocalResource> getLocalResources() throws IOException {
+    return getLocalResources(true);
+  }
+
+  /**
+   * Returns the local resources of this operator, leaving out its execution script if
+   * it runs as part of a fused container with a script of its own.
+   */
+  Map<String, LocalResource> getLocalResources(boolean withScript) throws IOException {
 	  //System.out.println("localFileUris: "+localFileUris);
     Map<String, LocalResource> localResources = Maps.newHashMap();  
     if (!lv.isNil(LuaFields.RESOURCES)) {
       LuaWrapper lr = lv.getTable(LuaFields.RESOURCES);
       for (LuaPair lp : lr) {
+        if (LuaWrapper.isPerInstance(lp.value)) {
+          // computed for each instance by getInstanceLocalResources
+          continue;
+        }
         try {
           NamedLocalResource nlr = constructResource(lp);
           localResources.put(nlr.name, nlr.resource);
@@ -184,7 +282,12 @@ public class AsapLuaContainerLaunchParameters implements ContainerLaunchParamete
     
 
     
-    addScript(localResources);
+    if (withScript) {
+      addScript(localResources);
+    }
+    if (useStagingAgent()) {
+      localResources.put(StagingAgent.JAR_NAME, constructStagingAgentResource());
+    }
     addOperatorInputs(localResources);
     //LOG.info("localFileUris: "+localFileUris);
     LOG.info("localResources: "+localResources.keySet());
@@ -194,6 +297,22 @@ public class AsapLuaContainerLaunchParameters implements ContainerLaunchParamete
     return localResources;
   }
 
+  @Override
+  public Map<String, LocalResource> getInstanceLocalResources(int instance, int numInstances)
+      throws IOException {
+    Map<String, LocalResource> localResources = Maps.newHashMap();
+    if (!lv.isNil(LuaFields.RESOURCES)) {
+      for (LuaPair lp : lv.getTable(LuaFields.RESOURCES)) {
+        if (LuaWrapper.isPerInstance(lp.value)) {
+          NamedLocalResource nlr = constructResource(
+              new LuaPair(lp.key, LuaWrapper.evaluate(lp.value, instance, numInstances)));
+          localResources.put(nlr.name, nlr.resource);
+        }
+      }
+    }
+    return localResources;
+  }
+
 
   private void addOperatorInputs(Map<String, LocalResource> localResources) throws IOException {
 	  LOG.info("Inputs: "+operator.getInputFiles());
@@ -201,13 +320,15 @@ public class AsapLuaContainerLaunchParameters implements ContainerLaunchParamete
 	  for(Entry<String, String> e : operator.getInputFiles().entrySet()){
 		  	if((!e.getValue().startsWith("hdfs://"))&&(!e.getValue().startsWith("$HDFS"))){
 		  		LOG.info("adding local resource: "+e);
-			  	String inDir =dir;
 				LocalResource rsrc = Records.newRecord(LocalResource.class);
 				rsrc.setType(LocalResourceType.FILE);
 				rsrc.setVisibility(LocalResourceVisibility.APPLICATION);
-				LOG.info("Adding input: "+inDir+"/"+e.getValue());
-				Path dst = new Path(inDir+"/"+e.getValue());
+				Path dst = resolveLocalInput(e.getValue());
+				LOG.info("Adding input: "+dst);
 				dst = fs.makeQualified(dst);
+				if (!LocalDataHelper.awaitUpload(fs, dst, conf)) {
+				  throw new IOException("Input " + dst + " was not uploaded in time");
+				}
 				FileStatus stat = fs.getFileStatus(dst);
 				rsrc.setSize(stat.getLen());
 				rsrc.setTimestamp(stat.getModificationTime());
@@ -222,16 +343,33 @@ public class AsapLuaContainerLaunchParameters implements ContainerLaunchParamete
 	  }*/
   }
 
+  /**
+   * Returns where the client uploaded a local input dataset: where the file mapping puts
+   * the local file of that name, e.g. in the shared staging area, or the application's
+   * directory otherwise.
+   */
+  private Path resolveLocalInput(String name) {
+    URI uri = localFileUris.get(name);
+    if (uri != null) {
+      return new Path(uri);
+    }
+    return new Path(dir + "/" + name);
+  }
+
 private void addScript(Map<String, LocalResource> lres) throws IOException {
-	  LocalResource nl = constructScriptResource();
+	  LocalResource nl = constructScriptResource(execScript);
 	  lres.put(execScript, nl);
   }
 
-  private LocalResource constructScriptResource() throws IOException {
+  /**
+   * Uploads a script written by {@link #writeExecutionScript(List)} next to this
+   * operator's output, and returns it as a local resource.
+   */
+  LocalResource constructScriptResource(String script) throws IOException {
 	    LocalResource rsrc = Records.newRecord(LocalResource.class);
 	    rsrc.setType(LocalResourceType.FILE);
 	    rsrc.setVisibility(LocalResourceVisibility.APPLICATION);
-	    String src = "file:///tmp/"+execScript;
+	    String src = "file:///tmp/"+script;
 	    Path path = new Path(src);
 	    
 	    configureLocalScriptResourceForPath(rsrc, path);
@@ -335,8 +473,38 @@ private void addScript(Map<String, LocalResource> lres) throws IOException {
     return env;
   }
 
+  @Override
+  public Map<String, String> getInstanceEnvironment(int instance, int numInstances) {
+    return InstanceParameters.getEnvironment(lv, instance, numInstances);
+  }
+
   @Override
   public List<String> getCommands() throws IOException {
+    List<String> cmds = getScriptCommands(Collections.<String>emptySet(), false);
+    //System.out.println("Container commands: "+cmds);
+    execScript = writeExecutionScript(cmds);
+    globalContainerId++;
+
+	LOG.info("Commands: "+cmds);
+	
+    cmds = new ArrayList<String>();
+    cmds.add("./"+execScript+" 1> <LOG_DIR>/stdout 2> <LOG_DIR>/stderr");
+    
+    return cmds;
+  }
+
+  /**
+   * Returns the lines of the script that runs this operator, which copies its inputs in,
+   * runs its commands and stages its outputs out.
+   *
+   * <p>For operators fused into one container, inputs under one of the given HDFS output
+   * directories of earlier operators are read from the local copy that those operators
+   * kept, and {@code keepOutputLocal} keeps a copy of this operator's staged out files
+   * under a local directory named after it, where {@code hadoop fs -copyToLocal} of its
+   * output directory would have put them.
+   */
+  List<String> getScriptCommands(Set<String> localInputDirs, boolean keepOutputLocal)
+      throws IOException {
     List<String> cmds = Lists.newArrayList();
     if (!lv.isNil(LuaFields.COMMANDS)) {
       Iterator<LuaPair> pairsIter = lv.getTable(LuaFields.COMMANDS).arrayIterator();
@@ -370,17 +538,67 @@ private void addScript(Map<String, LocalResource> lres) throws IOException {
     cmds = new ArrayList<String>();
     String outdir = dir+"/"+this.name;//+"_"+globalContainerId;
 
-	LOG.info("Inputs: "+operator.getInputFiles());
-	for(Entry<String, String> e : operator.getInputFiles().entrySet()){
-  		String inPath = e.getValue().replace("$HDFS_DIR", dir);
-  		inPath = inPath.replace("$HDFS_OP_DIR", outdir);
-  		LOG.info("adding hdfs input: "+e);
-	    cmds.add("/opt/hadoop-2.6.0/bin/hadoop fs -copyToLocal "+inPath+" .");
-		
-	}
-    cmds.add("/opt/hadoop-2.6.0/bin/hadoop fs -mkdir "+outdir);
+    // Work queue operators are not speculated; they stage out each file's output on
+    // its own, so that the files a failed container already finished are kept.
+    boolean speculation = conf.getBoolean(OutputCommitter.SPECULATION, false)
+        && !isWorkQueue();
+    List<String> stageOutFiles = getStageOutFiles();
+    String stageOutDir = outdir;
+    if (speculation) {
+      // The application master commits the output of the first attempt to finish.
+      stageOutDir = OutputCommitter.attemptDir(outdir);
+    }
+    boolean agent = useStagingAgent();
+
+    List<String> stageIn = Lists.newArrayList();
+    LOG.info("Inputs: "+operator.getInputFiles());
+    if (!isWorkQueue() && getSplitSize() > 0) {
+      // The application master picks the files of each instance.
+      if (agent) {
+        stageIn.add("$(echo \"$" + LuaFields.KITTEN_INPUT_SPLITS + "\" | tr ',' ' ')");
+      } else {
+        cmds.add("for f in $(echo \"$" + LuaFields.KITTEN_INPUT_SPLITS + "\" | tr ',' ' '); do "
+            + "/opt/hadoop-2.6.0/bin/hadoop fs -copyToLocal \"$f\" .; done");
+      }
+    } else if (!isWorkQueue()) {
+      for(Entry<String, String> e : operator.getInputFiles().entrySet()){
+        String inPath = e.getValue().replace("$HDFS_DIR", dir);
+        inPath = inPath.replace("$HDFS_OP_DIR", outdir);
+        String local = localInputCommand(inPath, localInputDirs);
+        if (local != null) {
+          cmds.add(local);
+          continue;
+        }
+        LOG.info("adding hdfs input: "+e);
+        if (agent) {
+          stageIn.add(inPath);
+        } else {
+          cmds.add("/opt/hadoop-2.6.0/bin/hadoop fs -copyToLocal "+inPath+" .");
+        }
+      }
+    }
+    if (agent) {
+      List<String> get = Lists.newArrayList("-mkdir", outdir);
+      if (speculation) {
+        get.add("-mkdir");
+        get.add(stageOutDir);
+      }
+      get.add(".");
+      get.addAll(stageIn);
+      cmds.add(stagingAgentCommand("get", get));
+    } else {
+      cmds.add("/opt/hadoop-2.6.0/bin/hadoop fs -mkdir "+outdir);
+      if (speculation) {
+        cmds.add("/opt/hadoop-2.6.0/bin/hadoop fs -mkdir -p "+stageOutDir);
+      }
+    }
     args = args.replace("$HDFS_DIR", dir);
     args = args.replace("$HDFS_OP_DIR", outdir);
+
+    if (isWorkQueue()) {
+      cmds.addAll(workQueueLoop(oldcmds, args, stageOutFiles, stageOutDir));
+      return cmds;
+    }
     for(String c : oldcmds){
     	cmds.add(c+" "+args);
     }
@@ -391,25 +609,116 @@ private void addScript(Map<String, LocalResource> lres) throws IOException {
     cmds.add("ls -ltr");
     //cmds.add("ls -ltr asapData/");
     
-    List<String> stageOutFiles = getStageOutFiles();
+    if (keepOutputLocal) {
+      cmds.add("mkdir -p "+this.name);
+    }
     for(String f : stageOutFiles){
-	    cmds.add("/opt/hadoop-2.6.0/bin/hadoop fs -moveFromLocal "+f+" "+outdir);
+      if (keepOutputLocal) {
+        cmds.add("cp -r "+f+" "+this.name+"/");
+      }
+      if (!agent) {
+        cmds.add("/opt/hadoop-2.6.0/bin/hadoop fs -moveFromLocal "+f+" "+stageOutDir);
+      }
+    }
+    if (agent && !stageOutFiles.isEmpty()) {
+      List<String> put = Lists.newArrayList(stageOutDir);
+      put.addAll(stageOutFiles);
+      cmds.add(stagingAgentCommand("put", put));
     }
-    //System.out.println("Container commands: "+cmds);
-    execScript = writeExecutionScript(cmds);
-    globalContainerId++;
-
-	LOG.info("Commands: "+cmds);
-	
-    cmds = new ArrayList<String>();
-    cmds.add("./"+execScript+" 1> <LOG_DIR>/stdout 2> <LOG_DIR>/stderr");
-    
     return cmds;
   }
+
+  /**
+   * Whether this operator stages its data with the {@link StagingAgent} instead of one
+   * {@code hadoop fs} call per file. The agent is only available when the application
+   * master runs from a jar, which is then shipped to the operator's container.
+   */
+  private boolean useStagingAgent() {
+    return conf.getBoolean(StagingAgent.ENABLED, false) && StagingAgent.findJar() != null;
+  }
+
+  private String stagingAgentCommand(String command, List<String> args) {
+    return "${JAVA_HOME}/bin/java -cp \"$(/opt/hadoop-2.6.0/bin/hadoop classpath):"
+        + StagingAgent.JAR_NAME + "\" " + StagingAgent.class.getName()
+        + " -D " + StagingAgent.THREADS + "="
+        + conf.getInt(StagingAgent.THREADS, StagingAgent.DEFAULT_THREADS)
+        + " " + command + " " + Joiner.on(' ').join(args);
+  }
+
+  /**
+   * Uploads the jar of the {@link StagingAgent} to the application's directory, once
+   * for all the operators of the application, and returns it as a local resource.
+   */
+  private LocalResource constructStagingAgentResource() throws IOException {
+    FileStatus stat;
+    synchronized (stagingAgentJars) {
+      stat = stagingAgentJars.get(dir);
+      if (stat == null) {
+        FileSystem fs = FileSystem.get(conf);
+        Path dst = fs.makeQualified(new Path(dir + "/" + StagingAgent.JAR_NAME));
+        fs.copyFromLocalFile(false, true,
+            new Path(StagingAgent.findJar().getAbsolutePath()), dst);
+        stat = fs.getFileStatus(dst);
+        stagingAgentJars.put(dir, stat);
+      }
+    }
+    LocalResource rsrc = Records.newRecord(LocalResource.class);
+    rsrc.setType(LocalResourceType.FILE);
+    rsrc.setVisibility(LocalResourceVisibility.APPLICATION);
+    rsrc.setSize(stat.getLen());
+    rsrc.setTimestamp(stat.getModificationTime());
+    rsrc.setResource(ConverterUtils.getYarnUrlFromPath(stat.getPath()));
+    return rsrc;
+  }
+
+  /**
+   * Returns the command that puts an input written by an operator fused before this one
+   * where {@code hadoop fs -copyToLocal} would have, or null if it is not on local disk.
+   */
+  private static String localInputCommand(String inPath, Set<String> localInputDirs) {
+    for (String d : localInputDirs) {
+      String local = d.substring(d.lastIndexOf('/') + 1);
+      if (inPath.equals(d)) {
+        return "echo \"Reading " + inPath + " from local disk\"";
+      }
+      if (inPath.startsWith(d + "/")) {
+        return "cp -r " + local + inPath.substring(d.length()) + " .";
+      }
+    }
+    return null;
+  }
   
 
 
-private String writeExecutionScript(List<String> cmds) throws IOException {
+  /**
+   * Wraps the operator's commands in a loop that pulls one input file at a time from the
+   * application master's work queue until the queue is empty. The output of each file is
+   * staged out under a name suffixed with the file's index in the queue.
+   */
+  private List<String> workQueueLoop(List<String> commands, String args,
+      List<String> stageOutFiles, String stageOutDir) {
+    List<String> loop = Lists.newArrayList();
+    loop.add("while IFS=$'\\t' read -r KITTEN_SPLIT_INDEX KITTEN_SPLIT < <(curl -s -f "
+        + "-H \"" + LuaFields.KITTEN_CONTROL_HEADER + ": $" + LuaFields.KITTEN_CONTROL_TOKEN
+        + "\" \"$" + LuaFields.KITTEN_WORK_QUEUE + "?agent=$CONTAINER_ID\"); do");
+    loop.add("  export KITTEN_SPLIT KITTEN_SPLIT_INDEX");
+    loop.add("  /opt/hadoop-2.6.0/bin/hadoop fs -copyToLocal \"$KITTEN_SPLIT\" . || exit 1");
+    for (String c : commands) {
+      loop.add("  " + c + " " + args + " || exit 1");
+    }
+    for (String f : stageOutFiles) {
+      // A file is processed again if its container died before asking for the next one.
+      String dst = stageOutDir + "/" + f + "-$KITTEN_SPLIT_INDEX";
+      loop.add("  /opt/hadoop-2.6.0/bin/hadoop fs -rm -r -f " + dst + " > /dev/null");
+      loop.add("  /opt/hadoop-2.6.0/bin/hadoop fs -moveFromLocal " + f + " " + dst
+          + " || exit 1");
+    }
+    loop.add("  rm -rf \"$(basename \"$KITTEN_SPLIT\")\"");
+    loop.add("done");
+    return loop;
+  }
+
+static String writeExecutionScript(List<String> cmds) throws IOException {
 	  UUID id = UUID.randomUUID();
 	  String ret = "script_"+id+".sh";
 	  File fout = new File("/tmp/"+ret);
@@ -438,12 +747,12 @@ private String writeExecutionScript(List<String> cmds) throws IOException {
         sb.append(" ");
         sb.append(lp.key.tojstring());
         sb.append("=");
-        sb.append(lp.value.tojstring());
+        sb.append(InstanceParameters.argValue(lp));
       }
       Iterator<LuaPair> restIter = a.arrayIterator();
       while (restIter.hasNext()) {
         sb.append(" ");
-        sb.append(restIter.next().value.tojstring());
+        sb.append(InstanceParameters.argValue(restIter.next()));
       }
     }
     return sb.toString();
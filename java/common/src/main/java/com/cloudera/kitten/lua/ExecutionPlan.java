@@ -0,0 +1,365 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.lua;
+
+import gr.ntua.cslab.asap.rest.beans.OperatorDictionary;
+import gr.ntua.cslab.asap.rest.beans.WorkflowDictionary;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.luaj.vm2.LuaTable;
+import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Varargs;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * The parts of a workflow that the client has already worked out, so that the application
+ * master does not have to again: the evaluated 'operator' table of every operator's Lua
+ * file, and the operators that each operator reads from.
+ *
+ * <p>Plans are written in a small binary format that starts with a version number. A plan
+ * of another version is ignored, and so is any operator whose table holds a function, e.g.,
+ * a {@code per_instance} value; the application master evaluates those from Lua as before.
+ */
+public class ExecutionPlan {
+
+  private static final Log LOG = LogFactory.getLog(ExecutionPlan.class);
+
+  public static final int MAGIC = 0x4b504c4e; // "KPLN"
+  public static final int VERSION = 1;
+
+  // Whether the client ships an execution plan to the application master.
+  public static final String ENABLED = "kitten.plan.enabled";
+
+  private static final byte NIL = 0;
+  private static final byte BOOLEAN = 1;
+  private static final byte INT = 2;
+  private static final byte DOUBLE = 3;
+  private static final byte STRING = 4;
+  private static final byte TABLE = 5;
+  private static final byte TABLE_REF = 6;
+
+  private static final LuaValue INDEX = LuaValue.valueOf("__index");
+
+  private final Map<String, LuaTable> operators = Maps.newHashMap();
+  private final Map<String, Set<String>> upstream = Maps.newHashMap();
+
+  /**
+   * Adds the table of an operator, unless it holds values that cannot be written out.
+   */
+  public boolean addOperator(String name, LuaWrapper table) {
+    if (!isPlain(table.getLuaTable())) {
+      LOG.info("Leaving operator " + name + " out of the execution plan");
+      return false;
+    }
+    operators.put(name, table.getLuaTable());
+    return true;
+  }
+
+  /**
+   * Records, for every operator of the workflow, the operators that produce its inputs,
+   * looking through datasets and leaving out operators that have already run.
+   */
+  public void addEdges(WorkflowDictionary workflow) {
+    for (OperatorDictionary op : workflow.getOperators()) {
+      if ("true".equals(op.getIsOperator())) {
+        Set<String> in = Sets.newHashSet();
+        for (String i : op.getInput()) {
+          addUpstream(workflow, i, in);
+        }
+        upstream.put(op.getName(), in);
+      }
+    }
+  }
+
+  private static void addUpstream(WorkflowDictionary workflow, String in, Set<String> upstream) {
+    OperatorDictionary inOp = workflow.getOperator(in);
+    if (inOp.getStatus().equals("stopped")) {
+      return;
+    }
+    if (inOp.getIsOperator().equals("true")) {
+      upstream.add(in);
+    } else {
+      for (String in1 : inOp.getInput()) {
+        addUpstream(workflow, in1, upstream);
+      }
+    }
+  }
+
+  /**
+   * Returns the evaluated table of an operator, or null if it is not in the plan.
+   */
+  public LuaWrapper getOperator(String name) {
+    LuaTable table = operators.get(name);
+    return table == null ? null : new LuaWrapper(table);
+  }
+
+  /**
+   * Returns the operators that the given one reads from, or null if it is not in the plan.
+   */
+  public Set<String> getUpstream(String name) {
+    return upstream.get(name);
+  }
+
+  public void write(OutputStream os) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os));
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+    out.writeInt(operators.size());
+    Map<LuaValue, Integer> written = new IdentityHashMap<LuaValue, Integer>();
+    for (Map.Entry<String, LuaTable> e : operators.entrySet()) {
+      writeString(out, e.getKey());
+      writeValue(out, e.getValue(), written);
+    }
+    out.writeInt(upstream.size());
+    for (Map.Entry<String, Set<String>> e : upstream.entrySet()) {
+      writeString(out, e.getKey());
+      out.writeInt(e.getValue().size());
+      for (String in : e.getValue()) {
+        writeString(out, in);
+      }
+    }
+    out.flush();
+  }
+
+  public static ExecutionPlan read(InputStream is) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not an execution plan");
+    }
+    int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported execution plan version " + version);
+    }
+    ExecutionPlan plan = new ExecutionPlan();
+    int n = in.readInt();
+    List<LuaTable> read = Lists.newArrayList();
+    for (int i = 0; i < n; i++) {
+      String name = readString(in);
+      LuaValue table = readValue(in, read);
+      if (!table.istable()) {
+        throw new IOException("Operator " + name + " is not a table in execution plan");
+      }
+      plan.operators.put(name, (LuaTable) table);
+    }
+    n = in.readInt();
+    for (int i = 0; i < n; i++) {
+      String name = readString(in);
+      Set<String> ins = Sets.newHashSet();
+      int m = in.readInt();
+      for (int j = 0; j < m; j++) {
+        ins.add(readString(in));
+      }
+      plan.upstream.put(name, ins);
+    }
+    return plan;
+  }
+
+  public void write(File file) throws IOException {
+    OutputStream os = new FileOutputStream(file);
+    try {
+      write(os);
+    } finally {
+      os.close();
+    }
+  }
+
+  /**
+   * Reads the plan in the given file, or returns null if there is none that this version
+   * of Kitten can use.
+   */
+  public static ExecutionPlan load(File file) {
+    if (!file.exists()) {
+      return null;
+    }
+    try {
+      InputStream is = new FileInputStream(file);
+      try {
+        return read(is);
+      } finally {
+        is.close();
+      }
+    } catch (IOException e) {
+      LOG.warn("Ignoring execution plan " + file, e);
+      return null;
+    }
+  }
+
+  private static boolean isPlain(LuaValue value) {
+    return isPlain(value, Sets.<LuaValue>newIdentityHashSet());
+  }
+
+  private static boolean isPlain(LuaValue value, Set<LuaValue> seen) {
+    switch (value.type()) {
+    case LuaValue.TNIL:
+    case LuaValue.TBOOLEAN:
+    case LuaValue.TNUMBER:
+    case LuaValue.TSTRING:
+      return true;
+    case LuaValue.TTABLE:
+      if (!seen.add(value)) {
+        return true;
+      }
+      LuaValue meta = value.getmetatable();
+      if (meta != null) {
+        // Only the 'inherit from another table' metatables that yarn{} sets are kept.
+        if (!meta.get(INDEX).istable() || !meta.next(INDEX).arg1().isnil()
+            || !meta.next(LuaValue.NIL).arg1().equals(INDEX)
+            || !isPlain(meta.get(INDEX), seen)) {
+          return false;
+        }
+      }
+      LuaValue k = LuaValue.NIL;
+      while (true) {
+        Varargs n = value.next(k);
+        if ((k = n.arg1()).isnil()) {
+          return true;
+        }
+        if (!isPlain(k, seen) || !isPlain(n.arg(2), seen)) {
+          return false;
+        }
+      }
+    default:
+      return false;
+    }
+  }
+
+  /**
+   * Writes a value; tables that were already written are referred to by the order in
+   * which they were first written, so shared and cyclic tables keep their shape.
+   */
+  private static void writeValue(DataOutputStream out, LuaValue value,
+      Map<LuaValue, Integer> written) throws IOException {
+    switch (value.type()) {
+    case LuaValue.TBOOLEAN:
+      out.writeByte(BOOLEAN);
+      out.writeBoolean(value.toboolean());
+      break;
+    case LuaValue.TNUMBER:
+      if (value.isinttype()) {
+        out.writeByte(INT);
+        out.writeInt(value.toint());
+      } else {
+        out.writeByte(DOUBLE);
+        out.writeDouble(value.todouble());
+      }
+      break;
+    case LuaValue.TSTRING:
+      out.writeByte(STRING);
+      writeString(out, value.tojstring());
+      break;
+    case LuaValue.TTABLE:
+      Integer id = written.get(value);
+      if (id != null) {
+        out.writeByte(TABLE_REF);
+        out.writeInt(id);
+        break;
+      }
+      written.put(value, written.size());
+      out.writeByte(TABLE);
+      int count = 0;
+      LuaValue k = LuaValue.NIL;
+      while (!(k = value.next(k).arg1()).isnil()) {
+        count++;
+      }
+      out.writeInt(count);
+      k = LuaValue.NIL;
+      while (true) {
+        Varargs n = value.next(k);
+        if ((k = n.arg1()).isnil()) {
+          break;
+        }
+        writeValue(out, k, written);
+        writeValue(out, n.arg(2), written);
+      }
+      LuaValue meta = value.getmetatable();
+      writeValue(out, meta == null ? LuaValue.NIL : meta.get(INDEX), written);
+      break;
+    default:
+      out.writeByte(NIL);
+    }
+  }
+
+  private static LuaValue readValue(DataInputStream in, List<LuaTable> read)
+      throws IOException {
+    byte type = in.readByte();
+    switch (type) {
+    case NIL:
+      return LuaValue.NIL;
+    case BOOLEAN:
+      return LuaValue.valueOf(in.readBoolean());
+    case INT:
+      return LuaValue.valueOf(in.readInt());
+    case DOUBLE:
+      return LuaValue.valueOf(in.readDouble());
+    case STRING:
+      return LuaValue.valueOf(readString(in));
+    case TABLE:
+      LuaTable table = new LuaTable();
+      read.add(table);
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        LuaValue k = readValue(in, read);
+        table.set(k, readValue(in, read));
+      }
+      LuaValue parent = readValue(in, read);
+      if (!parent.isnil()) {
+        LuaTable meta = new LuaTable();
+        meta.set(INDEX, parent);
+        table.setmetatable(meta);
+      }
+      return table;
+    case TABLE_REF:
+      int id = in.readInt();
+      if (id < 0 || id >= read.size()) {
+        throw new IOException("Bad table reference " + id + " in execution plan");
+      }
+      return read.get(id);
+    default:
+      throw new IOException("Unknown value type " + type + " in execution plan");
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes(Charsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, Charsets.UTF_8);
+  }
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.lua;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.yarn.api.records.LocalResource;
+import org.apache.hadoop.yarn.api.records.Resource;
+import org.apache.hadoop.yarn.util.Records;
+
+import com.cloudera.kitten.ContainerLaunchParameters;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * The parameters of a container that runs a linear chain of single-instance operators
+ * one after the other, as if they were a single operator.
+ *
+ * <p>The operators share the container's working directory. Each one still stages its
+ * output out to HDFS, but also keeps a local copy of it, which the next operator reads
+ * instead of copying it back in from HDFS. The output of each operator is logged to
+ * {@code <name>.stdout} and {@code <name>.stderr} in the container's log directory.
+ * When an operator other than the last finishes, its index in the chain is reported to
+ * the application master at {@code $KITTEN_STAGE_URL}, if it is set.
+ */
+public class FusedContainerLaunchParameters implements ContainerLaunchParameters {
+
+  private static final Log LOG = LogFactory.getLog(FusedContainerLaunchParameters.class);
+
+  private final List<AsapLuaContainerLaunchParameters> operators;
+  private String execScript;
+
+  public FusedContainerLaunchParameters(List<AsapLuaContainerLaunchParameters> operators) {
+    if (operators.size() < 2) {
+      throw new IllegalArgumentException("A fused container needs at least two operators");
+    }
+    this.operators = Lists.newArrayList(operators);
+  }
+
+  /**
+   * The names of the fused operators, in the order they run.
+   */
+  public List<String> getOperatorNames() {
+    List<String> names = Lists.newArrayList();
+    for (AsapLuaContainerLaunchParameters op : operators) {
+      names.add(op.getName());
+    }
+    return names;
+  }
+
+  private AsapLuaContainerLaunchParameters first() {
+    return operators.get(0);
+  }
+
+  private AsapLuaContainerLaunchParameters last() {
+    return operators.get(operators.size() - 1);
+  }
+
+  @Override
+  public Resource getContainerResource(Resource clusterMax) {
+    Resource rsrc = Records.newRecord(Resource.class);
+    for (AsapLuaContainerLaunchParameters op : operators) {
+      Resource r = op.getContainerResource(clusterMax);
+      rsrc.setMemory(Math.max(rsrc.getMemory(), r.getMemory()));
+      rsrc.setVirtualCores(Math.max(rsrc.getVirtualCores(), r.getVirtualCores()));
+    }
+    return rsrc;
+  }
+
+  @Override
+  public int getPriority() {
+    return first().getPriority();
+  }
+
+  @Override
+  public int getNumInstances() {
+    return 1;
+  }
+
+  @Override
+  public double getEstimatedRuntime() {
+    double runtime = 0.0;
+    for (AsapLuaContainerLaunchParameters op : operators) {
+      runtime += op.getEstimatedRuntime();
+    }
+    return runtime;
+  }
+
+  @Override
+  public boolean isPartitionWise() {
+    return false;
+  }
+
+  @Override
+  public int getMaxRetries() {
+    int retries = -1;
+    for (AsapLuaContainerLaunchParameters op : operators) {
+      retries = Math.max(retries, op.getMaxRetries());
+    }
+    return retries;
+  }
+
+  @Override
+  public long getRetryBackoff() {
+    return first().getRetryBackoff();
+  }
+
+  @Override
+  public boolean isWorkQueue() {
+    return false;
+  }
+
+  @Override
+  public int getMaxInstances() {
+    return -1;
+  }
+
+  @Override
+  public int getMinInstances() {
+    return -1;
+  }
+
+  @Override
+  public long getSplitSize() {
+    return -1L;
+  }
+
+  @Override
+  public List<String> getStageOutFiles() {
+    return last().getStageOutFiles();
+  }
+
+  /**
+   * The HDFS inputs of the chain, i.e., those that no fused operator writes.
+   */
+  @Override
+  public List<String> getInputPaths() {
+    Set<String> local = Sets.newHashSet();
+    List<String> paths = Lists.newArrayList();
+    for (AsapLuaContainerLaunchParameters op : operators) {
+      for (String in : op.getInputPaths()) {
+        if (!isUnder(in, local)) {
+          paths.add(in);
+        }
+      }
+      if (op.getOutputDir() != null) {
+        local.add(op.getOutputDir());
+      }
+    }
+    return paths;
+  }
+
+  @Override
+  public String getOutputDir() {
+    return last().getOutputDir();
+  }
+
+  @Override
+  public Map<String, LocalResource> getLocalResources() throws IOException {
+    Map<String, LocalResource> localResources = Maps.newHashMap();
+    for (AsapLuaContainerLaunchParameters op : operators) {
+      localResources.putAll(op.getLocalResources(false));
+    }
+    localResources.put(execScript, first().constructScriptResource(execScript));
+    return localResources;
+  }
+
+  @Override
+  public Map<String, LocalResource> getInstanceLocalResources(int instance, int numInstances)
+      throws IOException {
+    Map<String, LocalResource> localResources = Maps.newHashMap();
+    for (AsapLuaContainerLaunchParameters op : operators) {
+      localResources.putAll(op.getInstanceLocalResources(instance, numInstances));
+    }
+    return localResources;
+  }
+
+  @Override
+  public Map<String, String> getEnvironment() {
+    Map<String, String> env = Maps.newHashMap();
+    for (AsapLuaContainerLaunchParameters op : operators) {
+      env.putAll(op.getEnvironment());
+    }
+    return env;
+  }
+
+  @Override
+  public Map<String, String> getInstanceEnvironment(int instance, int numInstances) {
+    Map<String, String> env = Maps.newHashMap();
+    for (AsapLuaContainerLaunchParameters op : operators) {
+      env.putAll(op.getInstanceEnvironment(instance, numInstances));
+    }
+    return env;
+  }
+
+  @Override
+  public List<String> getCommands() throws IOException {
+    List<String> cmds = Lists.newArrayList();
+    Set<String> local = Sets.newHashSet();
+    for (int i = 0; i < operators.size(); i++) {
+      AsapLuaContainerLaunchParameters op = operators.get(i);
+      // The log directory is passed in as the script's only argument.
+      cmds.add("exec 1> \"$1/" + op.getName() + ".stdout\" 2> \"$1/" + op.getName() + ".stderr\"");
+      cmds.addAll(op.getScriptCommands(local, i < operators.size() - 1));
+      local.add(op.getOutputDir());
+      if (i < operators.size() - 1) {
+        cmds.add("[ -z \"$" + LuaFields.KITTEN_STAGE_URL + "\" ] || curl -s -f "
+            + "-H \"" + LuaFields.KITTEN_CONTROL_HEADER + ": $" + LuaFields.KITTEN_CONTROL_TOKEN
+            + "\" \"$" + LuaFields.KITTEN_STAGE_URL + "?agent=$CONTAINER_ID&stage=" + i
+            + "\" > /dev/null || true");
+      }
+    }
+    execScript = AsapLuaContainerLaunchParameters.writeExecutionScript(cmds);
+    LOG.info("Fused operators " + getOperatorNames() + ": " + cmds);
+
+    cmds = Lists.newArrayList();
+    cmds.add("./" + execScript + " <LOG_DIR> 1> <LOG_DIR>/stdout 2> <LOG_DIR>/stderr");
+    return cmds;
+  }
+
+  private static boolean isUnder(String path, Set<String> dirs) {
+    for (String d : dirs) {
+      if (path.equals(d) || path.startsWith(d + "/")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public String getName() {
+    return Joiner.on('+').join(getOperatorNames());
+  }
+
+  @Override
+  public String getLabels() {
+    return first().getLabels();
+  }
+
+  @Override
+  public String[] getNodes() {
+    return first().getNodes();
+  }
+}
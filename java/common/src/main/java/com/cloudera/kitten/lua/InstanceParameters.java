@@ -0,0 +1,95 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.lua;
+
+import java.util.Iterator;
+import java.util.Map;
+
+import org.luaj.vm2.LuaValue;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Evaluates the {@code per_instance(f)} values of a container's configuration.
+ *
+ * <p>The commands of a container are written out once for all of its instances, so a
+ * per-instance command argument is written as a reference to an environment variable,
+ * which is then set for each instance along with its per-instance env values.
+ */
+final class InstanceParameters {
+
+  private InstanceParameters() {
+  }
+
+  /**
+   * The environment variable that carries the command argument with the given key.
+   */
+  static String argVariable(LuaValue key) {
+    return LuaFields.KITTEN_ARG_PREFIX
+        + key.tojstring().toUpperCase().replaceAll("[^A-Z0-9_]", "_");
+  }
+
+  /**
+   * The text of a command argument, which refers to its environment variable if it is
+   * computed per instance.
+   */
+  static String argValue(LuaPair lp) {
+    if (LuaWrapper.isPerInstance(lp.value)) {
+      return "${" + argVariable(lp.key) + "}";
+    }
+    return lp.value.tojstring();
+  }
+
+  /**
+   * Computes the per-instance env values and command arguments of a container for the
+   * given instance.
+   */
+  static Map<String, String> getEnvironment(LuaWrapper lv, int instance, int numInstances) {
+    Map<String, String> env = Maps.newHashMap();
+    if (!lv.isNil(LuaFields.ENV)) {
+      for (LuaPair lp : lv.getTable(LuaFields.ENV)) {
+        if (LuaWrapper.isPerInstance(lp.value)) {
+          env.put(lp.key.tojstring(),
+              LuaWrapper.evaluate(lp.value, instance, numInstances).tojstring());
+        }
+      }
+    }
+    if (!lv.isNil(LuaFields.COMMANDS)) {
+      Iterator<LuaPair> iter = lv.getTable(LuaFields.COMMANDS).arrayIterator();
+      while (iter.hasNext()) {
+        LuaValue c = iter.next().value;
+        if (c.istable()) {
+          addArgs(new LuaWrapper(c.checktable()), instance, numInstances, env);
+        }
+      }
+    } else if (!lv.isNil(LuaFields.COMMAND) && lv.isTable(LuaFields.COMMAND)) {
+      addArgs(lv.getTable(LuaFields.COMMAND), instance, numInstances, env);
+    }
+    return env;
+  }
+
+  private static void addArgs(LuaWrapper command, int instance, int numInstances,
+      Map<String, String> env) {
+    if (command.isNil(LuaFields.ARGS)) {
+      return;
+    }
+    for (LuaPair lp : command.getTable(LuaFields.ARGS)) {
+      if (LuaWrapper.isPerInstance(lp.value)) {
+        env.put(argVariable(lp.key),
+            LuaWrapper.evaluate(lp.value, instance, numInstances).tojstring());
+      }
+    }
+  }
+}
@@ -122,6 +122,56 @@ private int globalContainerId;
   public int getNumInstances() {
     return lv.isNil(LuaFields.INSTANCES) ? 1 : lv.getInteger(LuaFields.INSTANCES);
   }
+
+  @Override
+  public double getEstimatedRuntime() {
+    return lv.isNil(LuaFields.RUNTIME) ? 0.0 : lv.getDouble(LuaFields.RUNTIME);
+  }
+
+  @Override
+  public boolean isPartitionWise() {
+    return !lv.isNil(LuaFields.PARTITION_WISE) && lv.getBoolean(LuaFields.PARTITION_WISE);
+  }
+
+  @Override
+  public int getMaxRetries() {
+    return lv.isNil(LuaFields.MAX_RETRIES) ? -1 : lv.getInteger(LuaFields.MAX_RETRIES);
+  }
+
+  @Override
+  public long getRetryBackoff() {
+    return lv.isNil(LuaFields.RETRY_BACKOFF) ? -1L : lv.getLong(LuaFields.RETRY_BACKOFF);
+  }
+
+  @Override
+  public boolean isWorkQueue() {
+    return !lv.isNil(LuaFields.WORK_QUEUE) && lv.getBoolean(LuaFields.WORK_QUEUE);
+  }
+
+  @Override
+  public int getMaxInstances() {
+    return lv.isNil(LuaFields.MAX_INSTANCES) ? -1 : lv.getInteger(LuaFields.MAX_INSTANCES);
+  }
+
+  @Override
+  public int getMinInstances() {
+    return lv.isNil(LuaFields.MIN_INSTANCES) ? -1 : lv.getInteger(LuaFields.MIN_INSTANCES);
+  }
+
+  @Override
+  public long getSplitSize() {
+    return lv.isNil(LuaFields.SPLIT_SIZE) ? -1L : lv.getLong(LuaFields.SPLIT_SIZE);
+  }
+
+  @Override
+  public List<String> getInputPaths() {
+    return new ArrayList<String>();
+  }
+
+  @Override
+  public String getOutputDir() {
+    return null;
+  }
   
   @Override
   public Map<String, LocalResource> getLocalResources() throws IOException {
@@ -130,6 +180,10 @@ private int globalContainerId;
     if (!lv.isNil(LuaFields.RESOURCES)) {
       LuaWrapper lr = lv.getTable(LuaFields.RESOURCES);
       for (LuaPair lp : lr) {
+        if (LuaWrapper.isPerInstance(lp.value)) {
+          // computed for each instance by getInstanceLocalResources
+          continue;
+        }
         try {
           NamedLocalResource nlr = constructResource(lp);
           localResources.put(nlr.name, nlr.resource);
@@ -160,6 +214,22 @@ private int globalContainerId;
     return localResources;
   }
 
+  @Override
+  public Map<String, LocalResource> getInstanceLocalResources(int instance, int numInstances)
+      throws IOException {
+    Map<String, LocalResource> localResources = Maps.newHashMap();
+    if (!lv.isNil(LuaFields.RESOURCES)) {
+      for (LuaPair lp : lv.getTable(LuaFields.RESOURCES)) {
+        if (LuaWrapper.isPerInstance(lp.value)) {
+          NamedLocalResource nlr = constructResource(
+              new LuaPair(lp.key, LuaWrapper.evaluate(lp.value, instance, numInstances)));
+          localResources.put(nlr.name, nlr.resource);
+        }
+      }
+    }
+    return localResources;
+  }
+
 
   private void addScript(Map<String, LocalResource> lres) throws IOException {
 	  LocalResource nl = constructScriptResource();
@@ -274,6 +344,11 @@ private int globalContainerId;
     return env;
   }
 
+  @Override
+  public Map<String, String> getInstanceEnvironment(int instance, int numInstances) {
+    return InstanceParameters.getEnvironment(lv, instance, numInstances);
+  }
+
   @Override
   public List<String> getCommands() throws IOException {
     List<String> cmds = Lists.newArrayList();
@@ -351,12 +426,12 @@ private int globalContainerId;
         sb.append(" ");
         sb.append(lp.key.tojstring());
         sb.append("=");
-        sb.append(lp.value.tojstring());
+        sb.append(InstanceParameters.argValue(lp));
       }
       Iterator<LuaPair> restIter = a.arrayIterator();
       while (restIter.hasNext()) {
         sb.append(" ");
-        sb.append(restIter.next().value.tojstring());
+        sb.append(InstanceParameters.argValue(restIter.next()));
       }
     }
     return sb.toString();
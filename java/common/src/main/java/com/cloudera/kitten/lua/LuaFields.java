@@ -37,10 +37,23 @@ public class LuaFields {
   public static final String CORES = "cores";
   public static final String MEMORY = "memory";
   public static final String PRIORITY = "priority";
+  public static final String RUNTIME = "runtime";
+  public static final String PARTITION_WISE = "partitionwise";
+  public static final String MAX_RETRIES = "max_retries";
+  public static final String RETRY_BACKOFF = "retry_backoff";
+  public static final String WORK_QUEUE = "workqueue";
+  public static final String MAX_INSTANCES = "max_instances";
+  public static final String MIN_INSTANCES = "min_instances";
+  public static final String SPLIT_SIZE = "split_size";
 
   // For constructing commands from a LuaTable.
   public static final String COMMAND_BASE = "base";
   public static final String ARGS = "args";
+
+  // The field of the table that per_instance(f) wraps a function of (instance, instances) in.
+  public static final String PER_INSTANCE = "per_instance";
+  // The prefix of the environment variables that carry per-instance command arguments.
+  public static final String KITTEN_ARG_PREFIX = "KITTEN_ARG_";
   
   // Fields related to constructing LocalResource objects.
   public static final String RESOURCES = "resources";
@@ -60,6 +73,22 @@ public class LuaFields {
   public static final String KITTEN_EXTRA_LUA_VALUES = "KITTEN_EXTRA_LUA_VALUES";
 
   public static final String KITTEN_WORKFLOW_CONFIG_FILE = "workflow";
+  // The execution plan that the client compiled from the workflow, if any.
+  public static final String KITTEN_EXECUTION_PLAN_FILE = "kitten_plan.bin";
+  
+  // Environment variables that tell each container which instance it is.
+  public static final String KITTEN_CONTAINER_INSTANCE = "KITTEN_CONTAINER_INSTANCE";
+  public static final String KITTEN_CONTAINER_INSTANCES = "KITTEN_CONTAINER_INSTANCES";
+  // The application master endpoint that work queue containers pull their splits from.
+  public static final String KITTEN_WORK_QUEUE = "KITTEN_WORK_QUEUE";
+  // The application master endpoint that fused containers report each finished operator to.
+  public static final String KITTEN_STAGE_URL = "KITTEN_STAGE_URL";
+  // The secret that a container sends to those endpoints to prove which container it is.
+  public static final String KITTEN_CONTROL_TOKEN = "KITTEN_CONTROL_TOKEN";
+  // The request header that a container sends its secret in.
+  public static final String KITTEN_CONTROL_HEADER = "X-Kitten-Token";
+  // The comma-separated input files of an instance whose operator is split by input size.
+  public static final String KITTEN_INPUT_SPLITS = "KITTEN_INPUT_SPLITS";
   
   // The file that contains the XMLed Configuration object for each container.
   public static final String KITTEN_JOB_XML_FILE = "job.xml";
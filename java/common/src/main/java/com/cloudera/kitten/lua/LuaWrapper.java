@@ -14,28 +14,40 @@
  */
 package com.cloudera.kitten.lua;
 
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.luaj.vm2.LoadState;
+import org.luaj.vm2.LuaClosure;
+import org.luaj.vm2.LuaError;
+import org.luaj.vm2.LuaString;
 import org.luaj.vm2.LuaTable;
 import org.luaj.vm2.LuaValue;
+import org.luaj.vm2.Prototype;
 import org.luaj.vm2.Varargs;
+import org.luaj.vm2.compiler.LuaC;
+import org.luaj.vm2.lib.VarArgFunction;
 import org.luaj.vm2.lib.jse.CoerceJavaToLua;
 import org.luaj.vm2.lib.jse.JsePlatform;
 
 import com.cloudera.kitten.util.LocalDataHelper;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
 
 /**
  * A wrapper object to make it nicer to work with LuaTables.
@@ -44,30 +56,159 @@ public class LuaWrapper implements Iterable<LuaPair> {
 
   private static final Log LOG = LogFactory.getLog(LuaWrapper.class);
   
+  // Compiled chunks by name and digest of their contents; guarded by LuaWrapper.class.
+  private static final Map<String, Prototype> compiled = Maps.newHashMap();
+  // How many chunks were found already compiled; guarded by LuaWrapper.class.
+  private static int compileHits;
+  // The globals that every script sees unless it sets its own; guarded by LuaWrapper.class.
+  private static LuaTable baseGlobals;
+
   private final LuaTable env;
   
   public LuaWrapper(String script) {
     this(script, ImmutableMap.<String, Object>of());
   }
   
+  /**
+   * Runs a script in a global table of its own, copied from a single shared table with the
+   * standard library and the functions of kitten.lua.
+   */
   public LuaWrapper(String script, Map<String, Object> extras) {
     try {
-      this.env = JsePlatform.standardGlobals();
-      LoadState.load(getClass().getResourceAsStream("/lua/kitten.lua"), "kitten.lua", env).call();
-      for (Map.Entry<String, Object> e : extras.entrySet()) {
-        env.set(e.getKey(), CoerceJavaToLua.coerce(e.getValue()));
+      synchronized (LuaWrapper.class) {
+        this.env = newGlobals();
+        for (Map.Entry<String, Object> e : extras.entrySet()) {
+          env.set(e.getKey(), CoerceJavaToLua.coerce(e.getValue()));
+        }
+        InputStream luaCode = LocalDataHelper.getFileOrResource(script);
+        if (luaCode == null) {
+          throw new FileNotFoundException(script);
+        }
+        new LuaClosure(compile(luaCode, script), env).call();
       }
-      InputStream luaCode = LocalDataHelper.getFileOrResource(script);
-      LoadState.load(luaCode, script, env).call();
     } catch (IOException e) {
       LOG.error("Lua initialization error", e);
       throw new RuntimeException(e);
     }
   }
+
+  private static LuaTable getBaseGlobals() throws IOException {
+    if (baseGlobals == null) {
+      LuaTable globals = JsePlatform.standardGlobals();
+      new LuaClosure(compile(LuaWrapper.class.getResourceAsStream("/lua/kitten.lua"),
+          "kitten.lua"), globals).call();
+      baseGlobals = globals;
+    }
+    return baseGlobals;
+  }
+
+  /**
+   * Returns a copy of the shared globals for one script. The library tables are copied too,
+   * and _G, dofile, loadfile and loadstring refer to the copy, so whatever a script sets is
+   * not seen by the next one. The copies are shallow, which keeps them cheap.
+   */
+  private static LuaTable newGlobals() throws IOException {
+    LuaTable base = getBaseGlobals();
+    final LuaTable globals = new LuaTable();
+    for (LuaValue key : base.keys()) {
+      LuaValue value = base.rawget(key);
+      if (value.istable() && value != base) {
+        LuaTable lib = new LuaTable();
+        for (LuaValue k : value.checktable().keys()) {
+          lib.rawset(k, value.rawget(k));
+        }
+        value = lib;
+      }
+      globals.rawset(key, value);
+    }
+    globals.rawset("_G", globals);
+    globals.rawset("loadstring", new VarArgFunction() {
+      @Override
+      public Varargs invoke(Varargs args) {
+        LuaString code = args.checkstring(1);
+        return loadChunk(code.toInputStream(), args.optjstring(2, code.tojstring()), globals);
+      }
+    });
+    globals.rawset("loadfile", new VarArgFunction() {
+      @Override
+      public Varargs invoke(Varargs args) {
+        return loadFile(args.checkjstring(1), globals);
+      }
+    });
+    globals.rawset("dofile", new VarArgFunction() {
+      @Override
+      public Varargs invoke(Varargs args) {
+        Varargs chunk = loadFile(args.checkjstring(1), globals);
+        if (chunk.isnil(1)) {
+          throw new LuaError(chunk.tojstring(2));
+        }
+        return chunk.arg1().invoke();
+      }
+    });
+    return globals;
+  }
+
+  private static Varargs loadFile(String name, LuaTable globals) {
+    InputStream code = LocalDataHelper.getFileOrResource(name);
+    if (code == null) {
+      return LuaValue.varargsOf(LuaValue.NIL, LuaValue.valueOf("cannot open " + name));
+    }
+    return loadChunk(code, name, globals);
+  }
+
+  /**
+   * Compiles a chunk against the given globals, returning nil and the message on errors
+   * as the standard library does.
+   */
+  private static Varargs loadChunk(InputStream code, String name, LuaTable globals) {
+    try {
+      return new LuaClosure(compile(code, name), globals);
+    } catch (LuaError e) {
+      return LuaValue.varargsOf(LuaValue.NIL, LuaValue.valueOf(e.getMessage()));
+    } catch (IOException e) {
+      return LuaValue.varargsOf(LuaValue.NIL, LuaValue.valueOf(e.getMessage()));
+    }
+  }
+
+  /**
+   * Compiles a chunk, or returns the copy compiled earlier from the same name and contents.
+   */
+  private static synchronized Prototype compile(InputStream code, String name)
+      throws IOException {
+    byte[] bytes;
+    try {
+      bytes = ByteStreams.toByteArray(code);
+    } finally {
+      code.close();
+    }
+    String key;
+    try {
+      key = name + "@" + Hex.encodeHexString(MessageDigest.getInstance("SHA-1").digest(bytes));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+    Prototype p = compiled.get(key);
+    if (p == null) {
+      p = LuaC.compile(new ByteArrayInputStream(bytes), name);
+      compiled.put(key, p);
+    } else {
+      compileHits++;
+    }
+    return p;
+  }
+
+  @VisibleForTesting
+  static synchronized int getCompileHits() {
+    return compileHits;
+  }
   
   public LuaWrapper(LuaTable table) {
     this.env = Preconditions.checkNotNull(table);
   }
+
+  LuaTable getLuaTable() {
+    return env;
+  }
   
   public boolean isNil(String name) {
     return env.get(name).isnil();
@@ -81,13 +222,38 @@ public class LuaWrapper implements Iterable<LuaPair> {
     return new LuaWrapper(env.get(name).checktable());
   }
   
+  /**
+   * Returns the entries of this table as strings, leaving out the values that are
+   * computed separately for each instance.
+   */
   public Map<String, String> asMap() {
     Map<String, String> map = Maps.newHashMap();
     for (LuaValue lv : env.keys()) {
-      map.put(lv.tojstring(), env.get(lv).tojstring());
+      if (!isPerInstance(env.get(lv))) {
+        map.put(lv.tojstring(), env.get(lv).tojstring());
+      }
     }
     return map;
   }
+
+  /**
+   * Returns true if the given value was declared with {@code per_instance(f)}.
+   */
+  public static boolean isPerInstance(LuaValue value) {
+    return value.istable() && value.get(LuaFields.PER_INSTANCE).isfunction();
+  }
+
+  /**
+   * Calls the function of a {@code per_instance(f)} value with the (zero-based) index
+   * of an instance and the number of instances. LuaJ is not thread-safe, so calls into
+   * the configuration are serialized.
+   */
+  public static LuaValue evaluate(LuaValue value, int instance, int numInstances) {
+    synchronized (LuaWrapper.class) {
+      return value.get(LuaFields.PER_INSTANCE).call(
+          LuaValue.valueOf(instance), LuaValue.valueOf(numInstances));
+    }
+  }
   
   public List<String> asList() {
     List<String> list = Lists.newArrayList();
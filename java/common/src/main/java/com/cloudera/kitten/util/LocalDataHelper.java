@@ -16,6 +16,7 @@ package com.cloudera.kitten.util;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -26,26 +27,49 @@ import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.yarn.api.records.ApplicationId;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Resources;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Handles copying files from the client machine out to HDFS for app master and container tasks, and
  * then mapping them properly to the LocalResource objects used by YARN.
+ *
+ * <p>Files are copied concurrently and, if {@link #SHARED_STAGING} is turned on, only
+ * once per distinct content into a staging area that later applications reuse. Every
+ * application that uses an entry of that area holds a lease on it, a file in the entry
+ * that its master renews with {@link #renewLeases} while it runs. Entries without a
+ * live lease that no application has used for {@link #SHARED_STAGING_MAX_AGE} are
+ * removed.
  */
 public class LocalDataHelper {
 
@@ -53,6 +77,42 @@ public class LocalDataHelper {
   
   // Provide a way for tests/clients to override the app base directory.
   public static final String APP_BASE_DIR = "kitten.app.base.dir";
+
+  // Whether files are uploaded once, by content, to a staging area shared by applications.
+  public static final String SHARED_STAGING = "kitten.staging.shared.enabled";
+
+  // The shared staging area; a directory under the app base directory by default.
+  public static final String SHARED_STAGING_DIR = "kitten.staging.shared.dir";
+
+  // How long an entry of the shared staging area is kept after an application last used
+  // it, in milliseconds; 0 keeps entries forever.
+  public static final String SHARED_STAGING_MAX_AGE = "kitten.staging.shared.max.age";
+  public static final long DEFAULT_SHARED_STAGING_MAX_AGE = 7 * 24 * 60 * 60 * 1000L;
+
+  // How long a lease on an entry of the shared staging area lasts unless it is renewed,
+  // in milliseconds.
+  public static final String SHARED_STAGING_LEASE = "kitten.staging.shared.lease";
+  public static final long DEFAULT_SHARED_STAGING_LEASE = 60 * 60 * 1000L;
+
+  private static final String LEASE_PREFIX = ".lease-";
+  private static final String EXPIRED_PREFIX = ".expired-";
+
+  // The number of files that are uploaded at once.
+  public static final String UPLOAD_THREADS = "kitten.staging.upload.threads";
+
+  // Local files larger than this are uploaded to HDFS in chunks of about this size.
+  public static final String CHUNK_SIZE = "kitten.staging.chunk.size";
+  public static final long DEFAULT_CHUNK_SIZE = 256L * 1024 * 1024;
+
+  // The number of chunks of a single file that are uploaded at once.
+  public static final String UPLOAD_STREAMS = "kitten.staging.upload.streams";
+
+  // Whether the application is submitted before its local input datasets are uploaded.
+  public static final String DEFERRED_UPLOAD = "kitten.staging.deferred.enabled";
+
+  // How long operators wait for a deferred dataset to show up, in milliseconds.
+  public static final String DEFERRED_UPLOAD_TIMEOUT = "kitten.staging.deferred.timeout";
+  public static final long DEFAULT_DEFERRED_UPLOAD_TIMEOUT = 30 * 60 * 1000L;
   
   public static InputStream getFileOrResource(String name) {
     File f = new File(name);
@@ -98,12 +158,16 @@ public class LocalDataHelper {
   private final Configuration conf;
   private final Map<String, URI> localToHdfs;
   private final Set<String> names;
+  private final Map<String, Future<URI>> uploads;
+  private ExecutorService executor;
+  private boolean cleanedShared;
   
   public LocalDataHelper(ApplicationId applicationId, Configuration conf) {
     this.applicationId = applicationId;
     this.conf = conf;
     this.localToHdfs = Maps.newHashMap();
     this.names = Sets.newHashSet();
+    this.uploads = Maps.newLinkedHashMap();
   }
   
   public void copyConfiguration(String key, Configuration conf) throws IOException {
@@ -112,31 +176,483 @@ public class LocalDataHelper {
     OutputStream os = new FileOutputStream(tmpFile);
     conf.writeXml(os);
     os.close();
-    copyToHdfs(key, tmpFile.getAbsolutePath());
+    // Never shared: containers find the application's directory through this file.
+    copyToHdfs(key, tmpFile.getAbsolutePath(), false);
   }
   
   public void copyToHdfs(String localDataName) throws IOException {
-    copyToHdfs(localDataName, localDataName);
+    copyToHdfs(localDataName, localDataName, conf.getBoolean(SHARED_STAGING, false));
+  }
+
+  /**
+   * Copies a local input dataset to HDFS. If {@link #DEFERRED_UPLOAD} is set, the dataset
+   * is mapped to its place in the application's directory right away and moved there once
+   * uploaded, without holding up {@link #getFileMapping()}; operators that read it wait
+   * for it with {@link #awaitUpload(FileSystem, Path, Configuration)}.
+   */
+  public void copyDatasetToHdfs(final String localDataName) throws IOException {
+    if (!conf.getBoolean(DEFERRED_UPLOAD, false)) {
+      copyToHdfs(localDataName);
+      return;
+    }
+    if (localToHdfs.containsKey(localDataName) || uploads.containsKey(localDataName)) {
+      return;
+    }
+    final FileSystem fs = FileSystem.get(conf);
+    final Path dst = getPath(fs, new Path(localDataName).getName());
+    LOG.info("Deferring the upload of " + localDataName + " to " + dst);
+    localToHdfs.put(localDataName, dst.toUri());
+    getExecutor().submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        long start = System.currentTimeMillis();
+        Path tmp = new Path(dst.getParent(), "." + dst.getName() + "." + UUID.randomUUID());
+        try {
+          copy(fs, localDataName, tmp);
+          if (!fs.rename(tmp, dst)) {
+            throw new IOException("Could not rename " + tmp + " to " + dst);
+          }
+          LOG.info("Uploaded " + localDataName + " to " + dst + " in "
+              + (System.currentTimeMillis() - start) + " ms");
+        } catch (Exception e) {
+          LOG.error("Error copying local file " + localDataName + " to hdfs", e);
+          fs.delete(tmp, true);
+          // Tell the operators waiting for the dataset not to wait any longer.
+          FSDataOutputStream marker = fs.create(failureMarker(dst), true);
+          try {
+            marker.write(String.valueOf(e).getBytes(Charsets.UTF_8));
+          } finally {
+            marker.close();
+          }
+        }
+        return null;
+      }
+    });
+  }
+
+  /**
+   * The file that the client leaves next to a deferred dataset it could not upload.
+   */
+  private static Path failureMarker(Path dst) {
+    return new Path(dst.getParent(), "." + dst.getName() + ".failed");
+  }
+
+  /**
+   * Waits for a file that may still be uploaded by the client to show up, and returns
+   * whether it did. Returns false right away once the client reports that the upload
+   * failed.
+   */
+  public static boolean awaitUpload(FileSystem fs, Path path, Configuration conf)
+      throws IOException {
+    long deadline = System.currentTimeMillis()
+        + conf.getLong(DEFERRED_UPLOAD_TIMEOUT, DEFAULT_DEFERRED_UPLOAD_TIMEOUT);
+    Path marker = failureMarker(path);
+    boolean logged = false;
+    while (!fs.exists(path)) {
+      if (fs.exists(marker)) {
+        LOG.error("The client failed to upload " + path);
+        return false;
+      }
+      if (System.currentTimeMillis() > deadline) {
+        return false;
+      }
+      if (!logged) {
+        LOG.info("Waiting for the client to upload " + path);
+        logged = true;
+      }
+      try {
+        Thread.sleep(1000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      executor = Executors.newFixedThreadPool(Math.max(1, conf.getInt(UPLOAD_THREADS, 4)),
+          new ThreadFactoryBuilder().setDaemon(true).setNameFormat("upload-%d").build());
+    }
+    return executor;
   }
   
-  private void copyToHdfs(String key, String localDataName) throws IOException {
+  /**
+   * Starts copying the given local file or resource to HDFS in the background; the
+   * copy is waited for by {@link #getFileMapping()}.
+   */
+  private void copyToHdfs(final String key, final String localDataName, final boolean shared)
+      throws IOException {
 
       LOG.info("Copying local file to hdfs key: "+key+" localDataName: "+localDataName);
-      FileSystem fs = FileSystem.get(conf);
+      final FileSystem fs = FileSystem.get(conf);
       
-    if (!localToHdfs.containsKey(localDataName)) {
-      Path src = new Path(localDataName);
-      Path dst = getPath(fs, src.getName());
-      InputStream data = getFileOrResource(localDataName);
+    if (!localToHdfs.containsKey(key) && !uploads.containsKey(key)) {
+      uploads.put(key, getExecutor().submit(new Callable<URI>() {
+        @Override
+        public URI call() throws Exception {
+          long start = System.currentTimeMillis();
+          Path src = new Path(localDataName);
+          Path dst;
+          if (shared) {
+            dst = copyShared(fs, localDataName, src.getName());
+          } else {
+            dst = getPath(fs, src.getName());
+            copy(fs, localDataName, dst);
+          }
+          LOG.info("Mapped " + localDataName + " to " + dst + " in "
+              + (System.currentTimeMillis() - start) + " ms");
+          return dst.toUri();
+        }
+      }));
+    }
+  }
+
+  /**
+   * Copies a file to the shared staging area under a directory named after the digest
+   * of its contents, unless a previous application already did. The local file is hashed
+   * first, so that a file that is already there is not uploaded again, and a lease is
+   * taken on its entry before it is looked for, so that the entry is not removed while
+   * this application uses it. New files are uploaded to a private name, which is then
+   * renamed into place. Files there are never overwritten, so their timestamps stay
+   * valid for the LocalResources that refer to them.
+   */
+  private Path copyShared(FileSystem fs, String localDataName, String name) throws IOException {
+    Path root = getSharedPath(fs);
+    Path dir = new Path(root, hash(localDataName));
+    Path dst = new Path(dir, name);
+    fs.create(new Path(dir, LEASE_PREFIX + getLeaseOwner()), true).close();
+    File local = new File(localDataName);
+    if (fs.exists(dst) && (!local.isFile() || fs.getFileStatus(dst).getLen() == local.length())) {
+      LOG.info("Reusing " + dst + " for " + localDataName);
+      fs.setTimes(dir, System.currentTimeMillis(), -1);
+      return dst;
+    }
+    // Written under a private name first, so that no other application sees a partial file.
+    Path tmp = new Path(root, "." + name + "." + UUID.randomUUID());
+    try {
+      copy(fs, localDataName, tmp);
+      if (!fs.rename(tmp, dst) && !fs.exists(dst)) {
+        throw new IOException("Could not rename " + tmp + " to " + dst);
+      }
+      return dst;
+    } finally {
+      fs.delete(tmp, false);
+    }
+  }
+
+  private String getLeaseOwner() {
+    return applicationId == null ? "unknown" : applicationId.toString();
+  }
+
+  /**
+   * Returns the hex SHA-1 digest of a local file or resource. A file that is uploaded in
+   * chunks is hashed as the digests of its ranges of {@link #CHUNK_SIZE} bytes, in order,
+   * which are read concurrently.
+   */
+  private String hash(String localDataName) throws IOException {
+    File local = new File(localDataName);
+    final long chunkSize = Math.max(1L, conf.getLong(CHUNK_SIZE, DEFAULT_CHUNK_SIZE));
+    if (local.isFile() && local.length() > chunkSize) {
+      return Hex.encodeHexString(hashRanges(local, chunkSize));
+    }
+    InputStream data = getFileOrResource(localDataName);
+    if (data == null) {
+      throw new FileNotFoundException(localDataName);
+    }
+    MessageDigest digest = sha1();
+    try {
+      byte[] buf = new byte[64 * 1024];
+      int n;
+      while ((n = data.read(buf)) >= 0) {
+        digest.update(buf, 0, n);
+      }
+    } finally {
+      data.close();
+    }
+    return Hex.encodeHexString(digest.digest());
+  }
+
+  private byte[] hashRanges(final File src, long chunkSize) throws IOException {
+    final long length = src.length();
+    int chunks = (int) ((length + chunkSize - 1) / chunkSize);
+    List<Future<byte[]>> futures = Lists.newArrayList();
+    ExecutorService streams = Executors.newFixedThreadPool(
+        Math.max(1, Math.min(chunks, conf.getInt(UPLOAD_STREAMS, 4))),
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("hash-chunk-%d").build());
+    try {
+      for (int i = 0; i < chunks; i++) {
+        final long offset = i * chunkSize;
+        final long len = Math.min(chunkSize, length - offset);
+        futures.add(streams.submit(new Callable<byte[]>() {
+          @Override
+          public byte[] call() throws Exception {
+            return hashRange(src, offset, len);
+          }
+        }));
+      }
+      MessageDigest digest = sha1();
+      for (Future<byte[]> f : futures) {
+        try {
+          digest.update(f.get());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while hashing " + src, e);
+        } catch (ExecutionException e) {
+          throw new IOException("Error hashing " + src, e.getCause());
+        }
+      }
+      return digest.digest();
+    } finally {
+      streams.shutdownNow();
+    }
+  }
+
+  private static byte[] hashRange(File src, long offset, long len) throws IOException {
+    MessageDigest digest = sha1();
+    FileInputStream in = new FileInputStream(src);
+    try {
+      in.getChannel().position(offset);
+      byte[] buf = new byte[64 * 1024];
+      long remaining = len;
+      while (remaining > 0) {
+        int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+        if (n < 0) {
+          throw new EOFException(src + " ended before offset " + (offset + len));
+        }
+        digest.update(buf, 0, n);
+        remaining -= n;
+      }
+    } finally {
+      in.close();
+    }
+    return digest.digest();
+  }
+
+  private static MessageDigest sha1() throws IOException {
+    try {
+      return MessageDigest.getInstance("SHA-1");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Removes the entries of the shared staging area that no application holds a live
+   * lease on and that none has used for longer than {@link #SHARED_STAGING_MAX_AGE}, and
+   * returns how many there were. An entry is first moved aside and checked again, so
+   * that one that an application took a lease on in the meantime is put back.
+   */
+  private int cleanShared(FileSystem fs) throws IOException {
+    long maxAge = conf.getLong(SHARED_STAGING_MAX_AGE, DEFAULT_SHARED_STAGING_MAX_AGE);
+    long lease = conf.getLong(SHARED_STAGING_LEASE, DEFAULT_SHARED_STAGING_LEASE);
+    Path root = getSharedPath(fs);
+    if (maxAge <= 0 || !fs.exists(root)) {
+      return 0;
+    }
+    long now = System.currentTimeMillis();
+    int removed = 0;
+    for (FileStatus entry : fs.listStatus(root)) {
+      Path path = entry.getPath();
+      if (path.getName().startsWith(".")) {
+        // uploads and removals that never finished
+        if (entry.getModificationTime() < now - maxAge) {
+          fs.delete(path, true);
+        }
+        continue;
+      }
+      if (!entry.isDirectory() || !isExpired(fs, entry, now, maxAge, lease)) {
+        continue;
+      }
+      Path expired = new Path(root, EXPIRED_PREFIX + path.getName() + "." + UUID.randomUUID());
+      if (!fs.rename(path, expired)) {
+        continue;
+      }
+      if (isExpired(fs, fs.getFileStatus(expired), now, maxAge, lease)) {
+        fs.delete(expired, true);
+        removed++;
+      } else if (!fs.rename(expired, path)) {
+        LOG.warn("Could not put back " + path + ", which was leased while it was removed");
+      }
+    }
+    return removed;
+  }
+
+  private static boolean isExpired(FileSystem fs, FileStatus entry, long now, long maxAge,
+      long lease) throws IOException {
+    long lastUsed = entry.getModificationTime();
+    for (FileStatus f : fs.listStatus(entry.getPath())) {
+      if (f.getPath().getName().startsWith(LEASE_PREFIX)) {
+        if (f.getModificationTime() > now - lease) {
+          return false;
+        }
+        lastUsed = Math.max(lastUsed, f.getModificationTime());
+      }
+    }
+    return lastUsed < now - maxAge;
+  }
+
+  /**
+   * Renews the leases that the given application holds on the entries of the shared
+   * staging area that the given files are in. Files outside of that area have no lease
+   * and are skipped.
+   */
+  public static void renewLeases(FileSystem fs, Collection<URI> files, ApplicationId owner)
+      throws IOException {
+    long now = System.currentTimeMillis();
+    for (URI file : files) {
+      Path lease = new Path(new Path(file).getParent(), LEASE_PREFIX + owner);
+      if (fs.exists(lease)) {
+        fs.setTimes(lease, now, -1);
+      }
+    }
+  }
+
+  /**
+   * Gives up the leases that the given application holds, once it has finished.
+   */
+  public static void releaseLeases(FileSystem fs, Collection<URI> files, ApplicationId owner)
+      throws IOException {
+    for (URI file : files) {
+      fs.delete(new Path(new Path(file).getParent(), LEASE_PREFIX + owner), false);
+    }
+  }
+
+  private void copy(FileSystem fs, String localDataName, Path dst) throws IOException {
+    File local = new File(localDataName);
+    // Only HDFS can concatenate the chunks back together.
+    if (local.isFile() && local.length() > conf.getLong(CHUNK_SIZE, DEFAULT_CHUNK_SIZE)
+        && "hdfs".equals(fs.getUri().getScheme())) {
+      copyChunked(fs, local, dst);
+      return;
+    }
+    InputStream data = getFileOrResource(localDataName);
+    if (data == null) {
+      throw new FileNotFoundException(localDataName);
+    }
+    try {
       FSDataOutputStream os = fs.create(dst, true);
-      ByteStreams.copy(data, os);
-      os.close();
-      URI uri = dst.toUri();
-      localToHdfs.put(key, uri);
+      try {
+        ByteStreams.copy(data, os);
+      } finally {
+        os.close();
+      }
+    } finally {
+      data.close();
     }
   }
+
+  /**
+   * Uploads a large local file as chunks written by concurrent streams, which are then
+   * concatenated on HDFS. The size of every chunk, and of the result, is checked against
+   * the local file.
+   */
+  private void copyChunked(final FileSystem fs, final File src, Path dst) throws IOException {
+    // HDFS only concatenates files made of whole blocks, except for the last one.
+    long blockSize = fs.getDefaultBlockSize(dst);
+    long chunkSize = Math.max(1L, conf.getLong(CHUNK_SIZE, DEFAULT_CHUNK_SIZE) / blockSize)
+        * blockSize;
+    final long length = src.length();
+    int chunks = (int) ((length + chunkSize - 1) / chunkSize);
+    LOG.info("Uploading " + src + " (" + length + " bytes) in " + chunks + " chunks");
+
+    final AtomicLong uploaded = new AtomicLong();
+    List<Path> parts = Lists.newArrayList();
+    List<Future<Void>> futures = Lists.newArrayList();
+    ExecutorService streams = Executors.newFixedThreadPool(
+        Math.max(1, Math.min(chunks, conf.getInt(UPLOAD_STREAMS, 4))),
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("upload-chunk-%d").build());
+    boolean done = false;
+    try {
+      for (int i = 0; i < chunks; i++) {
+        final long offset = i * chunkSize;
+        final long len = Math.min(chunkSize, length - offset);
+        final Path part = new Path(dst.getParent(), "." + dst.getName() + ".part-" + i);
+        parts.add(part);
+        futures.add(streams.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            copyRange(fs, src, offset, len, part);
+            if (fs.getFileStatus(part).getLen() != len) {
+              throw new IOException("Uploaded chunk " + part + " does not match " + src);
+            }
+            long total = uploaded.addAndGet(len);
+            LOG.info(String.format("Uploaded %d%% of %s", total * 100 / length, src));
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> f : futures) {
+        try {
+          f.get();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while uploading " + src, e);
+        } catch (ExecutionException e) {
+          throw new IOException("Error uploading " + src, e.getCause());
+        }
+      }
+
+      Path first = parts.get(0);
+      if (parts.size() > 1) {
+        fs.concat(first, parts.subList(1, parts.size()).toArray(new Path[parts.size() - 1]));
+      }
+      if (fs.getFileStatus(first).getLen() != length) {
+        throw new IOException("Uploaded file " + dst + " does not match " + src);
+      }
+      fs.delete(dst, false);
+      if (!fs.rename(first, dst)) {
+        throw new IOException("Could not rename " + first + " to " + dst);
+      }
+      done = true;
+    } finally {
+      streams.shutdownNow();
+      if (!done) {
+        for (Path part : parts) {
+          fs.delete(part, false);
+        }
+      }
+    }
+  }
+
+  /**
+   * Uploads the given range of a local file.
+   */
+  private static void copyRange(FileSystem fs, File src, long offset, long len, Path dst)
+      throws IOException {
+    FileInputStream in = new FileInputStream(src);
+    try {
+      in.getChannel().position(offset);
+      FSDataOutputStream os = fs.create(dst, true);
+      try {
+        byte[] buf = new byte[64 * 1024];
+        long remaining = len;
+        while (remaining > 0) {
+          int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+          if (n < 0) {
+            throw new EOFException(src + " ended before offset " + (offset + len));
+          }
+          os.write(buf, 0, n);
+          remaining -= n;
+        }
+      } finally {
+        os.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private Path getSharedPath(FileSystem fs) {
+    String dir = conf.get(SHARED_STAGING_DIR);
+    if (dir != null) {
+      return new Path(dir);
+    }
+    return getAppPath(fs, "kitten-staging");
+  }
   
-  private Path getPath(FileSystem fs, String name) {
+  private synchronized Path getPath(FileSystem fs, String name) {
     int cp = 0;
     while (names.contains(name)) {
       name = name + (++cp);
@@ -160,7 +676,37 @@ public class LocalDataHelper {
     }
   }
   
+  /**
+   * Returns the HDFS location of every file copied so far, after waiting for the copies
+   * still in progress. Files that could not be copied are logged and left out.
+   */
   public Map<String, URI> getFileMapping() {
+    for (Map.Entry<String, Future<URI>> e : uploads.entrySet()) {
+      try {
+        localToHdfs.put(e.getKey(), e.getValue().get());
+      } catch (InterruptedException ie) {
+        Thread.currentThread().interrupt();
+        LOG.error("Interrupted while copying " + e.getKey() + " to hdfs", ie);
+      } catch (ExecutionException ee) {
+        LOG.error("Error copying local file " + e.getKey() + " to hdfs", ee.getCause());
+      }
+    }
+    uploads.clear();
+    if (conf.getBoolean(SHARED_STAGING, false) && !cleanedShared) {
+      cleanedShared = true;
+      try {
+        int removed = cleanShared(FileSystem.get(conf));
+        if (removed > 0) {
+          LOG.info("Removed " + removed + " unused entries from the shared staging area");
+        }
+      } catch (IOException e) {
+        LOG.warn("Could not clean up the shared staging area", e);
+      }
+    }
+    if (executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
     return localToHdfs;
   }
 }
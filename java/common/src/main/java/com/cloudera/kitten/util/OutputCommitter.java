@@ -0,0 +1,90 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.util;
+
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Makes sure that only one attempt of an operator instance leaves its output in the
+ * operator's HDFS output directory.
+ *
+ * <p>When speculative execution is on, containers stage their output out into
+ * {@code <output>/_temporary/<container id>} and the application master moves the
+ * output of the first attempt to succeed into {@code <output>}, discarding the rest.
+ */
+public class OutputCommitter {
+
+  private static final Log LOG = LogFactory.getLog(OutputCommitter.class);
+
+  // Whether the application master may run duplicate attempts of slow instances.
+  public static final String SPECULATION = "kitten.speculation.enabled";
+
+  public static final String TEMPORARY_DIR = "_temporary";
+
+  /**
+   * The directory that the container running the script stages its output out to,
+   * using the container id that the NodeManager puts in the environment.
+   */
+  public static String attemptDir(String outputDir) {
+    return outputDir + "/" + TEMPORARY_DIR + "/$CONTAINER_ID";
+  }
+
+  /**
+   * Moves the output of the given attempt into the output directory. Fails, like
+   * {@code hadoop fs -moveFromLocal} does, if a file of the same name was already
+   * committed there, e.g. by another instance of the operator.
+   */
+  public static void commit(FileSystem fs, Path outputDir, String attempt) throws IOException {
+    Path attemptDir = new Path(new Path(outputDir, TEMPORARY_DIR), attempt);
+    if (!fs.exists(attemptDir)) {
+      LOG.warn("No output to commit in " + attemptDir);
+      return;
+    }
+    for (FileStatus f : fs.listStatus(attemptDir)) {
+      Path dst = new Path(outputDir, f.getPath().getName());
+      if (fs.exists(dst)) {
+        throw new IOException("Could not commit " + f.getPath() + ", " + dst + " already exists");
+      }
+      if (!fs.rename(f.getPath(), dst)) {
+        throw new IOException("Could not move " + f.getPath() + " to " + dst);
+      }
+    }
+    fs.delete(attemptDir, true);
+    LOG.info("Committed output of " + attempt + " to " + outputDir);
+  }
+
+  /**
+   * Discards the output of the given attempt.
+   */
+  public static void abort(FileSystem fs, Path outputDir, String attempt) throws IOException {
+    fs.delete(new Path(new Path(outputDir, TEMPORARY_DIR), attempt), true);
+  }
+
+  /**
+   * Removes whatever is left of the attempt directories once the operator is done.
+   */
+  public static void cleanup(FileSystem fs, Path outputDir) throws IOException {
+    fs.delete(new Path(outputDir, TEMPORARY_DIR), true);
+  }
+
+  // Not instantiated.
+  private OutputCommitter() {}
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.util;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.Tool;
+import org.apache.hadoop.util.ToolRunner;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Copies the inputs of an operator to its container, and its outputs back to HDFS, in a
+ * single JVM instead of one {@code hadoop fs} invocation per file.
+ *
+ * <pre>
+ * StagingAgent get [-mkdir &lt;dir&gt;]... &lt;local dir&gt; &lt;path or glob&gt;...
+ * StagingAgent put &lt;dir&gt; &lt;local file&gt;...
+ * </pre>
+ *
+ * <p>{@code get} behaves like {@code hadoop fs -copyToLocal}, after creating the given
+ * directories, and {@code put} like {@code hadoop fs -moveFromLocal} into a directory
+ * that it creates if needed. Files are copied concurrently, and the time each one took
+ * is logged.
+ */
+public class StagingAgent extends Configured implements Tool {
+
+  private static final Log LOG = LogFactory.getLog(StagingAgent.class);
+
+  // Whether operators stage their data with this agent instead of the hadoop CLI.
+  public static final String ENABLED = "kitten.staging.agent.enabled";
+
+  // The number of files that the agent copies at once.
+  public static final String THREADS = "kitten.staging.threads";
+  public static final int DEFAULT_THREADS = 8;
+
+  // The name of the agent's jar in the working directory of a container.
+  public static final String JAR_NAME = "kitten-staging.jar";
+
+  /**
+   * Returns the jar that this class was loaded from, or null if it was not loaded from
+   * a jar, e.g., when running from a build directory.
+   */
+  public static File findJar() {
+    try {
+      File jar = new File(StagingAgent.class.getProtectionDomain().getCodeSource()
+          .getLocation().toURI());
+      return jar.isFile() && jar.getName().endsWith(".jar") ? jar : null;
+    } catch (Exception e) {
+      LOG.warn("Could not locate the jar of " + StagingAgent.class.getName(), e);
+      return null;
+    }
+  }
+
+  @Override
+  public int run(String[] args) throws Exception {
+    if (args.length < 2 || !("get".equals(args[0]) || "put".equals(args[0]))) {
+      System.err.println("Usage: StagingAgent get [-mkdir <dir>]... <local dir> <path>...");
+      System.err.println("       StagingAgent put <dir> <local file>...");
+      return 2;
+    }
+    Configuration conf = getConf();
+    int i = 1;
+    while (i + 1 < args.length && "-mkdir".equals(args[i])) {
+      Path dir = new Path(args[i + 1]);
+      dir.getFileSystem(conf).mkdirs(dir);
+      i += 2;
+    }
+    String target = args[i++];
+
+    long start = System.currentTimeMillis();
+    ExecutorService executor = Executors.newFixedThreadPool(
+        Math.max(1, conf.getInt(THREADS, DEFAULT_THREADS)),
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("staging-%d").build());
+    List<Future<Long>> copies = Lists.newArrayList();
+    int failed = 0;
+    try {
+      if ("get".equals(args[0])) {
+        for (; i < args.length; i++) {
+          Path src = new Path(args[i]);
+          FileSystem fs = src.getFileSystem(conf);
+          FileStatus[] matches = fs.globStatus(src);
+          if (matches == null || matches.length == 0) {
+            LOG.error(args[i] + ": No such file or directory");
+            failed++;
+            continue;
+          }
+          for (FileStatus stat : matches) {
+            copies.add(executor.submit(get(fs, stat.getPath(), new File(target))));
+          }
+        }
+      } else {
+        Path dst = new Path(target);
+        FileSystem fs = dst.getFileSystem(conf);
+        fs.mkdirs(dst);
+        for (; i < args.length; i++) {
+          File src = new File(args[i]);
+          if (!src.exists()) {
+            LOG.error(args[i] + ": No such file or directory");
+            failed++;
+            continue;
+          }
+          copies.add(executor.submit(put(src, fs, dst)));
+        }
+      }
+
+      long bytes = 0L;
+      for (Future<Long> copy : copies) {
+        try {
+          bytes += copy.get();
+        } catch (ExecutionException e) {
+          LOG.error("Staging failed", e.getCause());
+          failed++;
+        }
+      }
+      LOG.info(String.format("Staged %d file(s), %d bytes, in %d ms, %d failed",
+          copies.size(), bytes, System.currentTimeMillis() - start, failed));
+    } finally {
+      executor.shutdownNow();
+    }
+    return failed == 0 ? 0 : 1;
+  }
+
+  private Callable<Long> get(final FileSystem fs, final Path src, final File dir) {
+    return new Callable<Long>() {
+      @Override
+      public Long call() throws Exception {
+        long start = System.currentTimeMillis();
+        long bytes = fs.getContentSummary(src).getLength();
+        if (!FileUtil.copy(fs, src, new File(dir, src.getName()), false, getConf())) {
+          throw new IllegalStateException("Could not copy " + src);
+        }
+        LOG.info(String.format("Copied %s to %s: %d bytes in %d ms", src, dir, bytes,
+            System.currentTimeMillis() - start));
+        return bytes;
+      }
+    };
+  }
+
+  private Callable<Long> put(final File src, final FileSystem fs, final Path dir) {
+    return new Callable<Long>() {
+      @Override
+      public Long call() throws Exception {
+        long start = System.currentTimeMillis();
+        long bytes = sizeOf(src);
+        if (!FileUtil.copy(src, fs, new Path(dir, src.getName()), true, getConf())) {
+          throw new IllegalStateException("Could not move " + src);
+        }
+        LOG.info(String.format("Moved %s to %s: %d bytes in %d ms", src, dir, bytes,
+            System.currentTimeMillis() - start));
+        return bytes;
+      }
+    };
+  }
+
+  private static long sizeOf(File f) {
+    if (!f.isDirectory()) {
+      return f.length();
+    }
+    long size = 0L;
+    File[] children = f.listFiles();
+    if (children != null) {
+      for (File c : children) {
+        size += sizeOf(c);
+      }
+    }
+    return size;
+  }
+
+  public static void main(String[] args) throws Exception {
+    System.exit(ToolRunner.run(new Configuration(), new StagingAgent(), args));
+  }
+}
@@ -11,6 +11,21 @@ function cat(t)
   end
 end
 
+-- Marks a function of the instance index (starting at 0) and the number of
+-- instances of a container, whose value is computed separately for each instance
+-- when it is launched. It can be used for env values, command args and resources,
+-- e.g., env = { PART = per_instance(function(i, n) return i .. "/" .. n end) }
+function per_instance(f)
+  if "function" ~= type(f) then
+    error("per_instance expects a function of (instance, instances)")
+  end
+  return { per_instance = f }
+end
+
+local is_per_instance = function(v)
+  return "table" == type(v) and "function" == type(v.per_instance)
+end
+
 -- Verifications that ensure that a table has all of
 -- the fields required for creating a YARN application. 
 function yarn(t)
@@ -66,7 +81,9 @@ function yarn(t)
 
     clp.env = t_check(clp.env or {}, name .. ".env", "table")
     for k, v in pairs(clp.env) do
-      clp.env[k] = s_check(v, name .. ".env[" .. k .. "]")
+      if not is_per_instance(v) then
+        clp.env[k] = s_check(v, name .. ".env[" .. k .. "]")
+      end
     end
 
     -- What to do for command and for resources?
@@ -104,6 +121,7 @@ end
 -- disable_logging: Turns off logging of stdout and stderr to the YARN logs
 -- directory for the container.
 function java_cmd(t)
+  local base, prefix
   if t.java then
     base = t.java
   else
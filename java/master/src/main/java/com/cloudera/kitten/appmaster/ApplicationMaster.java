@@ -18,6 +18,7 @@ import java.io.File;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
@@ -40,8 +41,8 @@ public class ApplicationMaster extends Configured implements Tool {
 		ApplicationMasterParameters params = new LuaApplicationMasterParameters(getConf());
 		ApplicationMasterService service = new ApplicationMasterServiceImpl(params, getConf());
 		service.startAndWait();
-		while (service.hasRunningContainers()) {
-		  Thread.sleep(1000);
+		if (service.isRunning()) {
+		  service.awaitCompletion();
 		}
 		service.stopAndWait();
 	  }
@@ -50,8 +51,8 @@ public class ApplicationMaster extends Configured implements Tool {
 		  WorkflowParameters params = new WorkflowParameters(getConf());
 		  WorkflowService service = new WorkflowService(params, getConf());
 			service.startAndWait();
-			while (service.hasRunningContainers()) {
-			  Thread.sleep(1000);
+			if (service.isRunning()) {
+			  service.awaitCompletion();
 			}
 			service.stopAndWait();
 	  }
@@ -61,7 +62,13 @@ public class ApplicationMaster extends Configured implements Tool {
 
   public static void main(String[] args) throws Exception {
     try { 
-      int rc = ToolRunner.run(new Configuration(), new ApplicationMaster(), args);
+      Configuration conf = new Configuration();
+      // Pick up the client's configuration, including the Lua 'conf' settings.
+      File jobXml = new File(LuaFields.KITTEN_JOB_XML_FILE);
+      if (jobXml.exists()) {
+        conf.addResource(new Path(jobXml.getAbsolutePath()));
+      }
+      int rc = ToolRunner.run(conf, new ApplicationMaster(), args);
       System.exit(rc);
     } catch (Exception e) {
     	e.printStackTrace();
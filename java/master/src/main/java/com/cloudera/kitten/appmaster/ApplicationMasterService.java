@@ -32,4 +32,10 @@ public interface ApplicationMasterService extends Service {
    * monitoring.
    */
   boolean hasRunningContainers();
+
+  /**
+   * Blocks until this service has no more work to do, either because all of its
+   * containers have finished or because it has failed or been asked to stop.
+   */
+  void awaitCompletion() throws InterruptedException;
 }
@@ -0,0 +1,162 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.params.lua;
+
+import gr.ntua.cslab.asap.rest.beans.OperatorDictionary;
+import gr.ntua.cslab.asap.rest.beans.WorkflowDictionary;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.records.Resource;
+import org.apache.hadoop.yarn.util.Records;
+
+import com.cloudera.kitten.ContainerLaunchParameters;
+import com.cloudera.kitten.lua.AsapLuaContainerLaunchParameters;
+import com.cloudera.kitten.util.OutputCommitter;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Finds the linear chains of small operators in a workflow that can run back to back
+ * in a single container.
+ *
+ * <p>An operator is fused with the one after it only if neither has any other neighbour
+ * in the workflow, both run a single instance, and they ask for the same number of cores
+ * and roughly the same amount of memory, so that the fused container does not hold on
+ * to much more than either of them would.
+ */
+public class OperatorFusion {
+
+  private static final Log LOG = LogFactory.getLog(OperatorFusion.class);
+
+  // Whether linear chains of single-instance operators run in one container.
+  public static final String ENABLED = "kitten.fusion.enabled";
+
+  // The largest ratio between the memory requests of two operators that are fused.
+  public static final String MEMORY_RATIO = "kitten.fusion.memory.ratio";
+
+  private final WorkflowDictionary workflow;
+  private final Configuration conf;
+
+  public OperatorFusion(WorkflowDictionary workflow, Configuration conf) {
+    this.workflow = workflow;
+    this.conf = conf;
+  }
+
+  public boolean isEnabled() {
+    // Speculative attempts of a fused chain would race on its intermediate outputs.
+    return conf.getBoolean(ENABLED, false) && !conf.getBoolean(OutputCommitter.SPECULATION, false);
+  }
+
+  /**
+   * Returns the chains of operators to fuse, each in the order its operators run.
+   * Operators that are not part of any chain are left out.
+   *
+   * @param params The launch parameters of every operator, by operator name
+   * @param upstream The operators that every operator reads from, by operator name
+   */
+  public List<List<String>> findChains(Map<String, ContainerLaunchParameters> params,
+      Map<String, Set<String>> upstream) {
+    if (!isEnabled()) {
+      return Lists.newArrayList();
+    }
+    Resource max = Records.newRecord(Resource.class);
+    max.setMemory(Integer.MAX_VALUE);
+    max.setVirtualCores(Integer.MAX_VALUE);
+    Map<String, Resource> fusable = Maps.newHashMap();
+    for (Map.Entry<String, ContainerLaunchParameters> e : params.entrySet()) {
+      if (isFusable(e.getValue())) {
+        fusable.put(e.getKey(), e.getValue().getContainerResource(max));
+      }
+    }
+    return chains(fusable, upstream);
+  }
+
+  /**
+   * Returns the chains among the operators that could run in a fused container, given
+   * the resources each of them asks for.
+   */
+  @VisibleForTesting
+  List<List<String>> chains(Map<String, Resource> fusable, Map<String, Set<String>> upstream) {
+    List<List<String>> chains = Lists.newArrayList();
+    Map<String, Set<String>> downstream = Maps.newHashMap();
+    for (Map.Entry<String, Set<String>> e : upstream.entrySet()) {
+      for (String in : e.getValue()) {
+        Set<String> out = downstream.get(in);
+        if (out == null) {
+          out = Sets.newHashSet();
+          downstream.put(in, out);
+        }
+        out.add(e.getKey());
+      }
+    }
+
+    // next.get(a) is the operator that a is fused with.
+    Map<String, String> next = Maps.newHashMap();
+    Set<String> hasPrevious = Sets.newHashSet();
+    for (String b : fusable.keySet()) {
+      Set<String> in = upstream.get(b);
+      if (in == null || in.size() != 1) {
+        continue;
+      }
+      String a = in.iterator().next();
+      Set<String> out = downstream.get(a);
+      if (out != null && out.size() == 1 && fusable.containsKey(a)
+          && canFuse(fusable.get(a), fusable.get(b))) {
+        next.put(a, b);
+        hasPrevious.add(b);
+      }
+    }
+
+    for (String head : next.keySet()) {
+      if (hasPrevious.contains(head)) {
+        continue;
+      }
+      List<String> chain = Lists.newArrayList(head);
+      for (String op = next.get(head); op != null; op = next.get(op)) {
+        chain.add(op);
+      }
+      LOG.info("Fusing operators " + chain);
+      chains.add(chain);
+    }
+    return chains;
+  }
+
+  private boolean canFuse(Resource ra, Resource rb) {
+    if (ra.getVirtualCores() != rb.getVirtualCores()) {
+      return false;
+    }
+    double ratio = conf.getFloat(MEMORY_RATIO, 2.0f);
+    int small = Math.max(1, Math.min(ra.getMemory(), rb.getMemory()));
+    return Math.max(ra.getMemory(), rb.getMemory()) <= ratio * small;
+  }
+
+  private boolean isFusable(ContainerLaunchParameters params) {
+    if (!(params instanceof AsapLuaContainerLaunchParameters)) {
+      return false;
+    }
+    OperatorDictionary op = workflow.getOperator(params.getName());
+    return op != null && !"stopped".equals(op.getStatus())
+        && params.getNumInstances() == 1 && !params.isWorkQueue()
+        && params.getSplitSize() <= 0 && params.getMaxInstances() <= 1;
+  }
+}
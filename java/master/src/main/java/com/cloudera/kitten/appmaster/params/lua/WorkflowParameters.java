@@ -32,6 +32,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -42,6 +43,8 @@ import com.cloudera.kitten.appmaster.ApplicationMasterParameters;
 import com.cloudera.kitten.appmaster.service.WorkflowService;
 import com.cloudera.kitten.appmaster.service.ContainerTracker;
 import com.cloudera.kitten.lua.AsapLuaContainerLaunchParameters;
+import com.cloudera.kitten.lua.ExecutionPlan;
+import com.cloudera.kitten.lua.FusedContainerLaunchParameters;
 import com.cloudera.kitten.lua.LuaContainerLaunchParameters;
 import com.cloudera.kitten.lua.LuaFields;
 import com.cloudera.kitten.lua.LuaPair;
@@ -51,6 +54,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import org.apache.hadoop.net.NetUtils;
 
@@ -68,6 +72,7 @@ public class WorkflowParameters implements ApplicationMasterParameters {
 	public WorkflowDictionary workflow;
 	public MaterializedWorkflow1 materializedWorkflow;
 	public String jobName;
+	private final ExecutionPlan plan;
 
   public WorkflowParameters(Configuration conf) throws Exception{
     this(LuaFields.KITTEN_WORKFLOW_CONFIG_FILE, System.getenv(LuaFields.KITTEN_JOB_NAME), conf);
@@ -112,9 +117,13 @@ public class WorkflowParameters implements ApplicationMasterParameters {
 		}
 		LOG.info("Operators: "+operators);
 		
+		// Operators that the client compiled need not be evaluated again.
+		this.plan = ExecutionPlan.load(new File(LuaFields.KITTEN_EXECUTION_PLAN_FILE));
 		int i =0;
 		for(Entry<String, String> e : operators.entrySet()){
-			LuaWrapper l = new LuaWrapper(e.getValue(), loadExtras(extras)).getTable("operator");
+			LuaWrapper l = plan == null ? null : plan.getOperator(e.getKey());
+			if (l == null)
+				l = new LuaWrapper(e.getValue(), loadExtras(extras)).getTable("operator");
 			if(i==0)
 				this.e0=l;
 			i++;
@@ -149,6 +158,13 @@ public class WorkflowParameters implements ApplicationMasterParameters {
   public Configuration getConfiguration() {
     return conf;
   }
+
+  /**
+   * The HDFS location of every file that the client uploaded, by local name.
+   */
+  public Map<String, URI> getLocalFileUris() {
+    return localToUris;
+  }
   
   @Override
   public String getHostname() {
@@ -215,36 +231,71 @@ public class WorkflowParameters implements ApplicationMasterParameters {
 
 	public HashMap<String, ContainerTracker> createTrackers(WorkflowService workflowService) {
 		HashMap<String, ContainerTracker> trackers = new HashMap<String, ContainerTracker>();
-	    for ( Entry<String, ContainerLaunchParameters> e : getContainerLaunchParameters().entrySet()) {
+		HashMap<String, ContainerLaunchParameters> clp = getContainerLaunchParameters();
+		Map<String, Set<String>> upstream = Maps.newHashMap();
+		for (String op : clp.keySet()) {
+			Set<String> in = plan == null ? null : plan.getUpstream(op);
+			if (in == null) {
+				in = Sets.newHashSet();
+				for (String i : workflow.getOperator(op).getInput()) {
+					addUpstreamRecursive(i, in);
+				}
+			}
+			upstream.put(op, in);
+		}
+
+		// The tracker of every operator; the operators of a fused chain share theirs.
+		Map<String, ContainerTracker> byOperator = Maps.newHashMap();
+		for (List<String> chain : new OperatorFusion(workflow, conf).findChains(clp, upstream)) {
+			List<AsapLuaContainerLaunchParameters> ops = Lists.newArrayList();
+			for (String op : chain) {
+				ops.add((AsapLuaContainerLaunchParameters) clp.get(op));
+			}
+			FusedContainerLaunchParameters fused = new FusedContainerLaunchParameters(ops);
+			ContainerTracker tracker = new ContainerTracker(workflowService, fused);
+			trackers.put(fused.getName(), tracker);
+			for (String op : chain) {
+				byOperator.put(op, tracker);
+			}
+		}
+	    for ( Entry<String, ContainerLaunchParameters> e : clp.entrySet()) {
+	    	if (byOperator.containsKey(e.getKey()))
+	    		continue;
 	    	ContainerTracker tracker = new ContainerTracker(workflowService, e.getValue());
 	    	trackers.put(e.getKey(),tracker);
+	    	byOperator.put(e.getKey(), tracker);
 	    }
 	    LOG.info("Trackers: " + trackers);
 	    
-	    for(Entry<String, ContainerTracker> e : trackers.entrySet()){
-	    	for(String in : workflow.getOperator(e.getKey()).getInput()){
-	    		addTrackerDependencyRecursive(in, e.getKey(), trackers);
+	    for(Entry<String, Set<String>> e : upstream.entrySet()){
+	    	ContainerTracker outTracker = byOperator.get(e.getKey());
+	    	for(String in : e.getValue()){
+	    		ContainerTracker inTracker = byOperator.get(in);
+	    		if(inTracker == null || inTracker == outTracker)
+	    			continue;
+	    		LOG.info("Adding previous tracker: " +in+" -> "+e.getKey());
+	    		outTracker.addPreviousTracker(inTracker);
+	    		inTracker.addNextTracker(outTracker);
 	    	}
 	    }
 	    
 		return trackers;
 	}
 	
-	private void addTrackerDependencyRecursive(String in, String out, HashMap<String, ContainerTracker> trackers){
-		ContainerTracker outTracker = trackers.get(out);
-		ContainerTracker inTracker = trackers.get(in);
+	/**
+	 * Collects the operators that produce {@code in}, looking through datasets.
+	 */
+	private void addUpstreamRecursive(String in, Set<String> upstream){
 		OperatorDictionary inOp = workflow.getOperator(in);
 		if(inOp.getStatus().equals("stopped"))
 			return;
 		if(inOp.getIsOperator().equals("true")){
-			LOG.info("Adding previous tracker: " +in+" -> "+out);
-			outTracker.addPreviousTracker(inTracker);
-			inTracker.addNextTracker(outTracker);
+			upstream.add(in);
 		}
 		else{
 			//dataset
 	    	for(String in1 : inOp.getInput()){
-	    		addTrackerDependencyRecursive(in1, out, trackers);
+	    		addUpstreamRecursive(in1, upstream);
 	    	}
 		}
 	}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.reporter;
+
+import gr.ntua.cslab.asap.rest.beans.OperatorDictionary;
+import gr.ntua.cslab.asap.rest.beans.WorkflowDictionary;
+
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+
+/**
+ * Encodes only the operators and datasets whose status changed since the last report
+ * that the sink acknowledged, as compact JSON:
+ *
+ * <pre>
+ * {"workflow":"w","seq":7,"base":6,"full":false,
+ *  "operators":{"Sort":"running"},"datasets":{"d1":"running"}}
+ * </pre>
+ *
+ * {@code seq} numbers every report and {@code base} is the sequence number of the
+ * acknowledged report the delta applies to. The first report, and the first one
+ * after a failed delivery, is a full snapshot ({@code "full":true}, {@code base} of
+ * -1), so a receiver that lost track can always resynchronize.
+ */
+public class DeltaStatusEncoder implements StatusEncoder {
+
+  private long seq = 0;
+  private long ackedSeq = -1;
+  private Map<String, String> acked = null;
+  private Map<String, String> inFlight = null;
+
+  @Override
+  public byte[] encode(String workflowId, WorkflowDictionary workflow) throws Exception {
+    Map<String, String> current = Maps.newHashMap();
+    StringBuilder operators = new StringBuilder();
+    StringBuilder datasets = new StringBuilder();
+    for (OperatorDictionary op : workflow.getOperators()) {
+      String status = op.getStatus();
+      current.put(op.getName(), status);
+      if (acked != null && equal(status, acked.get(op.getName()))) {
+        continue;
+      }
+      StringBuilder sb = "true".equals(op.getIsOperator()) ? operators : datasets;
+      if (sb.length() > 0) {
+        sb.append(',');
+      }
+      quote(sb, op.getName()).append(':');
+      quote(sb, status);
+    }
+    inFlight = current;
+
+    StringBuilder json = new StringBuilder("{\"workflow\":");
+    quote(json, workflowId);
+    json.append(",\"seq\":").append(seq++);
+    json.append(",\"base\":").append(acked == null ? -1 : ackedSeq);
+    json.append(",\"full\":").append(acked == null);
+    json.append(",\"operators\":{").append(operators).append('}');
+    json.append(",\"datasets\":{").append(datasets).append("}}");
+    return json.toString().getBytes(Charsets.UTF_8);
+  }
+
+  @Override
+  public void delivered(boolean success) {
+    if (success) {
+      acked = inFlight;
+      ackedSeq = seq - 1;
+    } else {
+      acked = null;
+    }
+  }
+
+  @Override
+  public String getContentType() {
+    return "application/json";
+  }
+
+  private static boolean equal(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  private static StringBuilder quote(StringBuilder sb, String s) {
+    if (s == null) {
+      return sb.append("null");
+    }
+    sb.append('"');
+    for (int i = 0; i < s.length(); i++) {
+      char c = s.charAt(i);
+      switch (c) {
+      case '"':
+        sb.append("\\\"");
+        break;
+      case '\\':
+        sb.append("\\\\");
+        break;
+      case '\n':
+        sb.append("\\n");
+        break;
+      case '\r':
+        sb.append("\\r");
+        break;
+      case '\t':
+        sb.append("\\t");
+        break;
+      default:
+        if (c < 0x20) {
+          sb.append(String.format("\\u%04x", (int) c));
+        } else {
+          sb.append(c);
+        }
+      }
+    }
+    return sb.append('"');
+  }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.reporter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes the latest report for each workflow to {@code <dir>/<workflowId>}, so that
+ * the reporter can be used and tested without the ASAP server. Each report is
+ * written to a temporary file first, so readers never see a partial one.
+ */
+public class FileStatusSink implements StatusSink {
+
+  private final File dir;
+
+  public FileStatusSink(File dir) {
+    this.dir = dir;
+  }
+
+  @Override
+  public void send(String workflowId, byte[] payload, String contentType) throws IOException {
+    if (!dir.isDirectory() && !dir.mkdirs()) {
+      throw new IOException("Could not create report directory " + dir);
+    }
+    File tmp = new File(dir, "." + workflowId + ".tmp");
+    FileOutputStream out = new FileOutputStream(tmp);
+    try {
+      out.write(payload);
+    } finally {
+      out.close();
+    }
+    File dst = new File(dir, workflowId);
+    if (!tmp.renameTo(dst)) {
+      dst.delete();
+      if (!tmp.renameTo(dst)) {
+        throw new IOException("Could not move report to " + dst);
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+  }
+
+  @Override
+  public String toString() {
+    return dir.getAbsolutePath();
+  }
+}
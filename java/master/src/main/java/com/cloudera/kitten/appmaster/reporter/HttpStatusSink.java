@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.reporter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * POSTs each report to {@code <baseUrl><workflowId>/}.
+ */
+public class HttpStatusSink implements StatusSink {
+
+  private static final Log LOG = LogFactory.getLog(HttpStatusSink.class);
+
+  private final String baseUrl;
+  private final int connectTimeoutMillis;
+  private final int readTimeoutMillis;
+
+  public HttpStatusSink(String baseUrl, int connectTimeoutMillis, int readTimeoutMillis) {
+    this.baseUrl = baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+    this.connectTimeoutMillis = connectTimeoutMillis;
+    this.readTimeoutMillis = readTimeoutMillis;
+  }
+
+  @Override
+  public void send(String workflowId, byte[] payload, String contentType) throws IOException {
+    URL url = new URL(baseUrl + workflowId + "/");
+    HttpURLConnection con = (HttpURLConnection) url.openConnection();
+    try {
+      con.setRequestMethod("POST");
+      con.setConnectTimeout(connectTimeoutMillis);
+      con.setReadTimeout(readTimeoutMillis);
+      con.setRequestProperty("accept", contentType);
+      con.setRequestProperty("Content-type", contentType);
+      con.setFixedLengthStreamingMode(payload.length);
+      con.setDoInput(true);
+      con.setDoOutput(true);
+
+      OutputStream out = con.getOutputStream();
+      out.write(payload);
+      out.close();
+
+      int responseCode = con.getResponseCode();
+      if (responseCode < 200 || responseCode >= 300) {
+        throw new IOException("Report to " + url + " failed with response code " + responseCode);
+      }
+      InputStream in = con.getInputStream();
+      byte[] response = ByteStreams.toByteArray(in);
+      in.close();
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Output: " + new String(response, "UTF-8"));
+      }
+    } finally {
+      con.disconnect();
+    }
+  }
+
+  @Override
+  public void close() {
+  }
+
+  @Override
+  public String toString() {
+    return baseUrl;
+  }
+}
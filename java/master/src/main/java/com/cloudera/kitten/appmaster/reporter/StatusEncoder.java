@@ -0,0 +1,41 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.reporter;
+
+import gr.ntua.cslab.asap.rest.beans.WorkflowDictionary;
+
+/**
+ * Turns the current state of a workflow into the bytes that are sent to a
+ * {@code StatusSink}.
+ */
+public interface StatusEncoder {
+
+  /**
+   * Encodes the current state of the given workflow. Only ever called from the
+   * reporter thread.
+   */
+  byte[] encode(String workflowId, WorkflowDictionary workflow) throws Exception;
+
+  /**
+   * Called after each attempt to send the report returned by the last call to
+   * {@link #encode}, with whether the sink accepted it.
+   */
+  void delivered(boolean success);
+
+  /**
+   * The content type of the encoded reports.
+   */
+  String getContentType();
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.reporter;
+
+import gr.ntua.cslab.asap.rest.beans.WorkflowDictionary;
+
+import java.io.File;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Sends the status of a running workflow to a {@code StatusSink} from a dedicated
+ * background thread, so that a slow or unreachable endpoint never stalls the
+ * application master.
+ *
+ * <p>Callers signal that the workflow changed with {@link #update()}. Updates are
+ * coalesced: at most one report is pending at any time and it is always encoded
+ * from the latest state. Failed deliveries are retried with exponential backoff,
+ * and a report is re-sent every {@code kitten.report.keepalive.ms} even when
+ * nothing changed.
+ */
+public class WorkflowReporter implements Runnable {
+
+  private static final Log LOG = LogFactory.getLog(WorkflowReporter.class);
+
+  // Configuration keys; these can be set from the 'conf' table of the Lua config.
+  public static final String SINK = "kitten.report.sink";
+  public static final String URL = "kitten.report.url";
+  public static final String DIR = "kitten.report.dir";
+  public static final String CONNECT_TIMEOUT = "kitten.report.connect.timeout.ms";
+  public static final String READ_TIMEOUT = "kitten.report.read.timeout.ms";
+  public static final String MAX_RETRIES = "kitten.report.max.retries";
+  public static final String BACKOFF = "kitten.report.backoff.ms";
+  public static final String MAX_BACKOFF = "kitten.report.backoff.max.ms";
+  public static final String KEEPALIVE = "kitten.report.keepalive.ms";
+  public static final String MODE = "kitten.report.mode";
+  // How long the last report may take when the application master shuts down.
+  public static final String CLOSE_TIMEOUT = "kitten.report.close.timeout.ms";
+
+  public static final String DEFAULT_URL = "http://master:80/runningWorkflows/report/";
+
+  private final String workflowId;
+  private final WorkflowDictionary workflow;
+  private final StatusEncoder encoder;
+  private final StatusSink sink;
+  private final int maxRetries;
+  private final long backoffMillis;
+  private final long maxBackoffMillis;
+  private final long keepaliveMillis;
+
+  private final Object lock = new Object();
+  private boolean pending = false;
+  private boolean closed = false;
+  private Thread thread;
+
+  private long sent = 0;
+  private long coalesced = 0;
+  private long failures = 0;
+
+  public WorkflowReporter(String workflowId, WorkflowDictionary workflow, StatusEncoder encoder,
+      StatusSink sink, int maxRetries, long backoffMillis, long maxBackoffMillis,
+      long keepaliveMillis) {
+    this.workflowId = workflowId;
+    this.workflow = workflow;
+    this.encoder = encoder;
+    this.sink = sink;
+    this.maxRetries = maxRetries;
+    this.backoffMillis = backoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+    this.keepaliveMillis = keepaliveMillis;
+  }
+
+  /**
+   * Creates a reporter for the given workflow from the {@code kitten.report.*}
+   * settings in the configuration. {@code kitten.report.sink} may be {@code http}
+   * (the default), {@code file} or {@code none}, and {@code kitten.report.mode} may be
+   * {@code full} (the default, XML snapshots) or {@code delta}.
+   */
+  public static WorkflowReporter create(String workflowId, WorkflowDictionary workflow,
+      Configuration conf) throws Exception {
+    String type = conf.get(SINK, "http");
+    StatusSink sink;
+    if ("none".equals(type)) {
+      sink = null;
+    } else if ("file".equals(type)) {
+      sink = new FileStatusSink(new File(conf.get(DIR, System.getProperty("java.io.tmpdir"))));
+    } else if ("http".equals(type)) {
+      sink = new HttpStatusSink(conf.get(URL, DEFAULT_URL),
+          conf.getInt(CONNECT_TIMEOUT, 5000), conf.getInt(READ_TIMEOUT, 10000));
+    } else {
+      throw new IllegalArgumentException("Unknown report sink: " + type);
+    }
+    String mode = conf.get(MODE, "full");
+    StatusEncoder encoder;
+    if ("delta".equals(mode)) {
+      encoder = new DeltaStatusEncoder();
+    } else if ("full".equals(mode)) {
+      encoder = new XmlStatusEncoder();
+    } else {
+      throw new IllegalArgumentException("Unknown report mode: " + mode);
+    }
+    return new WorkflowReporter(workflowId, workflow, encoder, sink,
+        conf.getInt(MAX_RETRIES, 5), conf.getLong(BACKOFF, 500L),
+        conf.getLong(MAX_BACKOFF, 30000L), conf.getLong(KEEPALIVE, 30000L));
+  }
+
+  public void start() {
+    if (sink == null) {
+      LOG.info("Workflow status reporting is disabled");
+      return;
+    }
+    LOG.info("Reporting status of workflow " + workflowId + " to " + sink);
+    thread = new Thread(this, "WorkflowReporter");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Signals that the workflow changed. Never blocks on the sink.
+   */
+  public void update() {
+    synchronized (lock) {
+      if (pending) {
+        coalesced++;
+      }
+      pending = true;
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * Sends one last report of the current state and stops the reporter thread,
+   * waiting at most {@code timeoutMillis} for it to finish.
+   */
+  public void close(long timeoutMillis) {
+    if (thread == null) {
+      return;
+    }
+    synchronized (lock) {
+      pending = true;
+      closed = true;
+      lock.notifyAll();
+    }
+    try {
+      thread.join(timeoutMillis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    sink.close();
+    LOG.info(this);
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (true) {
+        synchronized (lock) {
+          if (!pending && !closed) {
+            lock.wait(keepaliveMillis);
+          }
+          if (!pending && closed) {
+            return;
+          }
+          pending = false;
+        }
+        deliver();
+      }
+    } catch (InterruptedException e) {
+      LOG.info("Workflow reporter interrupted");
+    }
+  }
+
+  private void deliver() throws InterruptedException {
+    long backoff = backoffMillis;
+    for (int attempt = 0; ; attempt++) {
+      try {
+        byte[] payload = encoder.encode(workflowId, workflow);
+        sink.send(workflowId, payload, encoder.getContentType());
+        encoder.delivered(true);
+        synchronized (lock) {
+          sent++;
+        }
+        return;
+      } catch (Exception e) {
+        encoder.delivered(false);
+        synchronized (lock) {
+          failures++;
+          if (attempt >= maxRetries || closed) {
+            LOG.warn("Giving up on workflow status report after " + (attempt + 1) + " attempt(s)", e);
+            return;
+          }
+          LOG.info("Workflow status report failed, retrying in " + backoff + " ms: " + e);
+          // Updates must not cut the backoff short; only closing does.
+          long until = System.currentTimeMillis() + backoff;
+          for (long left = backoff; left > 0 && !closed;
+              left = until - System.currentTimeMillis()) {
+            lock.wait(left);
+          }
+        }
+        backoff = Math.min(backoff * 2, maxBackoffMillis);
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    synchronized (lock) {
+      return String.format("Workflow reports: %d sent, %d coalesced, %d failed attempt(s)",
+          sent, coalesced, failures);
+    }
+  }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.reporter;
+
+import gr.ntua.cslab.asap.rest.beans.WorkflowDictionary;
+
+import java.io.ByteArrayOutputStream;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+/**
+ * Encodes the whole {@code WorkflowDictionary} as XML, which is what the ASAP server's
+ * report endpoint expects.
+ */
+public class XmlStatusEncoder implements StatusEncoder {
+
+  private static JAXBContext context;
+
+  private final Marshaller marshaller;
+
+  public XmlStatusEncoder() throws JAXBException {
+    this.marshaller = getContext().createMarshaller();
+  }
+
+  private static synchronized JAXBContext getContext() throws JAXBException {
+    if (context == null) {
+      context = JAXBContext.newInstance(WorkflowDictionary.class);
+    }
+    return context;
+  }
+
+  @Override
+  public byte[] encode(String workflowId, WorkflowDictionary workflow) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    marshaller.marshal(workflow, out);
+    return out.toByteArray();
+  }
+
+  @Override
+  public void delivered(boolean success) {
+    // Every report is a full snapshot, so there is nothing to track.
+  }
+
+  @Override
+  public String getContentType() {
+    return "application/octet-stream";
+  }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.service;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.api.records.Priority;
+import org.apache.hadoop.yarn.api.records.Resource;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Maps the containers handed out by the ResourceManager to the {@code ContainerTracker}
+ * that asked for them.
+ *
+ * <p>Trackers are indexed by request priority and by resource profile, so that an
+ * allocated container is usually resolved with a single lookup. Containers whose
+ * resource was rounded up by the scheduler (e.g., to its minimum allocation increment)
+ * fall back to a best-fit search over the trackers that are still waiting for containers
+ * at the same priority. A container is never handed to a tracker at another priority:
+ * that tracker would withdraw one of its own asks, while the ask that brought the
+ * container in stayed outstanding and the ResourceManager allocated for it again.
+ */
+public class AllocationIndex {
+
+  private final Map<Integer, List<ContainerTracker>> byPriority = Maps.newHashMap();
+  private final Map<Profile, List<ContainerTracker>> byProfile = Maps.newHashMap();
+
+  public synchronized void register(ContainerTracker tracker) {
+    add(byPriority, tracker.getPriority().getPriority(), tracker);
+    add(byProfile, new Profile(tracker.getPriority(), tracker.getResource()), tracker);
+  }
+
+  public synchronized void unregister(ContainerTracker tracker) {
+    remove(byPriority, tracker.getPriority().getPriority(), tracker);
+    remove(byProfile, new Profile(tracker.getPriority(), tracker.getResource()), tracker);
+  }
+
+  /**
+   * Returns the tracker that should receive the given container, or null if no
+   * tracker registered at the container's priority needs a container of that size.
+   */
+  public synchronized ContainerTracker match(Container c) {
+    ContainerTracker tracker = firstNeeding(
+        byProfile.get(new Profile(c.getPriority(), c.getResource())), c);
+    if (tracker == null) {
+      tracker = bestFit(c);
+    }
+    return tracker;
+  }
+
+  public synchronized boolean isEmpty() {
+    return byPriority.isEmpty();
+  }
+
+  private ContainerTracker firstNeeding(List<ContainerTracker> candidates, Container c) {
+    if (candidates == null) {
+      return null;
+    }
+    for (ContainerTracker tracker : candidates) {
+      if (tracker.needsContainers() && tracker.fits(c)) {
+        return tracker;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Picks the waiting tracker at the container's priority that leaves the least
+   * memory, and then the fewest cores, unused in the given container.
+   */
+  private ContainerTracker bestFit(Container c) {
+    List<ContainerTracker> candidates = byPriority.get(c.getPriority().getPriority());
+    if (candidates == null) {
+      return null;
+    }
+    ContainerTracker best = null;
+    long bestWaste = Long.MAX_VALUE;
+    for (ContainerTracker tracker : candidates) {
+      if (!tracker.needsContainers() || !tracker.fits(c)) {
+        continue;
+      }
+      Resource r = tracker.getResource();
+      long waste = ((long) (c.getResource().getMemory() - r.getMemory()) << 16)
+          + (c.getResource().getVirtualCores() - r.getVirtualCores());
+      if (waste < bestWaste) {
+        best = tracker;
+        bestWaste = waste;
+      }
+    }
+    return best;
+  }
+
+  private static <K> void add(Map<K, List<ContainerTracker>> index, K key,
+      ContainerTracker tracker) {
+    List<ContainerTracker> trackers = index.get(key);
+    if (trackers == null) {
+      trackers = Lists.newArrayList();
+      index.put(key, trackers);
+    }
+    if (!trackers.contains(tracker)) {
+      trackers.add(tracker);
+    }
+  }
+
+  private static <K> void remove(Map<K, List<ContainerTracker>> index, K key,
+      ContainerTracker tracker) {
+    List<ContainerTracker> trackers = index.get(key);
+    if (trackers != null) {
+      Iterator<ContainerTracker> iter = trackers.iterator();
+      while (iter.hasNext()) {
+        if (iter.next() == tracker) {
+          iter.remove();
+        }
+      }
+      if (trackers.isEmpty()) {
+        index.remove(key);
+      }
+    }
+  }
+
+  /**
+   * The (priority, memory, cores) triple that an allocated container is matched on.
+   */
+  private static class Profile {
+    private final int priority;
+    private final int memory;
+    private final int cores;
+
+    public Profile(Priority priority, Resource resource) {
+      this.priority = priority.getPriority();
+      this.memory = resource.getMemory();
+      this.cores = resource.getVirtualCores();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Profile)) {
+        return false;
+      }
+      Profile p = (Profile) other;
+      return priority == p.priority && memory == p.memory && cores == p.cores;
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(priority, memory, cores);
+    }
+  }
+}
@@ -16,11 +16,13 @@ package com.cloudera.kitten.appmaster.service;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.cloudera.kitten.ContainerLaunchContextFactory;
@@ -50,10 +52,10 @@ import com.cloudera.kitten.appmaster.ApplicationMasterParameters;
 import com.cloudera.kitten.appmaster.ApplicationMasterService;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Maps;
-import com.google.common.util.concurrent.AbstractScheduledService;
+import com.google.common.util.concurrent.AbstractIdleService;
 
 public class ApplicationMasterServiceImpl extends
-    AbstractScheduledService implements ApplicationMasterService,
+    AbstractIdleService implements ApplicationMasterService,
     AMRMClientAsync.CallbackHandler {
 
   private static final Log LOG = LogFactory.getLog(ApplicationMasterServiceImpl.class);
@@ -63,11 +65,17 @@ public class ApplicationMasterServiceImpl extends
   private AtomicInteger totalRequested = new AtomicInteger();
   private AtomicInteger totalCompleted = new AtomicInteger();
   private final AtomicInteger totalFailures = new AtomicInteger();
+  // Containers that failed to start, and were already counted as completed and failed.
+  private final Set<ContainerId> startFailures =
+      Collections.newSetFromMap(new ConcurrentHashMap<ContainerId, Boolean>());
   private final List<ContainerTracker> trackers = Lists.newArrayList();
 
   private AMRMClientAsync resourceManager;
+  private SurplusContainerHandler surplus;
+  private HeartbeatController heartbeat;
   private boolean hasRunningContainers = false;
   private Throwable throwable;
+  private final CountDownLatch completion = new CountDownLatch(1);
 
   public ApplicationMasterServiceImpl(ApplicationMasterParameters parameters, Configuration conf) {
     this.parameters = Preconditions.checkNotNull(parameters);
@@ -86,9 +94,12 @@ public class ApplicationMasterServiceImpl extends
   
   @Override
   protected void startUp() throws IOException {
-    this.resourceManager = AMRMClientAsync.createAMRMClientAsync(1000, this);
+    this.resourceManager = AMRMClientAsync.createAMRMClientAsync(
+        HeartbeatController.getMinInterval(conf), this);
     this.resourceManager.init(conf);
     this.resourceManager.start();
+    this.heartbeat = new HeartbeatController(resourceManager, conf);
+    this.surplus = new SurplusContainerHandler(resourceManager);
 
     RegisterApplicationMasterResponse registration;
     try {
@@ -110,6 +121,19 @@ public class ApplicationMasterServiceImpl extends
       trackers.add(tracker);
     }
     this.hasRunningContainers = true;
+    checkCompletion();
+  }
+
+  @Override
+  public void awaitCompletion() throws InterruptedException {
+    completion.await();
+  }
+
+  private void checkCompletion() {
+    if (totalFailures.get() > parameters.getAllowedFailures() ||
+        totalCompleted.get() == totalRequested.get()) {
+      completion.countDown();
+    }
   }
   
   @Override
@@ -117,6 +141,7 @@ public class ApplicationMasterServiceImpl extends
     // Stop the containers in the case that we're finishing because of a timeout.
     LOG.info("Stopping trackers");
     this.hasRunningContainers = false;
+    completion.countDown();
 
     for (ContainerTracker tracker : trackers) {
       if (tracker.hasRunningContainers()) {
@@ -134,6 +159,8 @@ public class ApplicationMasterServiceImpl extends
     } else {
       status = FinalApplicationStatus.SUCCEEDED;
     }
+    LOG.info(surplus);
+    LOG.info(heartbeat);
     LOG.info("Sending finish request with status = " + status);
     try {
       resourceManager.unregisterApplicationMaster(status, message, null);
@@ -142,24 +169,15 @@ public class ApplicationMasterServiceImpl extends
     }
   }
 
-  @Override
-  protected Scheduler scheduler() {
-    return Scheduler.newFixedRateSchedule(0, 1, TimeUnit.SECONDS);
-  }
-  
-  @Override
-  protected void runOneIteration() throws Exception {
-    if (totalFailures.get() > parameters.getAllowedFailures() ||
-        totalCompleted.get() == totalRequested.get()) {
-      stop();
-    }
-  }
-
   // AMRMClientHandler methods
   @Override
   public void onContainersCompleted(List<ContainerStatus> containerStatuses) {
     LOG.info(containerStatuses.size() + " containers have completed");
     for (ContainerStatus status : containerStatuses) {
+      if (startFailures.remove(status.getContainerId())) {
+        // counted when it failed to start, whatever the RM reports for it now
+        continue;
+      }
       int exitStatus = status.getExitStatus();
       if (0 != exitStatus) {
         // container failed
@@ -177,6 +195,7 @@ public class ApplicationMasterServiceImpl extends
         LOG.info("Container id = " + status.getContainerId() + " completed successfully");
       }
     }
+    checkCompletion();
   }
 
   @Override
@@ -186,7 +205,7 @@ public class ApplicationMasterServiceImpl extends
     for (ContainerTracker tracker : trackers) {
       if (tracker.needsContainers()) {
         for (Container allocated : allocatedContainers) {
-          if (!assigned.contains(allocated) && tracker.matches(allocated)) {
+          if (!assigned.contains(allocated) && tracker.needsContainers() && tracker.matches(allocated)) {
             tracker.launchContainer(allocated);
             assigned.add(allocated);
           }
@@ -194,9 +213,14 @@ public class ApplicationMasterServiceImpl extends
       }
     }
     if (assigned.size() < allocatedContainers.size()) {
-      LOG.error(String.format("Not all containers were allocated (%d out of %d)", assigned.size(),
+      LOG.warn(String.format("Not all containers were allocated (%d out of %d)", assigned.size(),
           allocatedContainers.size()));
-      stop();
+      for (Container allocated : allocatedContainers) {
+        if (!assigned.contains(allocated)) {
+          surplus.release(allocated);
+        }
+      }
+      heartbeat.activity();
     }
   }
 
@@ -213,10 +237,15 @@ public class ApplicationMasterServiceImpl extends
   @Override
   public float getProgress() {
     int num = 0, den = 0;
+    boolean pending = false;
     for (ContainerTracker tracker : trackers) {
+      pending |= tracker.needsContainers();
       num += tracker.completed.get();
       den += tracker.parameters.getNumInstances();
     }
+    if (heartbeat != null) {
+      heartbeat.tick(pending);
+    }
     if (den == 0) {
       return 0.0f;
     }
@@ -240,7 +269,11 @@ public class ApplicationMasterServiceImpl extends
     private NMClientAsync nodeManager;
     private Resource resource;
     private Priority priority;
+    private ContainerLaunchContextFactory factory;
     private ContainerLaunchContext ctxt;
+    private final AtomicInteger nextInstance = new AtomicInteger();
+    private AMRMClient.ContainerRequest containerRequest;
+    private long requestedAt;
 
     public ContainerTracker(ContainerLaunchParameters parameters) {
       this.parameters = parameters;
@@ -251,10 +284,11 @@ public class ApplicationMasterServiceImpl extends
       nodeManager.init(conf);
       nodeManager.start();
 
+      this.factory = factory;
       this.ctxt = factory.create(parameters);
       this.resource = factory.createResource(parameters);
       this.priority = factory.createPriority(parameters.getPriority());
-      AMRMClient.ContainerRequest containerRequest = new AMRMClient.ContainerRequest(
+      this.containerRequest = new AMRMClient.ContainerRequest(
           resource,
           null, // nodes
           null, // racks
@@ -263,6 +297,8 @@ public class ApplicationMasterServiceImpl extends
       for (int j = 0; j < numInstances; j++) {
         resourceManager.addContainerRequest(containerRequest);
       }
+      requestedAt = System.currentTimeMillis();
+      heartbeat.activity();
       needed.set(numInstances);
       totalRequested.addAndGet(numInstances);
     }
@@ -297,6 +333,11 @@ public class ApplicationMasterServiceImpl extends
       containers.remove(containerId);
       completed.incrementAndGet();
       failed.incrementAndGet();
+      // Count the failure here, and skip the container when the RM reports it completed.
+      startFailures.add(containerId);
+      totalCompleted.incrementAndGet();
+      totalFailures.incrementAndGet();
+      checkCompletion();
     }
 
     @Override
@@ -321,8 +362,23 @@ public class ApplicationMasterServiceImpl extends
     public void launchContainer(Container c) {
       LOG.info("Launching container id = " + c.getId() + " on node = " + c.getNodeId());
       needed.decrementAndGet();
+      heartbeat.allocated(System.currentTimeMillis() - requestedAt);
+      // Keep the AMRMClient's outstanding asks in line with what the RM still owes us.
+      resourceManager.removeContainerRequest(containerRequest);
       containers.put(c.getId(), c);
-      nodeManager.startContainerAsync(c, ctxt);
+      int instance = nextInstance.getAndIncrement();
+      ContainerLaunchContext instanceCtxt;
+      try {
+        // Values the configuration computes with per_instance(f).
+        instanceCtxt = factory.createInstance(ctxt,
+            parameters.getInstanceEnvironment(instance, parameters.getNumInstances()),
+            parameters.getInstanceLocalResources(instance, parameters.getNumInstances()));
+      } catch (IOException e) {
+        resourceManager.releaseAssignedContainer(c.getId());
+        onStartContainerError(c.getId(), e);
+        return;
+      }
+      nodeManager.startContainerAsync(c, instanceCtxt);
     }
 
     public boolean hasRunningContainers() {
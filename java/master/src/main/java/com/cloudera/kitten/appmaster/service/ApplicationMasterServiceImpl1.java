@@ -22,6 +22,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -69,6 +70,7 @@ public class ApplicationMasterServiceImpl1 extends
   private AMRMClientAsync resourceManager;
   private boolean hasRunningContainers = false;
   private Throwable throwable;
+  private final CountDownLatch completion = new CountDownLatch(1);
 
 protected ContainerLaunchContextFactory factory;
 
@@ -125,11 +127,17 @@ protected ContainerLaunchContextFactory factory;
     this.hasRunningContainers = true;
   }
   
+  @Override
+  public void awaitCompletion() throws InterruptedException {
+    completion.await();
+  }
+
   @Override
   protected void shutDown() {
     // Stop the containers in the case that we're finishing because of a timeout.
     LOG.info("Stopping trackers");
     this.hasRunningContainers = false;
+    completion.countDown();
 
     for (ContainerTracker tracker : trackers) {
       if (tracker.hasRunningContainers()) {
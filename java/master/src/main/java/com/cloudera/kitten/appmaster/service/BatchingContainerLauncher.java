@@ -0,0 +1,278 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.service;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.ContainerManagementProtocol;
+import org.apache.hadoop.yarn.api.protocolrecords.GetContainerStatusesRequest;
+import org.apache.hadoop.yarn.api.protocolrecords.GetContainerStatusesResponse;
+import org.apache.hadoop.yarn.api.protocolrecords.StartContainerRequest;
+import org.apache.hadoop.yarn.api.protocolrecords.StartContainersRequest;
+import org.apache.hadoop.yarn.api.protocolrecords.StartContainersResponse;
+import org.apache.hadoop.yarn.api.protocolrecords.StopContainersRequest;
+import org.apache.hadoop.yarn.api.protocolrecords.StopContainersResponse;
+import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.apache.hadoop.yarn.api.records.ContainerLaunchContext;
+import org.apache.hadoop.yarn.api.records.ContainerStatus;
+import org.apache.hadoop.yarn.api.records.NodeId;
+import org.apache.hadoop.yarn.api.records.SerializedException;
+import org.apache.hadoop.yarn.client.api.async.NMClientAsync;
+import org.apache.hadoop.yarn.client.api.impl.ContainerManagementProtocolProxy;
+import org.apache.hadoop.yarn.client.api.impl.ContainerManagementProtocolProxy.ContainerManagementProtocolProxyData;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Talks to the NodeManagers on behalf of a {@link SharedNMClient}.
+ *
+ * <p>Container starts are held for a short window and grouped by {@code NodeId}, so
+ * that the containers the ResourceManager hands out in one heartbeat are started with
+ * one {@code startContainers} call per node rather than one call per container. The
+ * per-container results of every call are reported to the callback handler exactly as
+ * {@code NMClientAsync} would report them.
+ */
+public class BatchingContainerLauncher {
+
+  private static final Log LOG = LogFactory.getLog(BatchingContainerLauncher.class);
+
+  // How long a start request waits for others to the same node, in milliseconds.
+  public static final String BATCH_WINDOW = "kitten.nm.batch.window";
+  // The most containers started on one node with a single call.
+  public static final String MAX_BATCH_SIZE = "kitten.nm.batch.max";
+
+  private final NMClientAsync.CallbackHandler callbacks;
+  private final ContainerManagementProtocolProxy proxies;
+  private final ScheduledExecutorService executor;
+  private final long window;
+  private final int maxBatchSize;
+
+  private final Map<NodeId, List<Launch>> pending = Maps.newHashMap();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong launches = new AtomicLong();
+
+  public BatchingContainerLauncher(Configuration conf, int threads,
+      NMClientAsync.CallbackHandler callbacks) {
+    this.callbacks = callbacks;
+    this.proxies = new ContainerManagementProtocolProxy(conf);
+    this.executor = new ScheduledThreadPoolExecutor(threads,
+        new ThreadFactoryBuilder().setNameFormat("ContainerLauncher #%d").setDaemon(true).build());
+    this.window = conf.getLong(BATCH_WINDOW, 20L);
+    this.maxBatchSize = conf.getInt(MAX_BATCH_SIZE, 100);
+  }
+
+  public void startContainer(Container c, ContainerLaunchContext ctxt) {
+    final NodeId node = c.getNodeId();
+    List<Launch> ready = null;
+    synchronized (pending) {
+      List<Launch> batch = pending.get(node);
+      if (batch == null) {
+        batch = Lists.newArrayList();
+        pending.put(node, batch);
+        executor.schedule(new Runnable() {
+          @Override
+          public void run() {
+            List<Launch> launches;
+            synchronized (pending) {
+              launches = pending.remove(node);
+            }
+            if (launches != null) {
+              start(node, launches);
+            }
+          }
+        }, window, TimeUnit.MILLISECONDS);
+      }
+      batch.add(new Launch(c, ctxt));
+      if (batch.size() >= maxBatchSize) {
+        ready = pending.remove(node);
+      }
+    }
+    if (ready != null) {
+      final List<Launch> launches = ready;
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          start(node, launches);
+        }
+      });
+    }
+  }
+
+  public void stopContainer(final ContainerId containerId, final NodeId nodeId) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        stop(containerId, nodeId);
+      }
+    });
+  }
+
+  public void getContainerStatus(final ContainerId containerId, final NodeId nodeId) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        status(containerId, nodeId);
+      }
+    });
+  }
+
+  /**
+   * Waits up to {@code timeout} milliseconds for outstanding requests to complete and
+   * closes the connections to the NodeManagers.
+   */
+  public void stop(long timeout) {
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)) {
+        LOG.warn("Timed out waiting for NodeManager requests to complete");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    proxies.stopAllProxies();
+  }
+
+  public long getBatchCount() {
+    return batches.get();
+  }
+
+  public long getLaunchCount() {
+    return launches.get();
+  }
+
+  private void start(NodeId node, List<Launch> batch) {
+    List<StartContainerRequest> requests = Lists.newArrayListWithCapacity(batch.size());
+    for (Launch l : batch) {
+      requests.add(StartContainerRequest.newInstance(l.ctxt, l.container.getContainerToken()));
+    }
+    batches.incrementAndGet();
+    launches.addAndGet(batch.size());
+    LOG.info("Starting " + batch.size() + " container(s) on node = " + node);
+
+    ContainerManagementProtocolProxyData proxy = null;
+    StartContainersResponse response;
+    try {
+      proxy = proxies.getProxy(node.toString(), batch.get(0).container.getId());
+      response = proxy.getContainerManagementProtocol().startContainers(
+          StartContainersRequest.newInstance(requests));
+    } catch (Throwable t) {
+      for (Launch l : batch) {
+        callbacks.onStartContainerError(l.container.getId(), t);
+      }
+      return;
+    } finally {
+      if (proxy != null) {
+        proxies.mayBeCloseProxy(proxy);
+      }
+    }
+
+    Map<ContainerId, SerializedException> failed = failures(response.getFailedRequests());
+    for (Launch l : batch) {
+      ContainerId id = l.container.getId();
+      if (failed.containsKey(id)) {
+        callbacks.onStartContainerError(id, failed.get(id).deSerialize());
+      } else if (response.getSuccessfullyStartedContainers().contains(id)) {
+        callbacks.onContainerStarted(id, response.getAllServicesMetaData());
+      } else {
+        callbacks.onStartContainerError(id,
+            new IllegalStateException("No start result returned for container " + id));
+      }
+    }
+  }
+
+  private void stop(ContainerId containerId, NodeId node) {
+    ContainerManagementProtocolProxyData proxy = null;
+    StopContainersResponse response;
+    try {
+      proxy = proxies.getProxy(node.toString(), containerId);
+      response = proxy.getContainerManagementProtocol().stopContainers(
+          StopContainersRequest.newInstance(Collections.singletonList(containerId)));
+    } catch (Throwable t) {
+      callbacks.onStopContainerError(containerId, t);
+      return;
+    } finally {
+      if (proxy != null) {
+        proxies.mayBeCloseProxy(proxy);
+      }
+    }
+    SerializedException e = failures(response.getFailedRequests()).get(containerId);
+    if (e != null) {
+      callbacks.onStopContainerError(containerId, e.deSerialize());
+    } else {
+      callbacks.onContainerStopped(containerId);
+    }
+  }
+
+  private void status(ContainerId containerId, NodeId node) {
+    ContainerManagementProtocolProxyData proxy = null;
+    GetContainerStatusesResponse response;
+    try {
+      proxy = proxies.getProxy(node.toString(), containerId);
+      ContainerManagementProtocol protocol = proxy.getContainerManagementProtocol();
+      response = protocol.getContainerStatuses(
+          GetContainerStatusesRequest.newInstance(Collections.singletonList(containerId)));
+    } catch (Throwable t) {
+      callbacks.onGetContainerStatusError(containerId, t);
+      return;
+    } finally {
+      if (proxy != null) {
+        proxies.mayBeCloseProxy(proxy);
+      }
+    }
+    SerializedException e = failures(response.getFailedRequests()).get(containerId);
+    if (e != null) {
+      callbacks.onGetContainerStatusError(containerId, e.deSerialize());
+      return;
+    }
+    for (ContainerStatus status : response.getContainerStatuses()) {
+      if (containerId.equals(status.getContainerId())) {
+        callbacks.onContainerStatusReceived(containerId, status);
+        return;
+      }
+    }
+    callbacks.onGetContainerStatusError(containerId,
+        new IllegalStateException("No status returned for container " + containerId));
+  }
+
+  private static Map<ContainerId, SerializedException> failures(
+      Map<ContainerId, SerializedException> failed) {
+    if (failed == null) {
+      return Collections.emptyMap();
+    }
+    return failed;
+  }
+
+  private static class Launch {
+    private final Container container;
+    private final ContainerLaunchContext ctxt;
+
+    public Launch(Container container, ContainerLaunchContext ctxt) {
+      this.container = container;
+      this.ctxt = ctxt;
+    }
+  }
+}
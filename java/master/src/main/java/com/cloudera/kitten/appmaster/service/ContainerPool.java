@@ -0,0 +1,482 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.ApplicationConstants;
+import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.apache.hadoop.yarn.api.records.ContainerLaunchContext;
+import org.apache.hadoop.yarn.api.records.ContainerStatus;
+import org.apache.hadoop.yarn.api.records.LocalResource;
+import org.apache.hadoop.yarn.api.records.LocalResourceType;
+import org.apache.hadoop.yarn.client.api.async.NMClientAsync;
+import org.apache.hadoop.yarn.util.ConverterUtils;
+
+import com.cloudera.kitten.lua.LuaFields;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Keeps the containers of finished operator instances alive and reuses them for the
+ * instances of later operators that ask for a container of the same (or a smaller) size.
+ *
+ * <p>When reuse is enabled, each allocated container runs a small agent script instead
+ * of the operator itself. The agent asks the application master for work over HTTP,
+ * runs the task script it is given and reports its exit status back. A task script
+ * localizes the resources of an operator instance with {@code hadoop fs}, sets up its
+ * environment and runs its commands, which is what the NodeManager would otherwise
+ * have done for a fresh container. The agent proves which container it runs in with a
+ * secret that only its launch environment holds. Agents that stay idle for longer than
+ * {@link #IDLE_TIMEOUT} are stopped and their containers handed back to the cluster.
+ */
+public class ContainerPool implements NMClientAsync.CallbackHandler {
+
+  private static final Log LOG = LogFactory.getLog(ContainerPool.class);
+
+  // Whether to run operator instances in reusable containers.
+  public static final String ENABLED = "kitten.reuse.enabled";
+  // How long an agent may wait for a new task before it is stopped, in milliseconds.
+  public static final String IDLE_TIMEOUT = "kitten.reuse.idle.timeout";
+  // The hadoop command that task scripts localize their resources with.
+  public static final String HADOOP = "kitten.reuse.hadoop";
+
+  private static final String AGENT_SCRIPT = "kitten-agent.sh";
+  // How long an agent's request for a task is held open, in milliseconds.
+  private static final long POLL_TIMEOUT = 20000L;
+
+  private enum State { BUSY, IDLE, OFFERED }
+
+  private final WorkflowService service;
+  private final boolean enabled;
+  private final long idleTimeout;
+  private final String hadoop;
+  private final Map<ContainerId, Agent> agents = Maps.newHashMap();
+
+  private String url;
+
+  private final AtomicInteger launched = new AtomicInteger();
+  private final AtomicInteger tasks = new AtomicInteger();
+  private final AtomicInteger reused = new AtomicInteger();
+  private final AtomicInteger expired = new AtomicInteger();
+
+  public ContainerPool(WorkflowService service, Configuration conf) {
+    this.service = service;
+    this.enabled = conf.getBoolean(ENABLED, false);
+    this.idleTimeout = conf.getLong(IDLE_TIMEOUT, 10000L);
+    this.hadoop = conf.get(HADOOP, "/opt/hadoop-2.6.0/bin/hadoop");
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public void start(ControlServer control) throws IOException {
+    if (!enabled) {
+      return;
+    }
+    control.addHandler("/" + AGENT_SCRIPT, new AgentScriptHandler());
+    control.addHandler("/task", new TaskHandler());
+    control.addHandler("/done", new DoneHandler());
+    url = control.getUrl();
+    LOG.info("Serving reusable containers at " + url);
+
+    long period = Math.max(100L, idleTimeout / 4);
+    service.timer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        expireIdleAgents();
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Runs an operator instance, described by its launch context, in the given container
+   * on behalf of the given tracker. Starts an agent in the container if it does not
+   * already run one.
+   */
+  public synchronized void launch(Container c, ContainerTracker tracker,
+      ContainerLaunchContext ctx) {
+    Agent agent = agents.get(c.getId());
+    if (agent == null) {
+      agent = new Agent(c);
+      agents.put(c.getId(), agent);
+      agent.assign(tracker, taskScript(ctx, tracker, tasks.incrementAndGet()));
+      launched.incrementAndGet();
+      service.nodeManager.startContainer(c, agentContext(c, ctx), this);
+    } else {
+      LOG.info("Reusing container id = " + c.getId() + " for operator: " + tracker.params.getName());
+      agent.assign(tracker, taskScript(ctx, tracker, tasks.incrementAndGet()));
+      reused.incrementAndGet();
+      service.assigned(c, tracker);
+    }
+  }
+
+  /**
+   * Offers the idle agents to the trackers that are waiting for containers. The offer
+   * is made from the timer thread, so that it can be called with a tracker locked.
+   */
+  public void offerIdle() {
+    if (!enabled) {
+      return;
+    }
+    service.timer.execute(new Runnable() {
+      @Override
+      public void run() {
+        for (Agent agent : reserveIdle()) {
+          offer(agent);
+        }
+      }
+    });
+  }
+
+  /**
+   * Forgets the agent running in a container that has finished.
+   */
+  public synchronized void containerCompleted(ContainerId containerId) {
+    Agent agent = agents.remove(containerId);
+    if (agent != null) {
+      agent.stop();
+    }
+  }
+
+  public void stop() {
+    if (!enabled) {
+      return;
+    }
+    List<Agent> running;
+    synchronized (this) {
+      running = Lists.newArrayList(agents.values());
+      agents.clear();
+    }
+    for (Agent agent : running) {
+      agent.stop();
+      service.nodeManager.stopContainer(agent.container.getId(),
+          agent.container.getNodeId(), this);
+    }
+  }
+
+  private synchronized List<Agent> reserveIdle() {
+    List<Agent> idle = Lists.newArrayList();
+    for (Agent agent : agents.values()) {
+      if (agent.state == State.IDLE) {
+        agent.state = State.OFFERED;
+        idle.add(agent);
+      }
+    }
+    return idle;
+  }
+
+  /**
+   * Hands an idle agent to the tracker that the ResourceManager would have given its
+   * container to, and puts it back in the pool if no tracker wants it.
+   */
+  private void offer(Agent agent) {
+    ContainerTracker tracker = service.allocationIndex.match(agent.container);
+    if (tracker == null || !tracker.launchContainer(agent.container)) {
+      synchronized (this) {
+        if (agent.state == State.OFFERED) {
+          agent.state = State.IDLE;
+        }
+      }
+    }
+  }
+
+  private void expireIdleAgents() {
+    long now = System.currentTimeMillis();
+    List<Agent> expiring = Lists.newArrayList();
+    synchronized (this) {
+      for (Agent agent : agents.values()) {
+        if (agent.state == State.IDLE && now - agent.idleSince > idleTimeout) {
+          expiring.add(agent);
+        }
+      }
+      for (Agent agent : expiring) {
+        agents.remove(agent.container.getId());
+      }
+    }
+    for (Agent agent : expiring) {
+      LOG.info("Releasing idle container id = " + agent.container.getId());
+      agent.stop();
+      expired.incrementAndGet();
+      service.surplus.held(agent.container, agent.idleSince);
+      service.nodeManager.stopContainer(agent.container.getId(),
+          agent.container.getNodeId(), this);
+    }
+  }
+
+  private void taskCompleted(Agent agent, int exitStatus) {
+    ContainerTracker owner;
+    synchronized (this) {
+      owner = agent.owner;
+      if (agent.state != State.BUSY || owner == null) {
+        return;
+      }
+      // Stays busy until the completion is settled, so that the agent is not handed
+      // to another tracker while the container still counts as the owner's.
+      agent.owner = null;
+    }
+    LOG.info("Task in container id = " + agent.container.getId() + " of operator: "
+        + owner.params.getName() + " exited with status " + exitStatus);
+    service.taskCompleted(agent.container.getId(), exitStatus);
+    synchronized (this) {
+      if (agent.state == State.BUSY && agent.owner == null) {
+        agent.state = State.IDLE;
+        agent.idleSince = System.currentTimeMillis();
+      }
+    }
+    offerIdle();
+  }
+
+  private ContainerLaunchContext agentContext(Container c, ContainerLaunchContext task) {
+    List<String> commands = Lists.newArrayList();
+    commands.add("curl -s -f -o " + AGENT_SCRIPT + " " + url + "/" + AGENT_SCRIPT
+        + " && /bin/bash " + AGENT_SCRIPT + " " + url + " " + c.getId()
+        + " 1> " + ApplicationConstants.LOG_DIR_EXPANSION_VAR + "/agent.stdout"
+        + " 2> " + ApplicationConstants.LOG_DIR_EXPANSION_VAR + "/agent.stderr");
+    ByteBuffer tokens = task.getTokens() == null ? null : task.getTokens().duplicate();
+    Map<String, String> env = Collections.singletonMap(LuaFields.KITTEN_CONTROL_TOKEN,
+        service.control.getSecret(c.getId()));
+    return ContainerLaunchContext.newInstance(Collections.<String, LocalResource>emptyMap(),
+        env, commands, null, tokens, null);
+  }
+
+  /**
+   * Writes out the shell script that does for an agent what the NodeManager does when
+   * it launches the given context in a new container. The logs of each task go to files
+   * of their own, named after its operator and its number {@code n} in the pool, since
+   * the container's log directory outlives the task.
+   */
+  private String taskScript(ContainerLaunchContext ctx, ContainerTracker tracker, int n) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("#!/bin/bash\n");
+    sb.append("LOG_DIR=${LOG_DIRS%%,*}\n");
+    sb.append("TASK_DIR=$(mktemp -d \"$PWD/task.XXXXXX\")\n");
+    sb.append("cd \"$TASK_DIR\"\n");
+    for (Map.Entry<String, LocalResource> e : ctx.getLocalResources().entrySet()) {
+      LocalResource r = e.getValue();
+      String path;
+      try {
+        path = ConverterUtils.getPathFromYarnURL(r.getResource()).toString();
+      } catch (Exception ex) {
+        throw new IllegalArgumentException("Invalid resource: " + e.getKey(), ex);
+      }
+      sb.append(hadoop).append(" fs -copyToLocal ").append(quote(path)).append(' ')
+          .append(quote(e.getKey())).append(" || exit 1\n");
+      if (r.getType() == LocalResourceType.ARCHIVE) {
+        sb.append("mv ").append(quote(e.getKey())).append(" .archive && mkdir ")
+            .append(quote(e.getKey())).append(" && (cd ").append(quote(e.getKey()))
+            .append(" && (unzip -q ../.archive || tar xf ../.archive)) && rm .archive\n");
+      } else {
+        sb.append("chmod -R u+x ").append(quote(e.getKey())).append('\n');
+      }
+    }
+    for (Map.Entry<String, String> e : ctx.getEnvironment().entrySet()) {
+      // As the NodeManager writes them, so that values may refer to other variables.
+      sb.append("export ").append(e.getKey()).append("=\"").append(e.getValue()).append("\"\n");
+    }
+    String logPrefix = "$LOG_DIR/" + tracker.params.getName().replaceAll("[^A-Za-z0-9_.-]", "_")
+        + "." + n + ".";
+    sb.append(Joiner.on(' ').join(ctx.getCommands())
+        .replace(ApplicationConstants.LOG_DIR_EXPANSION_VAR + "/", logPrefix)
+        .replace(ApplicationConstants.LOG_DIR_EXPANSION_VAR, "$LOG_DIR")).append('\n');
+    sb.append("status=$?\n");
+    sb.append("cd ..\n");
+    sb.append("rm -rf \"$TASK_DIR\"\n");
+    sb.append("exit $status\n");
+    return sb.toString();
+  }
+
+  private static String quote(String value) {
+    return "'" + value.replace("'", "'\\''") + "'";
+  }
+
+  /**
+   * Returns the agent that sent a request, or null if it is unknown or the request does
+   * not carry the secret of its container.
+   */
+  private Agent getAgent(HttpExchange exchange) {
+    ContainerId containerId = service.control.authenticate(exchange);
+    if (containerId == null) {
+      return null;
+    }
+    synchronized (this) {
+      return agents.get(containerId);
+    }
+  }
+
+  // NMClientAsync.CallbackHandler methods; the agent's first tracker hears about its launch.
+  @Override
+  public void onContainerStarted(ContainerId containerId, Map<String, ByteBuffer> allServiceResponse) {
+    ContainerTracker owner = getOwner(containerId);
+    if (owner != null) {
+      owner.onContainerStarted(containerId, allServiceResponse);
+    }
+  }
+
+  @Override
+  public void onContainerStatusReceived(ContainerId containerId, ContainerStatus containerStatus) {
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Received status for agent: " + containerId + " = " + containerStatus);
+    }
+  }
+
+  @Override
+  public void onContainerStopped(ContainerId containerId) {
+    LOG.info("Stopped agent in container id = " + containerId);
+    service.nodeManager.release(containerId);
+  }
+
+  @Override
+  public void onStartContainerError(ContainerId containerId, Throwable t) {
+    ContainerTracker owner = getOwner(containerId);
+    containerCompleted(containerId);
+    if (owner != null) {
+      owner.onStartContainerError(containerId, t);
+    } else {
+      service.nodeManager.release(containerId);
+    }
+  }
+
+  @Override
+  public void onGetContainerStatusError(ContainerId containerId, Throwable t) {
+    LOG.error("Could not get status for agent: " + containerId, t);
+  }
+
+  @Override
+  public void onStopContainerError(ContainerId containerId, Throwable t) {
+    LOG.error("Failed to stop agent: " + containerId, t);
+  }
+
+  private synchronized ContainerTracker getOwner(ContainerId containerId) {
+    Agent agent = agents.get(containerId);
+    return agent == null ? null : agent.owner;
+  }
+
+  @Override
+  public String toString() {
+    synchronized (this) {
+      return String.format("Container pool: %d agent(s) launched, %d task(s) run, "
+          + "%d in reused containers, %d agent(s) released idle, %d still running",
+          launched.get(), tasks.get(), reused.get(), expired.get(), agents.size());
+    }
+  }
+
+  /**
+   * The agent running in a container, and the task it has been given.
+   */
+  private static class Agent {
+    private final Container container;
+    private final BlockingQueue<String> tasks = new ArrayBlockingQueue<String>(1);
+    private State state = State.BUSY;
+    private ContainerTracker owner;
+    private long idleSince;
+    private volatile boolean stopped;
+
+    public Agent(Container container) {
+      this.container = container;
+    }
+
+    public void assign(ContainerTracker tracker, String task) {
+      owner = tracker;
+      state = State.BUSY;
+      tasks.clear();
+      tasks.offer(task);
+    }
+
+    public void stop() {
+      stopped = true;
+    }
+  }
+
+  private class AgentScriptHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      InputStream is = ContainerPool.class.getResourceAsStream("/" + AGENT_SCRIPT);
+      if (is == null) {
+        ControlServer.respond(exchange, 404, null);
+        return;
+      }
+      byte[] script;
+      try {
+        script = ByteStreams.toByteArray(is);
+      } finally {
+        is.close();
+      }
+      ControlServer.respond(exchange, 200, script);
+    }
+  }
+
+  private class TaskHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      Agent agent = getAgent(exchange);
+      if (agent == null || agent.stopped) {
+        ControlServer.respond(exchange, 410, null);
+        return;
+      }
+      String task;
+      try {
+        task = agent.tasks.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        task = null;
+      }
+      if (task != null) {
+        ControlServer.respond(exchange, 200, task.getBytes(Charsets.UTF_8));
+      } else {
+        ControlServer.respond(exchange, agent.stopped ? 410 : 204, null);
+      }
+    }
+  }
+
+  private class DoneHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      Agent agent = getAgent(exchange);
+      if (agent == null) {
+        ControlServer.respond(exchange, 410, null);
+        return;
+      }
+      int status;
+      try {
+        status = Integer.parseInt(ControlServer.getParameter(exchange, "status"));
+      } catch (NumberFormatException e) {
+        ControlServer.respond(exchange, 400, null);
+        return;
+      }
+      ControlServer.respond(exchange, 200, null);
+      taskCompleted(agent, status);
+    }
+  }
+}
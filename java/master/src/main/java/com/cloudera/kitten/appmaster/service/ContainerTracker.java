@@ -3,17 +3,28 @@ package com.cloudera.kitten.appmaster.service;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.yarn.api.records.Container;
 import org.apache.hadoop.yarn.api.records.ContainerId;
 import org.apache.hadoop.yarn.api.records.ContainerLaunchContext;
 import org.apache.hadoop.yarn.api.records.ContainerStatus;
+import org.apache.hadoop.yarn.api.records.LocalResource;
 import org.apache.hadoop.yarn.api.records.Priority;
 import org.apache.hadoop.yarn.api.records.Resource;
 import org.apache.hadoop.yarn.client.api.AMRMClient;
@@ -22,10 +33,28 @@ import org.apache.hadoop.yarn.client.api.async.NMClientAsync;
 
 import com.cloudera.kitten.ContainerLaunchContextFactory;
 import com.cloudera.kitten.ContainerLaunchParameters;
+import com.cloudera.kitten.lua.FusedContainerLaunchParameters;
+import com.cloudera.kitten.lua.LuaFields;
+import com.cloudera.kitten.util.OutputCommitter;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
 import com.google.common.collect.Maps;
 
 public class ContainerTracker implements NMClientAsync.CallbackHandler {
 	private static final Log LOG = LogFactory.getLog(ContainerTracker.class);
+
+	// The fraction of every upstream operator's instances that must have finished before
+	// containers are requested in advance for this one; 1 turns slow-start off.
+	public static final String SLOW_START = "kitten.slowstart.fraction";
+	// How long an operator whose inputs are ready may wait for a container before the
+	// containers held for operators whose inputs are not ready are given back.
+	public static final String SLOW_START_STARVATION = "kitten.slowstart.starvation.ms";
+
+	// Locality levels, from strictest to most relaxed.
+	private static final int NODE_LOCAL = 0;
+	private static final int RACK_LOCAL = 1;
+	private static final int OFF_SWITCH = 2;
+
     public final ContainerLaunchParameters params;
     private final ConcurrentMap<ContainerId, Container> containers = Maps.newConcurrentMap();
 
@@ -33,13 +62,51 @@ public class ContainerTracker implements NMClientAsync.CallbackHandler {
     private AtomicInteger started = new AtomicInteger();
     public AtomicInteger completed = new AtomicInteger();
     private AtomicInteger failed = new AtomicInteger();
-    private NMClientAsync nodeManager;
     private Resource resource;
     private Priority priority;
-    private ContainerLaunchContext ctxt;
+    private int requestPriority;
+    private LocalityPlanner.Placement placement;
+    private int localityLevel;
+    private ContainerLaunchContext template;
+    private int numInstances;
+    // The instances that have been queued for launch, and those still waiting for a container.
+    private final Set<Integer> queuedInstances = new HashSet<Integer>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final Queue<Integer> pendingInstances = new ConcurrentLinkedQueue<Integer>();
+    private final ConcurrentMap<ContainerId, Integer> instances = Maps.newConcurrentMap();
+    private final ConcurrentMap<ContainerId, Long> launchTimes = Maps.newConcurrentMap();
+    // Speculative execution state: the instances that have finished and how long they took,
+    // the instances that have been duplicated, the duplicate attempts, and the attempts
+    // that lost to another attempt of the same instance.
+    private final Set<Integer> finishedInstances = new HashSet<Integer>();
+    private final List<Long> runtimes = new ArrayList<Long>();
+    private final Set<Integer> speculated = new HashSet<Integer>();
+    private final Set<ContainerId> duplicates = new HashSet<ContainerId>();
+    private final Set<ContainerId> superseded = new HashSet<ContainerId>();
+    // Retries of instances whose containers were lost, and those waiting out their backoff.
+    private RetryPolicy retryPolicy;
+    private final Map<Integer, Integer> retries = new HashMap<Integer, Integer>();
+    private final AtomicInteger retrying = new AtomicInteger();
+    private final AtomicInteger finishedCount = new AtomicInteger();
+    // Slow-start state: the asks made before the upstream operators finished, at a lower
+    // priority, and the containers they brought in that are waiting for their inputs.
+    private int earlyPriority;
+    private List<AMRMClient.ContainerRequest> earlyRequests;
+    private final Queue<Container> heldContainers = new ConcurrentLinkedQueue<Container>();
+    private final Map<ContainerId, Long> heldSince = Maps.newConcurrentMap();
+    // For pipelined operators, the upstream trackers that have committed each partition.
+    private final Map<Integer, Set<ContainerTracker>> committedPartitions = Maps.newHashMap();
+    private boolean relaxScheduled;
+    // When each outstanding ask was made, oldest first.
+    private final Queue<Long> askTimes = new ConcurrentLinkedQueue<Long>();
     private List<ContainerTracker> nextTrackers;
     private List<ContainerTracker> previousTrackers;
-    public boolean isInitilized;
+    // The input files that a work queue operator's containers pull, one at a time.
+    private WorkQueue workQueue;
+    private int maxInstances;
+    // The input files of each instance, when the instance count follows the input size.
+    private List<List<String>> inputSplits;
+    public volatile boolean isInitilized;
     private List<AMRMClient.ContainerRequest> containerRequests;
 	private WorkflowService service;
     
@@ -48,12 +115,20 @@ public class ContainerTracker implements NMClientAsync.CallbackHandler {
       this.params = parameters;
       this.nextTrackers = new ArrayList<ContainerTracker>();
       this.previousTrackers = new ArrayList<ContainerTracker>();
-      needed.set(1);
       isInitilized=false;
     }
 
+    @VisibleForTesting
+    ContainerTracker(Priority priority, Resource resource, int needed) {
+      this(null, null);
+      this.priority = priority;
+      this.resource = resource;
+      this.needed.set(needed);
+    }
+
     public void addNextTracker(ContainerTracker tracker){
-    	this.nextTrackers.add(tracker);
+    	if (!nextTrackers.contains(tracker))
+    		this.nextTrackers.add(tracker);
 //		LOG.info("NextTrackers for: " +params.getName());
 //    	for(ContainerTracker t:nextTrackers){
 //    		LOG.info("Tracker: " +t.params.getName());
@@ -61,14 +136,70 @@ public class ContainerTracker implements NMClientAsync.CallbackHandler {
     }
 
     public void addPreviousTracker(ContainerTracker tracker){
-    	this.previousTrackers.add(tracker);
+    	if (!previousTrackers.contains(tracker))
+    		this.previousTrackers.add(tracker);
+    }
+
+    /**
+     * The workflow operators that this tracker runs, which are several if they were fused.
+     */
+    List<String> getOperatorNames() {
+      if (params instanceof FusedContainerLaunchParameters) {
+        return ((FusedContainerLaunchParameters) params).getOperatorNames();
+      }
+      return Collections.singletonList(params.getName());
+    }
+
+    /**
+     * Called when a container of this tracker reports that the fused operator with the
+     * given index has finished; the operator's outputs are reported and the next
+     * operator is marked running, rather than waiting for the whole chain to finish.
+     */
+    synchronized void stageCompleted(int stage) {
+      List<String> names = getOperatorNames();
+      if (stage < 0 || stage >= names.size() - 1) {
+        return;
+      }
+      LOG.info("Operator: " + names.get(stage) + " finished in fused container of "
+          + params.getName());
+      service.parameters.workflow.setOutputsRunning(names.get(stage));
+      service.parameters.workflow.getOperator(names.get(stage + 1)).setStatus("running");
+      service.statusChanged();
+    }
+
+    List<ContainerTracker> getNextTrackers() {
+      return nextTrackers;
+    }
+
+    void setRequestPriority(int requestPriority) {
+      this.requestPriority = requestPriority;
+    }
+
+    void setEarlyPriority(int earlyPriority) {
+      this.earlyPriority = earlyPriority;
+    }
+
+    /**
+     * The number of instances of this operator, which is only final once its inputs are
+     * ready if it is split by input size or pulls from a work queue.
+     */
+    public int getNumInstances() {
+      return isInitilized ? numInstances : params.getNumInstances();
+    }
+
+    /**
+     * The fraction of this operator's instances that have finished successfully.
+     */
+    public float getCompletedFraction() {
+      int n = getNumInstances();
+      return n <= 0 ? 1.0f : Math.min(1.0f, ((float) finishedCount.get()) / n);
     }
     
     private boolean allPreviousFinished(){
     	boolean ret = true;
     	
     	for(ContainerTracker tracker : previousTrackers){
-    		if(tracker.needsContainers()){
+    		if(tracker.hasMoreContainers()){
     			ret=false;
     			break;
     		}
@@ -77,63 +208,309 @@ public class ContainerTracker implements NMClientAsync.CallbackHandler {
     	return ret;
     }
     
-    public void init(ContainerLaunchContextFactory factory) throws IOException {
+    /**
+     * Whether this operator consumes its inputs partition by partition, so that each of
+     * its instances can start as soon as the matching instance of every upstream
+     * operator has committed its output.
+     */
+    public boolean isPipelined() {
+      if (!params.isPartitionWise() || params.isWorkQueue() || params.getSplitSize() > 0
+          || previousTrackers.isEmpty()) {
+        return false;
+      }
+      for (ContainerTracker tracker : previousTrackers) {
+        if (tracker.params.getNumInstances() != params.getNumInstances()
+            || !readsPartitionsOf(tracker)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Whether each instance of this operator reads only its own partition of the given
+     * upstream operator's output: every input under the upstream output directory must
+     * name the partition with $KITTEN_CONTAINER_INSTANCE, which the upstream instance of
+     * the same index writes, rather than read the whole directory while other upstream
+     * instances are still writing to it.
+     */
+    private boolean readsPartitionsOf(ContainerTracker upstream) {
+      String dir = upstream.params.getOutputDir();
+      if (dir == null) {
+        return false;
+      }
+      boolean reads = false;
+      for (String in : params.getInputPaths()) {
+        if (!in.equals(dir) && !in.startsWith(dir + "/")) {
+          continue;
+        }
+        if (!in.contains("$" + LuaFields.KITTEN_CONTAINER_INSTANCE)
+            && !in.contains("${" + LuaFields.KITTEN_CONTAINER_INSTANCE + "}")) {
+          return false;
+        }
+        reads = true;
+      }
+      return reads;
+    }
+
+    /**
+     * Requests containers for all the instances of this operator that have not been
+     * requested yet, once all of the upstream operators have finished.
+     */
+    public synchronized void init(ContainerLaunchContextFactory factory) throws IOException {
     	if(!allPreviousFinished())
     		return;
-    	service.parameters.workflow.getOperator(params.getName()).setStatus("running");
-      this.nodeManager = NMClientAsync.createNMClientAsync(this);
-      nodeManager.init(service.conf);
-      nodeManager.start();
-      isInitilized=true;
+    	setUp(factory);
+    	List<Integer> ready = new ArrayList<Integer>();
+    	for (int i = 0; i < numInstances; i++) {
+    		ready.add(i);
+    	}
+    	queueInstances(ready);
+    }
+
+    /**
+     * Called when the given instance of an upstream operator has completed successfully;
+     * in pipelined mode, queues the matching instance of this operator once all of its
+     * upstream operators have committed that partition.
+     */
+    public synchronized void partitionCommitted(ContainerTracker upstream, int instance) throws IOException {
+      if (!isPipelined()) {
+        return;
+      }
+      Set<ContainerTracker> committed = committedPartitions.get(instance);
+      if (committed == null) {
+        committed = new HashSet<ContainerTracker>();
+        committedPartitions.put(instance, committed);
+      }
+      committed.add(upstream);
+      if (committed.size() < previousTrackers.size()) {
+        return;
+      }
+      LOG.info("Operator: " + params.getName() + " partition " + instance + " is ready");
+      setUp(service.factory);
+      List<Integer> ready = new ArrayList<Integer>();
+      ready.add(instance);
+      queueInstances(ready);
+    }
+
+    private void setUp(ContainerLaunchContextFactory factory) throws IOException {
+      if (isInitilized)
+        return;
+      // Fused operators run one after the other, and report as each one finishes.
+      service.parameters.workflow.getOperator(getOperatorNames().get(0)).setStatus("running");
+    	service.statusChanged();
+      if (params instanceof FusedContainerLaunchParameters) {
+        service.startStageReports();
+      }
       
       this.resource = factory.createResource(params);
+      // Build the launch context once; every instance is launched from a copy of it.
+      this.template = factory.create(params);
 
-      //this.priority = factory.createPriority(params.getPriority());
-      
-      //hack for https://issues.apache.org/jira/browse/YARN-314
-      this.priority = factory.createPriority(service.prior);
-      service.prior++;
-      //hack for https://issues.apache.org/jira/browse/YARN-314
+      // Assigned by CriticalPathScheduler; distinct per operator because of YARN-314.
+      this.priority = factory.createPriority(requestPriority);
       
-      int numInstances = params.getNumInstances();
-      LOG.info("Operator: "+params.getName()+" requesting " + numInstances+" containers");
+      this.numInstances = params.getNumInstances();
+      if (params.isWorkQueue()) {
+        this.workQueue = WorkQueue.create(params.getName(), params.getInputPaths(), service.conf);
+        this.numInstances = Math.max(1, Math.min(numInstances, workQueue.size()));
+        this.maxInstances = Math.max(numInstances, params.getMaxInstances());
+        service.startWorkQueue();
+      } else if (params.getSplitSize() > 0) {
+        this.inputSplits = InputSplitter.split(params.getName(), params.getInputPaths(),
+            params.getSplitSize(), params.getMinInstances(), params.getMaxInstances(), service.conf);
+        this.numInstances = inputSplits.size();
+      }
+      LOG.info("Operator: "+params.getName()+" has " + numInstances+" instances"
+          + (isPipelined() ? " (pipelined)" : ""));
+      if (params.isPartitionWise() && !isPipelined()) {
+        LOG.warn("Operator: " + params.getName() + " is partition-wise, but not all of its"
+            + " inputs name their partition with $" + LuaFields.KITTEN_CONTAINER_INSTANCE
+            + "; it waits for its upstream operators to finish");
+      }
       LOG.info("Resource cores: "+ resource.getVirtualCores());
       LOG.info("Resource memory: "+ resource.getMemory());
       String[] nodes =params.getNodes();//= {"slave1"};
       String labels = params.getLabels();
-      AMRMClient.ContainerRequest containerRequest=null;
+      if(labels==null && nodes==null){
+    	  this.placement = LocalityPlanner.plan(params.getInputPaths(), service.conf);
+      }
       if(labels==null){
-    	  LOG.info("Resource nodes: all");
-      	  containerRequest = new AMRMClient.ContainerRequest(
-              resource,
-              nodes, // nodes
-              null, // racks
-              priority,
-              true, //true for relaxed locality
-              "");
+    	  LOG.info("Resource nodes: " + (placement == null ? "all" : placement));
       }
       else{
     	  LOG.info("Resource labels: "+ labels);
     	  for (int i = 0; i < nodes.length; i++) {
         	  LOG.info("Resource nodes: "+ nodes[i]);
     	  }
-    	  containerRequest = new AMRMClient.ContainerRequest(
-    	          resource,
-    	          nodes, // nodes
-    	          null, // racks
-    	          priority,
-    	          false, //true for relaxed locality
-    	          "");
       }
+      this.localityLevel = placement == null ? OFF_SWITCH : NODE_LOCAL;
       
       this.containerRequests = new ArrayList<AMRMClient.ContainerRequest>();
+      this.retryPolicy = RetryPolicy.forOperator(params, service.conf);
+      isInitilized=true;
+    }
+
+    private void queueInstances(List<Integer> ready) {
+      int count = 0;
+      for (Integer instance : ready) {
+        if (queuedInstances.add(instance)) {
+          pendingInstances.add(instance);
+          count++;
+        }
+      }
+      if (count == 0) {
+        return;
+      }
+      queued.addAndGet(count);
+      LOG.info("Operator: "+params.getName()+" requesting " + count+" containers");
       //restartResourceManager();
-      for (int j = 0; j < numInstances; j++) {
-    	  service.resourceManager.addContainerRequest(containerRequest);
-    	  containerRequests.add(containerRequest);
+      requestContainers(count);
+      needed.addAndGet(count);
+      service.allocationIndex.register(this);
+      launchHeldContainers();
+      service.pool.offerIdle();
+    }
+
+    /**
+     * Asks for this operator's containers ahead of time, at a priority below that of
+     * every operator whose inputs are ready, once each upstream operator has finished
+     * the {@link #SLOW_START} fraction of its instances.
+     */
+    public synchronized void anticipate() {
+      float fraction = service.conf.getFloat(SLOW_START, 1.0f);
+      if (fraction >= 1.0f || isInitilized || earlyRequests != null) {
+        return;
+      }
+      for (ContainerTracker tracker : previousTrackers) {
+        if (tracker.getCompletedFraction() < fraction) {
+          return;
+        }
+      }
+      Resource r = service.factory.createResource(params);
+      Priority p = service.factory.createPriority(earlyPriority);
+      AMRMClient.ContainerRequest containerRequest = new AMRMClient.ContainerRequest(
+          r, null, null, p, true, "");
+      int count = params.getNumInstances();
+      LOG.info("Operator: " + params.getName() + " requesting " + count
+          + " containers in advance at priority " + earlyPriority);
+      earlyRequests = new ArrayList<AMRMClient.ContainerRequest>();
+      for (int j = 0; j < count; j++) {
+        service.resourceManager.addContainerRequest(containerRequest);
+        earlyRequests.add(containerRequest);
+      }
+      service.anticipations.put(earlyPriority, this);
+      service.heartbeat.activity();
+    }
+
+    /**
+     * Takes a container that was allocated for one of the asks made in advance. It is
+     * launched right away if an instance is waiting for it, and held until the inputs
+     * are ready otherwise. Returns false if the container is not needed at all.
+     */
+    public synchronized boolean earlyContainerAllocated(Container c) {
+      if (earlyRequests != null && !earlyRequests.isEmpty()) {
+        service.resourceManager.removeContainerRequest(earlyRequests.remove(earlyRequests.size() - 1));
+      }
+      if (!isInitilized) {
+        LOG.info("Holding container id = " + c.getId() + " for operator: " + params.getName());
+        heldContainers.add(c);
+        heldSince.put(c.getId(), System.currentTimeMillis());
+        return true;
+      }
+      return needsContainers() && launchContainer(c);
+    }
+
+    /**
+     * Drops a held container that the ResourceManager took back before it was used,
+     * and returns false if the container was not held.
+     */
+    public synchronized boolean releaseHeldContainer(ContainerId containerId) {
+      for (Container c : heldContainers) {
+        if (c.getId().equals(containerId)) {
+          heldContainers.remove(c);
+          heldSince.remove(containerId);
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Gives back up to {@code count} of the containers held for this operator that the
+     * {@code starved} operator could run in, if this operator's inputs are not ready yet,
+     * and returns how many were given back. The asks made in advance are withdrawn too
+     * if their containers would fit the starved operator, so that they do not compete
+     * with it; this operator's containers are asked for again once its inputs are ready.
+     */
+    public synchronized int releaseHeldContainers(ContainerTracker starved, int count) {
+      if (isInitilized || earlyRequests == null) {
+        return 0;
+      }
+      if (starved.fits(resource) && !earlyRequests.isEmpty()) {
+        for (AMRMClient.ContainerRequest r : earlyRequests) {
+          service.resourceManager.removeContainerRequest(r);
+        }
+        earlyRequests.clear();
+      }
+      int released = 0;
+      Iterator<Container> it = heldContainers.iterator();
+      while (released < count && it.hasNext()) {
+        Container c = it.next();
+        if (starved.fits(c)) {
+          it.remove();
+          releaseHeld(c);
+          released++;
+        }
+      }
+      if (released > 0) {
+        LOG.info("Operator: " + params.getName() + " released " + released
+            + " held container(s) for operator: " + starved.params.getName()
+            + ", which is waiting for containers");
+      }
+      return released;
+    }
+
+    /**
+     * The number of containers this operator still waits for.
+     */
+    public int getNeeded() {
+      return Math.max(0, needed.get());
+    }
+
+    /**
+     * When the oldest outstanding ask of this operator was made, or null if it has none.
+     */
+    public Long getOldestAsk() {
+      return needsContainers() ? askTimes.peek() : null;
+    }
+
+    private void launchHeldContainers() {
+      if (earlyRequests != null && !earlyRequests.isEmpty()) {
+        for (AMRMClient.ContainerRequest r : earlyRequests) {
+          service.resourceManager.removeContainerRequest(r);
+        }
+        earlyRequests.clear();
+      }
+      Container c;
+      while (needsContainers() && (c = heldContainers.poll()) != null) {
+        heldSince.remove(c.getId());
+        launchContainer(c);
       }
+      if (queued.get() >= numInstances) {
+        while ((c = heldContainers.poll()) != null) {
+          releaseHeld(c);
+        }
+      }
+    }
 
-      needed.set(numInstances);
+    private void releaseHeld(Container c) {
+      Long since = heldSince.remove(c.getId());
+      if (since == null) {
+        service.releaseContainer(c);
+      } else {
+        service.releaseContainer(c, since);
+      }
     }
 
     @Override
@@ -142,7 +519,7 @@ public class ContainerTracker implements NMClientAsync.CallbackHandler {
 	  if (container != null) {
 	    LOG.info("Starting container id = " + containerId);
 	    started.incrementAndGet();
-	    nodeManager.getContainerStatusAsync(containerId, container.getNodeId());
+	    service.nodeManager.getContainerStatus(containerId, container.getNodeId());
 	  }
     }
 
@@ -156,10 +533,9 @@ public class ContainerTracker implements NMClientAsync.CallbackHandler {
     @Override
     public void onContainerStopped(ContainerId containerId) {
       LOG.info("Stopping container id = " + containerId);
-      Container v = containers.remove(containerId);
-      if(v==null)
-    	  return;
-      completed.incrementAndGet();
+      service.nodeManager.release(containerId);
+      // Counted as completed when the ResourceManager reports it, in containerCompleted.
+      containers.remove(containerId);
       /*if(!hasMoreContainers()){
           LOG.info("Starting next trackers" );
     	  for(ContainerTracker t : nextTrackers){
@@ -173,43 +549,413 @@ public class ContainerTracker implements NMClientAsync.CallbackHandler {
       }*/
     }
 
-    public void removeContainerRequests(){
+    public synchronized void removeContainerRequests(){
     	LOG.info("Removing container requests");
     	for(ContainerRequest c : containerRequests){
         	LOG.info("Removing cores: "+c.getCapability().getVirtualCores()+" mem: "+c.getCapability().getMemory());
         	service.resourceManager.removeContainerRequest(c);
     	}
+    	containerRequests.clear();
+    	service.heartbeat.activity();
     	LOG.info("Blockers: "+service.resourceManager.getBlockers());
     }
+
+    private AMRMClient.ContainerRequest newContainerRequest() {
+      if (params.getLabels() != null) {
+        return new AMRMClient.ContainerRequest(resource, params.getNodes(), null, priority,
+            false, "");
+      }
+      switch (localityLevel) {
+      case NODE_LOCAL:
+        return new AMRMClient.ContainerRequest(resource, placement.nodes, null, priority,
+            false, "");
+      case RACK_LOCAL:
+        return new AMRMClient.ContainerRequest(resource, null, placement.racks, priority,
+            false, "");
+      default:
+        return new AMRMClient.ContainerRequest(resource, params.getNodes(), null, priority,
+            true, "");
+      }
+    }
+
+    private synchronized void requestContainers(int count) {
+      long now = System.currentTimeMillis();
+      for (int j = 0; j < count; j++) {
+        askTimes.add(now);
+      }
+      addContainerRequests(count);
+    }
+
+    private synchronized void addContainerRequests(int count) {
+      AMRMClient.ContainerRequest containerRequest = newContainerRequest();
+      for (int j = 0; j < count; j++) {
+    	  service.resourceManager.addContainerRequest(containerRequest);
+    	  containerRequests.add(containerRequest);
+      }
+      service.heartbeat.activity();
+      if (localityLevel != OFF_SWITCH && !relaxScheduled && !service.timer.isShutdown()) {
+        relaxScheduled = true;
+        service.timer.schedule(new Runnable() {
+          @Override
+          public void run() {
+            relaxLocality();
+          }
+        }, service.conf.getLong(LocalityPlanner.DELAY, 3000L), TimeUnit.MILLISECONDS);
+      }
+    }
+
+    /**
+     * Replaces the outstanding asks with asks at the next locality level, if the
+     * containers have not arrived within the locality delay.
+     */
+    private synchronized void relaxLocality() {
+      relaxScheduled = false;
+      if (localityLevel == OFF_SWITCH || containerRequests.isEmpty()) {
+        return;
+      }
+      int outstanding = containerRequests.size();
+      removeContainerRequests();
+      localityLevel++;
+      if (localityLevel == RACK_LOCAL && placement.racks.length == 0) {
+        localityLevel++;
+      }
+      LOG.info("Operator: " + params.getName() + " relaxing locality to "
+          + (localityLevel == RACK_LOCAL ? "rack" : "any node") + " for " + outstanding
+          + " container(s)");
+      addContainerRequests(outstanding);
+    }
+
+    /**
+     * Drops one outstanding ask now that a container was allocated for it, so that the
+     * AMRMClient's view of the outstanding asks stays in line with the RM's.
+     */
+    private synchronized void satisfyContainerRequest(){
+    	if(!containerRequests.isEmpty()){
+    		service.resourceManager.removeContainerRequest(containerRequests.remove(containerRequests.size()-1));
+    	}
+    }
     
-    public void containerCompleted(ContainerId containerId) {
-        isInitilized=false;
+    public void containerCompleted(ContainerId containerId, boolean succeeded) {
       LOG.info("Completed container id = " + containerId+" operator: "+params.getName());
       containers.remove(containerId);
+      service.nodeManager.release(containerId);
+      Integer instance = instances.remove(containerId);
+      Long launched = launchTimes.remove(containerId);
       completed.incrementAndGet();
       
-      service.parameters.workflow.setOutputsRunning(params.getName());
+      for (String op : getOperatorNames()) {
+        service.parameters.workflow.setOutputsRunning(op);
+      }
+      service.statusChanged();
+
+      if (attemptCompleted(containerId, instance, launched, succeeded)) {
+        for (ContainerTracker t : nextTrackers) {
+          t.anticipate();
+          startPartition(t, instance);
+        }
+      }
+
+      if (workQueue != null) {
+        workQueue.finished(containerId, succeeded);
+        ensureWorkers();
+      }
 
       if(!hasMoreContainers()){
     	  removeContainerRequests();
+    	  cleanupOutput();
           LOG.info("Starting next trackers" );
     	  for(ContainerTracker t : nextTrackers){
-    		  try {
-				t.init(service.factory);
-    		  } catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-    		  }
+    		  startTracker(t);
     	  }
       }
     }
 
+    /**
+     * Queues the given partition of a downstream operator on the planner thread, since
+     * setting the operator up may have to ask the NameNode about its inputs.
+     */
+    private void startPartition(final ContainerTracker t, final int instance) {
+      if (service.planner.isShutdown()) {
+        return;
+      }
+      service.planner.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            t.partitionCommitted(ContainerTracker.this, instance);
+          } catch (IOException e) {
+            LOG.error("Could not start partition " + instance + " of " + t.params.getName(), e);
+          }
+        }
+      });
+    }
+
+    /**
+     * Starts a downstream operator on the planner thread; see {@link #startPartition}.
+     */
+    private void startTracker(final ContainerTracker t) {
+      if (service.planner.isShutdown()) {
+        return;
+      }
+      service.planner.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            t.init(service.factory);
+          } catch (IOException e) {
+            LOG.error("Could not start operator " + t.params.getName(), e);
+          }
+        }
+      });
+    }
+
+    /**
+     * Settles the outcome of a completed attempt, and returns true if it was the first
+     * attempt of its instance to succeed. The output of the winning attempt is committed
+     * and any other attempts of the same instance are killed.
+     */
+    private synchronized boolean attemptCompleted(ContainerId containerId, Integer instance,
+        Long launched, boolean succeeded) {
+      boolean duplicate = duplicates.remove(containerId);
+      boolean lost = superseded.remove(containerId);
+      if (instance == null) {
+        return false;
+      }
+      if (!succeeded || lost || finishedInstances.contains(instance)) {
+        abortOutput(containerId);
+        return false;
+      }
+      if (!commitOutput(containerId)) {
+        abortOutput(containerId);
+        service.outputCommitFailed(containerId);
+        return false;
+      }
+      finishedInstances.add(instance);
+      finishedCount.incrementAndGet();
+      if (launched != null) {
+        runtimes.add(System.currentTimeMillis() - launched);
+      }
+      if (duplicate) {
+        service.speculator.duplicateWon();
+      }
+
+      for (Map.Entry<ContainerId, Integer> e : instances.entrySet()) {
+        if (e.getValue().equals(instance) && superseded.add(e.getKey())) {
+          Container c = containers.get(e.getKey());
+          LOG.info("Killing container id = " + e.getKey() + ", instance " + instance
+              + " of operator " + params.getName() + " has already finished");
+          service.speculator.attemptKilled();
+          if (c != null) {
+            service.nodeManager.stopContainer(c.getId(), c.getNodeId());
+          }
+        }
+      }
+      boolean dropped = false;
+      while (pendingInstances.remove(instance)) {
+        askTimes.poll();
+        needed.decrementAndGet();
+        satisfyContainerRequest();
+        dropped = true;
+      }
+      if (dropped && needed.get() <= 0) {
+        service.allocationIndex.unregister(this);
+        removeContainerRequests();
+      }
+      return true;
+    }
+
+    /**
+     * Called when a container of this tracker was lost to preemption or a node problem.
+     * Queues the instance it was running again after a backoff and returns true, or
+     * returns false if the instance has used up its retries and the loss should be
+     * handled as a failure.
+     */
+    public synchronized boolean retryLostContainer(ContainerId containerId, int exitStatus) {
+      if (workQueue != null) {
+        workQueue.finished(containerId, false);
+      }
+      final Integer instance = instances.get(containerId);
+      if (instance == null || superseded.contains(containerId)) {
+        return false;
+      }
+      boolean redundant = finishedInstances.contains(instance);
+      for (Map.Entry<ContainerId, Integer> e : instances.entrySet()) {
+        if (!e.getKey().equals(containerId) && e.getValue().equals(instance)) {
+          redundant = true;
+        }
+      }
+      Integer count = retries.get(instance);
+      count = count == null ? 0 : count;
+      if (!redundant && !retryPolicy.shouldRetry(count)) {
+        LOG.warn("Instance " + instance + " of operator " + params.getName()
+            + " has been retried " + count + " time(s), giving up");
+        return false;
+      }
+
+      containers.remove(containerId);
+      instances.remove(containerId);
+      launchTimes.remove(containerId);
+      duplicates.remove(containerId);
+      service.nodeManager.release(containerId);
+      if (redundant) {
+        LOG.info("Lost container id = " + containerId + " (exit status " + exitStatus
+            + "), instance " + instance + " of operator " + params.getName()
+            + " has another attempt");
+        return true;
+      }
+
+      retries.put(instance, count + 1);
+      long delay = retryPolicy.getDelay(count);
+      LOG.info("Lost container id = " + containerId + " (exit status " + exitStatus
+          + "), retrying instance " + instance + " of operator " + params.getName()
+          + " in " + delay + " ms");
+      retrying.incrementAndGet();
+      service.timer.schedule(new Runnable() {
+        @Override
+        public void run() {
+          requeue(instance);
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+      return true;
+    }
+
+    private synchronized void requeue(int instance) {
+      if (!finishedInstances.contains(instance)) {
+        pendingInstances.add(instance);
+        requestContainers(1);
+        needed.incrementAndGet();
+        service.allocationIndex.register(this);
+        service.pool.offerIdle();
+      }
+      retrying.decrementAndGet();
+    }
+
+    public int getRetryCount() {
+      int total = 0;
+      synchronized (this) {
+        for (Integer count : retries.values()) {
+          total += count;
+        }
+      }
+      return total;
+    }
+
+    /**
+     * Called when a container of this tracker exits with an error; returns false if the
+     * failure does not cost the operator an instance, because the container was a
+     * redundant attempt of an instance that has another attempt running or finished.
+     */
+    public synchronized boolean attemptFailed(ContainerId containerId) {
+      if (superseded.contains(containerId)) {
+        return false;
+      }
+      Integer instance = instances.get(containerId);
+      if (instance == null) {
+        return true;
+      }
+      boolean redundant = finishedInstances.contains(instance);
+      for (Map.Entry<ContainerId, Integer> e : instances.entrySet()) {
+        if (!e.getKey().equals(containerId) && e.getValue().equals(instance)) {
+          redundant = true;
+        }
+      }
+      if (redundant) {
+        LOG.info("Attempt " + containerId + " of instance " + instance + " of operator "
+            + params.getName() + " failed, another attempt is still running");
+        service.speculator.duplicateFailed();
+      }
+      return !redundant;
+    }
+
+    /**
+     * Queues a duplicate attempt of every running instance that has taken more than
+     * {@code multiple} times the median runtime of the finished instances, once at
+     * least {@code minFinished} of the instances have finished. Returns the number of
+     * duplicates queued.
+     */
+    public synchronized int speculate(double multiple, double minFinished) {
+      if (!isInitilized || workQueue != null || runtimes.isEmpty()
+          || runtimes.size() < Math.ceil(minFinished * numInstances)) {
+        return 0;
+      }
+      List<Long> sorted = new ArrayList<Long>(runtimes);
+      Collections.sort(sorted);
+      long median = sorted.get(sorted.size() / 2);
+      long now = System.currentTimeMillis();
+      List<Integer> stragglers = new ArrayList<Integer>();
+      for (Map.Entry<ContainerId, Long> e : launchTimes.entrySet()) {
+        Integer instance = instances.get(e.getKey());
+        if (instance == null || finishedInstances.contains(instance)
+            || speculated.contains(instance) || superseded.contains(e.getKey())) {
+          continue;
+        }
+        if (now - e.getValue() > multiple * median) {
+          LOG.info("Instance " + instance + " of operator " + params.getName()
+              + " has been running for " + (now - e.getValue()) + " ms, median is "
+              + median + " ms; launching a duplicate");
+          speculated.add(instance);
+          stragglers.add(instance);
+        }
+      }
+      if (stragglers.isEmpty()) {
+        return 0;
+      }
+      pendingInstances.addAll(stragglers);
+      requestContainers(stragglers.size());
+      needed.addAndGet(stragglers.size());
+      service.allocationIndex.register(this);
+      service.pool.offerIdle();
+      return stragglers.size();
+    }
+
+    /**
+     * Commits the output of the given attempt, and returns false if it could not be.
+     */
+    private boolean commitOutput(ContainerId containerId) {
+      String outputDir = params.getOutputDir();
+      if (!service.speculator.isEnabled() || outputDir == null || workQueue != null) {
+        return true;
+      }
+      try {
+        OutputCommitter.commit(FileSystem.get(service.conf), new Path(outputDir),
+            containerId.toString());
+        return true;
+      } catch (IOException e) {
+        LOG.error("Could not commit the output of container id = " + containerId, e);
+        return false;
+      }
+    }
+
+    private void abortOutput(ContainerId containerId) {
+      String outputDir = params.getOutputDir();
+      if (!service.speculator.isEnabled() || outputDir == null || workQueue != null) {
+        return;
+      }
+      try {
+        OutputCommitter.abort(FileSystem.get(service.conf), new Path(outputDir),
+            containerId.toString());
+      } catch (IOException e) {
+        LOG.warn("Could not discard the output of container id = " + containerId, e);
+      }
+    }
+
+    private void cleanupOutput() {
+      String outputDir = params.getOutputDir();
+      if (!service.speculator.isEnabled() || outputDir == null || workQueue != null) {
+        return;
+      }
+      try {
+        OutputCommitter.cleanup(FileSystem.get(service.conf), new Path(outputDir));
+      } catch (IOException e) {
+        LOG.warn("Could not clean up " + outputDir, e);
+      }
+    }
+
     @Override
     public void onStartContainerError(ContainerId containerId, Throwable throwable) {
       LOG.warn("Start container error for container id = " + containerId, throwable);
-      containers.remove(containerId);
-      completed.incrementAndGet();
       failed.incrementAndGet();
+      service.startFailed(containerId);
     }
 
     @Override
@@ -220,7 +966,6 @@ public class ContainerTracker implements NMClientAsync.CallbackHandler {
     @Override
     public void onStopContainerError(ContainerId containerId, Throwable throwable) {
       LOG.error("Failed to stop container: " + containerId, throwable);
-      completed.incrementAndGet();
     }
 
     public boolean needsContainers() {
@@ -229,20 +974,100 @@ public class ContainerTracker implements NMClientAsync.CallbackHandler {
     }
 
     public boolean matches(Container c) {
-      return containerRequests.get(0).getCapability().getVirtualCores()==c.getResource().getVirtualCores() && containerRequests.get(0).getCapability().getMemory()==c.getResource().getMemory(); 
+      return resource.getVirtualCores()==c.getResource().getVirtualCores() && resource.getMemory()==c.getResource().getMemory(); 
+    }
+
+    /**
+     * Returns true if the given container is at least as large as the resource this
+     * tracker asked for, which is the case for containers the RM rounded up.
+     */
+    public boolean fits(Container c) {
+      return fits(c.getResource());
+    }
+
+    /**
+     * Returns true if a container of the given size could run this operator.
+     */
+    public boolean fits(Resource r) {
+      return resource.getVirtualCores()<=r.getVirtualCores() && resource.getMemory()<=r.getMemory();
+    }
+
+    public Resource getResource() {
+      return resource;
     }
 
-    public void launchContainer(Container c) {
-      LOG.info("Launching container id = " + c.getId() + " on node = " + c.getNodeId()+" operator: "+params.getName());
+    public Priority getPriority() {
+      return priority;
+    }
+
+    /**
+     * Launches the next queued instance of this operator in the given container, and
+     * returns false if there was no instance left to launch.
+     */
+    public synchronized boolean launchContainer(Container c) {
+      Integer instance = pendingInstances.poll();
+      if (instance == null) {
+        return false;
+      }
+      LOG.info("Launching container id = " + c.getId() + " on node = " + c.getNodeId()+" operator: "+params.getName()+" instance: "+instance);
       containers.put(c.getId(), c);
-      needed.decrementAndGet();
-		try {
-			this.ctxt = service.factory.create(params);
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-      nodeManager.startContainerAsync(c, ctxt);
+      if (instances.containsValue(instance)) {
+        duplicates.add(c.getId());
+      }
+      instances.put(c.getId(), instance);
+      launchTimes.put(c.getId(), System.currentTimeMillis());
+      Long askedAt = askTimes.poll();
+      if (askedAt != null) {
+        service.heartbeat.allocated(System.currentTimeMillis() - askedAt);
+      }
+      satisfyContainerRequest();
+      if (needed.decrementAndGet() <= 0) {
+        service.allocationIndex.unregister(this);
+        removeContainerRequests();
+      }
+      ContainerLaunchContext ctx;
+      try {
+        ctx = createLaunchContext(c, instance);
+      } catch (IOException e) {
+        // The instance cannot run without its resources. The container is given back,
+        // and its completion is reported as a failed attempt.
+        LOG.error("Could not construct the resources of instance " + instance
+            + " of operator " + params.getName(), e);
+        containers.remove(c.getId());
+        instances.remove(c.getId());
+        launchTimes.remove(c.getId());
+        service.resourceManager.releaseAssignedContainer(c.getId());
+        return true;
+      }
+      if (service.pool.isEnabled()) {
+        service.pool.launch(c, this, ctx);
+      } else {
+        service.nodeManager.startContainer(c, ctx, this);
+      }
+      return true;
+    }
+
+    private ContainerLaunchContext createLaunchContext(Container c, int instance)
+        throws IOException {
+      Map<String, String> env = new HashMap<String, String>();
+      env.put(LuaFields.KITTEN_CONTAINER_INSTANCE, String.valueOf(instance));
+      env.put(LuaFields.KITTEN_CONTAINER_INSTANCES, String.valueOf(getNumInstances()));
+      if (inputSplits != null) {
+        env.put(LuaFields.KITTEN_INPUT_SPLITS, Joiner.on(',').join(inputSplits.get(instance)));
+      }
+      if (workQueue != null) {
+        env.put(LuaFields.KITTEN_WORK_QUEUE, service.control.getUrl() + "/split");
+      }
+      if (params instanceof FusedContainerLaunchParameters) {
+        env.put(LuaFields.KITTEN_STAGE_URL, service.control.getUrl() + "/stage");
+      }
+      if (workQueue != null || params instanceof FusedContainerLaunchParameters) {
+        env.put(LuaFields.KITTEN_CONTROL_TOKEN, service.control.getSecret(c.getId()));
+      }
+      // Values the configuration computes with per_instance(f).
+      env.putAll(params.getInstanceEnvironment(instance, getNumInstances()));
+      return service.factory.createInstance(template, env,
+          params.getInstanceLocalResources(instance, getNumInstances()));
     }
 
     public boolean hasRunningContainers() {
@@ -251,11 +1076,61 @@ public class ContainerTracker implements NMClientAsync.CallbackHandler {
 
     public void kill() {
       for (Container c : containers.values()) {
-        nodeManager.stopContainerAsync(c.getId(), c.getNodeId());
+        service.nodeManager.stopContainer(c.getId(), c.getNodeId());
       }
     }
 
     public boolean hasMoreContainers() {
-      return needsContainers() || hasRunningContainers();
+      return !isInitilized || queued.get() < numInstances || needsContainers()
+          || retrying.get() > 0 || hasRunningContainers()
+          || (workQueue != null && !workQueue.isDone());
+    }
+
+    /**
+     * Hands the given container of a work queue operator its next input file, as the
+     * file's index and path separated by a tab, or returns null when there are none
+     * left. Adds a container, up to the operator's maximum, whenever more files are
+     * waiting than there are containers to take them.
+     */
+    synchronized String nextSplit(ContainerId worker) {
+      if (workQueue == null) {
+        return null;
+      }
+      Integer split = workQueue.next(worker);
+      if (split == null) {
+        return null;
+      }
+      int workers = containers.size() + pendingInstances.size();
+      if (numInstances < maxInstances && workQueue.remaining() > workers) {
+        grow(1);
+      }
+      return split + "\t" + workQueue.getSplit(split);
+    }
+
+    /**
+     * Makes sure a work queue operator whose files were handed back by failed containers
+     * has a container left to process them, up to its maximum number of instances. Past
+     * that, the files that are left are given up on.
+     */
+    private synchronized void ensureWorkers() {
+      if (workQueue.remaining() > 0 && containers.isEmpty() && pendingInstances.isEmpty()
+          && retrying.get() == 0) {
+        if (numInstances < maxInstances) {
+          grow(1);
+        } else {
+          LOG.error("Operator: " + params.getName() + " has used all of its " + maxInstances
+              + " instances; giving up on " + workQueue.abandon() + " input file(s)");
+        }
+      }
+    }
+
+    private void grow(int count) {
+      List<Integer> ready = new ArrayList<Integer>();
+      for (int i = 0; i < count; i++) {
+        ready.add(numInstances++);
+      }
+      LOG.info("Operator: " + params.getName() + " growing to " + numInstances + " instances; "
+          + workQueue);
+      queueInstances(ready);
     }
   }
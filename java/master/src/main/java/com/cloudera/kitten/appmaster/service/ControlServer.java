@@ -0,0 +1,173 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.service;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.apache.hadoop.yarn.util.ConverterUtils;
+
+import com.cloudera.kitten.lua.LuaFields;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A small HTTP endpoint on the application master that the scripts running in the
+ * containers talk to, e.g., to ask for their next task or input split. The server is
+ * only started once something registers a handler with it.
+ *
+ * <p>Each container is given a secret in its launch environment, which its scripts send
+ * in the {@link LuaFields#KITTEN_CONTROL_HEADER} header along with the container id in the {@code agent}
+ * parameter; handlers only act on requests that {@link #authenticate} accepts.
+ */
+public class ControlServer {
+
+  private static final Log LOG = LogFactory.getLog(ControlServer.class);
+
+  private final String hostname;
+  private final SecureRandom random = new SecureRandom();
+  private final Map<ContainerId, String> secrets = Maps.newConcurrentMap();
+  private HttpServer server;
+  private ExecutorService handlers;
+  private String url;
+
+  public ControlServer(String hostname) {
+    this.hostname = hostname;
+  }
+
+  /**
+   * Serves the given path with the given handler, starting the server if needed.
+   */
+  public synchronized void addHandler(String path, HttpHandler handler) throws IOException {
+    if (server == null) {
+      server = HttpServer.create(new InetSocketAddress(0), 0);
+      handlers = Executors.newCachedThreadPool(
+          new ThreadFactoryBuilder().setNameFormat("ControlServer #%d").setDaemon(true).build());
+      server.setExecutor(handlers);
+      server.start();
+      url = "http://" + hostname + ":" + server.getAddress().getPort();
+      LOG.info("Control server listening at " + url);
+    }
+    server.createContext(path, handler);
+  }
+
+  /**
+   * The URL that containers reach this server at, or null if it has not been started.
+   */
+  public synchronized String getUrl() {
+    return url;
+  }
+
+  /**
+   * Returns the secret that the given container authenticates itself with, which is
+   * set in its environment as {@link LuaFields#KITTEN_CONTROL_TOKEN}.
+   */
+  public synchronized String getSecret(ContainerId containerId) {
+    String secret = secrets.get(containerId);
+    if (secret == null) {
+      byte[] bytes = new byte[16];
+      random.nextBytes(bytes);
+      secret = Hex.encodeHexString(bytes);
+      secrets.put(containerId, secret);
+    }
+    return secret;
+  }
+
+  /**
+   * Forgets the secret of a container that has finished.
+   */
+  public void forget(ContainerId containerId) {
+    secrets.remove(containerId);
+  }
+
+  /**
+   * Returns the container named by the {@code agent} parameter of a request, or null if
+   * there is none or the request does not carry that container's secret.
+   */
+  public ContainerId authenticate(HttpExchange exchange) {
+    String agent = getParameter(exchange, "agent");
+    String token = exchange.getRequestHeaders().getFirst(LuaFields.KITTEN_CONTROL_HEADER);
+    if (agent == null || token == null) {
+      return null;
+    }
+    ContainerId containerId;
+    try {
+      containerId = ConverterUtils.toContainerId(agent);
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+    String secret = secrets.get(containerId);
+    if (secret == null || !MessageDigest.isEqual(
+        secret.getBytes(Charsets.UTF_8), token.getBytes(Charsets.UTF_8))) {
+      LOG.warn("Rejected a request for " + exchange.getRequestURI().getPath()
+          + " from " + exchange.getRemoteAddress() + " as container " + agent);
+      return null;
+    }
+    return containerId;
+  }
+
+  public synchronized void stop() {
+    if (server != null) {
+      server.stop(0);
+      handlers.shutdownNow();
+      server = null;
+    }
+  }
+
+  /**
+   * Returns the value of the given query parameter of a request, or null.
+   */
+  public static String getParameter(HttpExchange exchange, String name) {
+    String query = exchange.getRequestURI().getRawQuery();
+    if (query == null) {
+      return null;
+    }
+    for (String param : query.split("&")) {
+      if (param.startsWith(name + "=")) {
+        return param.substring(name.length() + 1);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Sends a response with the given status code and body, which may be null.
+   */
+  public static void respond(HttpExchange exchange, int code, byte[] body) throws IOException {
+    if (body == null) {
+      exchange.sendResponseHeaders(code, -1);
+    } else {
+      exchange.sendResponseHeaders(code, body.length);
+      OutputStream os = exchange.getResponseBody();
+      os.write(body);
+      os.close();
+    }
+    exchange.close();
+  }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.service;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Assigns YARN priorities to the operators of a workflow from the structure of its DAG.
+ *
+ * <p>Each tracker's upward rank is its estimated runtime plus the largest upward rank
+ * of the trackers that consume its output, i.e., the length of the longest path from
+ * the operator to the end of the workflow. Operators are then given distinct priorities
+ * in decreasing order of rank, so that when the queue is contended the operators on the
+ * critical path receive containers first. Distinct priorities are still needed to work
+ * around https://issues.apache.org/jira/browse/YARN-314. Operators without a runtime
+ * estimate are weighted as if they ran for one second, which ranks them by the number
+ * of operators that follow them.
+ */
+public class CriticalPathScheduler {
+
+  private static final Log LOG = LogFactory.getLog(CriticalPathScheduler.class);
+
+  private static final double DEFAULT_RUNTIME = 1.0;
+
+  /**
+   * Sets the priority of each of the given trackers, starting at 1 for the highest.
+   * The containers an operator asks for before its inputs are ready are asked for at
+   * its priority plus the number of operators, below every regular ask.
+   */
+  public static void assignPriorities(Collection<ContainerTracker> trackers) {
+    final Map<ContainerTracker, Double> ranks = Maps.newHashMap();
+    for (ContainerTracker t : trackers) {
+      upwardRank(t, ranks, Lists.<ContainerTracker>newArrayList());
+    }
+
+    List<ContainerTracker> ordered = Lists.newArrayList(trackers);
+    Collections.sort(ordered, new Comparator<ContainerTracker>() {
+      @Override
+      public int compare(ContainerTracker a, ContainerTracker b) {
+        int c = Double.compare(ranks.get(b), ranks.get(a));
+        if (c == 0) {
+          c = a.params.getName().compareTo(b.params.getName());
+        }
+        return c;
+      }
+    });
+
+    int priority = 1;
+    for (ContainerTracker t : ordered) {
+      LOG.info("Operator: " + t.params.getName() + " upward rank: " + ranks.get(t)
+          + " priority: " + priority);
+      t.setEarlyPriority(priority + ordered.size());
+      t.setRequestPriority(priority++);
+    }
+  }
+
+  private static double upwardRank(ContainerTracker t, Map<ContainerTracker, Double> ranks,
+      List<ContainerTracker> path) {
+    Double rank = ranks.get(t);
+    if (rank != null) {
+      return rank;
+    }
+    if (path.contains(t)) {
+      throw new IllegalStateException("Cycle in workflow at operator " + t.params.getName());
+    }
+    path.add(t);
+    double longest = 0.0;
+    for (ContainerTracker next : t.getNextTrackers()) {
+      longest = Math.max(longest, upwardRank(next, ranks, path));
+    }
+    path.remove(path.size() - 1);
+
+    double runtime = t.params.getEstimatedRuntime();
+    rank = (runtime > 0.0 ? runtime : DEFAULT_RUNTIME) + longest;
+    ranks.put(t, rank);
+    return rank;
+  }
+
+  // Not instantiated.
+  private CriticalPathScheduler() {}
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.service;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.client.api.async.AMRMClientAsync;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Adapts the interval at which the application master heartbeats to the ResourceManager.
+ *
+ * <p>The AMRM client asks the application master for its progress on every heartbeat,
+ * which is when {@link #tick(boolean)} is called. While there are outstanding asks or
+ * releases the interval is kept at {@link #MIN_INTERVAL}, so that containers are handed
+ * out with little delay; when there is nothing to ask for it doubles on every heartbeat,
+ * up to {@link #MAX_INTERVAL}. The bounds can be set in the {@code conf} table of the
+ * Lua configuration, like any other Configuration value.
+ *
+ * <p>A new interval only applies once the heartbeat that is already sleeping wakes up,
+ * so the asks made at the start of a stage can wait up to the maximum interval before
+ * they are sent. The maximum therefore defaults to the fixed one second interval that
+ * was used before, so that backing off between stages never adds to that wait.
+ */
+public class HeartbeatController {
+
+  private static final Log LOG = LogFactory.getLog(HeartbeatController.class);
+
+  // The bounds of the heartbeat interval, in milliseconds.
+  public static final String MIN_INTERVAL = "kitten.heartbeat.min";
+  public static final String MAX_INTERVAL = "kitten.heartbeat.max";
+
+  private final AMRMClientAsync<?> resourceManager;
+  private final int minInterval;
+  private final int maxInterval;
+  private int interval;
+  private final AtomicBoolean activity = new AtomicBoolean();
+
+  private final AtomicLong heartbeats = new AtomicLong();
+  private final AtomicLong fastHeartbeats = new AtomicLong();
+  private final AtomicLong allocations = new AtomicLong();
+  private final AtomicLong totalLatency = new AtomicLong();
+  private final AtomicLong maxLatency = new AtomicLong();
+
+  // The interval the application master used to heartbeat at, and the default maximum.
+  static final int DEFAULT_MAX_INTERVAL = 1000;
+
+  public HeartbeatController(AMRMClientAsync<?> resourceManager, Configuration conf) {
+    this.resourceManager = resourceManager;
+    this.minInterval = getMinInterval(conf);
+    this.maxInterval = Math.max(minInterval, conf.getInt(MAX_INTERVAL, DEFAULT_MAX_INTERVAL));
+    this.interval = minInterval;
+  }
+
+  /**
+   * The interval to create the AMRM client with.
+   */
+  public static int getMinInterval(Configuration conf) {
+    return Math.max(1, conf.getInt(MIN_INTERVAL, 100));
+  }
+
+  /**
+   * Called when asks or releases have just been made, so that the next heartbeats
+   * carry them to the ResourceManager without delay.
+   */
+  public void activity() {
+    activity.set(true);
+    synchronized (this) {
+      setInterval(minInterval);
+    }
+  }
+
+  /**
+   * Called on every heartbeat with whether any asks are still outstanding.
+   */
+  public synchronized void tick(boolean pending) {
+    heartbeats.incrementAndGet();
+    if (activity.getAndSet(false) || pending) {
+      fastHeartbeats.incrementAndGet();
+      setInterval(minInterval);
+    } else {
+      setInterval((int) Math.min((long) interval * 2, maxInterval));
+    }
+  }
+
+  /**
+   * The interval the next heartbeat waits for, in milliseconds.
+   */
+  @VisibleForTesting
+  synchronized int getInterval() {
+    return interval;
+  }
+
+  private void setInterval(int newInterval) {
+    if (newInterval != interval) {
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Heartbeat interval: " + newInterval + " ms");
+      }
+      interval = newInterval;
+      resourceManager.setHeartbeatInterval(newInterval);
+    }
+  }
+
+  /**
+   * Records the time between asking for a container and receiving it, in milliseconds.
+   */
+  public void allocated(long latency) {
+    allocations.incrementAndGet();
+    totalLatency.addAndGet(latency);
+    long max = maxLatency.get();
+    while (latency > max && !maxLatency.compareAndSet(max, latency)) {
+      max = maxLatency.get();
+    }
+  }
+
+  public double getMeanAllocationLatency() {
+    long n = allocations.get();
+    return n == 0 ? 0.0 : ((double) totalLatency.get()) / n;
+  }
+
+  public long getMaxAllocationLatency() {
+    return maxLatency.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("Heartbeats: %d (%d at %d ms), %d allocation(s), latency mean "
+        + "%.1f ms max %d ms", heartbeats.get(), fastHeartbeats.get(), minInterval,
+        allocations.get(), getMeanAllocationLatency(), maxLatency.get());
+  }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.service;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+
+import com.cloudera.kitten.appmaster.util.HDFSFileFinder;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Decides how many instances an operator runs from the size of its input, and which
+ * of the input files each instance reads.
+ *
+ * <p>The instance count is the total input size divided by the operator's target split
+ * size, capped to its minimum and maximum instance counts. Files are never split; they
+ * are ordered by the host that holds most of their blocks, so that the files of an
+ * instance tend to live on the same node, and then cut into runs of roughly equal size.
+ */
+public class InputSplitter {
+
+  private static final Log LOG = LogFactory.getLog(InputSplitter.class);
+
+  /**
+   * Returns the files each instance of an operator should read. The size of the
+   * returned list is the number of instances to run, which is at least one.
+   */
+  public static List<List<String>> split(String operator, List<String> paths, long splitSize,
+      int minInstances, int maxInstances, Configuration conf) throws IOException {
+    List<FileStatus> files = HDFSFileFinder.listFiles(paths, conf);
+    long total = 0;
+    for (FileStatus f : files) {
+      total += f.getLen();
+    }
+    int n = instances(total, files.size(), splitSize, minInstances, maxInstances);
+
+    List<List<String>> splits = cut(sortByHost(files, conf), total, n);
+    LOG.info("Operator: " + operator + " reads " + total + " bytes in " + files.size()
+        + " file(s) with " + splits.size() + " instance(s)");
+    return splits;
+  }
+
+  /**
+   * The number of instances that read the given number of files, of the given total
+   * size, which is at least one.
+   */
+  @VisibleForTesting
+  static int instances(long total, int files, long splitSize, int minInstances,
+      int maxInstances) {
+    long wanted = (total + splitSize - 1) / splitSize;
+    if (maxInstances > 0) {
+      wanted = Math.min(wanted, maxInstances);
+    }
+    wanted = Math.max(wanted, Math.max(1, minInstances));
+    // Files are not split, so there can be no more instances than files.
+    return (int) Math.max(1, Math.min(wanted, files));
+  }
+
+  private static List<FileStatus> sortByHost(List<FileStatus> files, Configuration conf)
+      throws IOException {
+    final Map<FileStatus, String> hosts = Maps.newHashMap();
+    for (FileStatus f : files) {
+      String host = HDFSFileFinder.getPrimaryHost(f, conf);
+      hosts.put(f, host == null ? "" : host);
+    }
+    List<FileStatus> sorted = Lists.newArrayList(files);
+    Collections.sort(sorted, new Comparator<FileStatus>() {
+      @Override
+      public int compare(FileStatus a, FileStatus b) {
+        int c = hosts.get(a).compareTo(hosts.get(b));
+        return c != 0 ? c : a.getPath().compareTo(b.getPath());
+      }
+    });
+    return sorted;
+  }
+
+  /**
+   * Cuts the files into at most n consecutive runs, closing a run whenever the bytes
+   * read so far pass the next multiple of total / n.
+   */
+  @VisibleForTesting
+  static List<List<String>> cut(List<FileStatus> files, long total, int n) {
+    List<List<String>> splits = Lists.newArrayList();
+    List<String> current = Lists.newArrayList();
+    long read = 0;
+    for (int i = 0; i < files.size(); i++) {
+      FileStatus f = files.get(i);
+      current.add(f.getPath().toString());
+      read += f.getLen();
+      int left = files.size() - i - 1;
+      boolean full = (double) read * n >= (double) total * (splits.size() + 1);
+      if (splits.size() < n - 1 && left > 0 && (full || left <= n - splits.size() - 1)) {
+        splits.add(current);
+        current = Lists.newArrayList();
+      }
+    }
+    splits.add(current);
+    return splits;
+  }
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.service;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+
+import com.cloudera.kitten.appmaster.util.HDFSFileFinder;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Works out where an operator should run from the HDFS blocks of its inputs.
+ *
+ * <p>Nodes and racks are ranked by the number of input bytes they hold locally. A
+ * {@code ContainerTracker} first asks for the best nodes only, then for the best racks,
+ * and finally for any node, waiting {@link #DELAY} milliseconds at each level, in the
+ * style of delay scheduling.
+ */
+public class LocalityPlanner {
+
+  private static final Log LOG = LogFactory.getLog(LocalityPlanner.class);
+
+  // Whether to compute placement hints at all.
+  public static final String ENABLED = "kitten.locality.enabled";
+  // How long to wait for a container at one locality level before relaxing, in milliseconds.
+  public static final String DELAY = "kitten.locality.delay";
+  // The number of nodes and racks to ask for.
+  public static final String MAX_NODES = "kitten.locality.max.nodes";
+  public static final String MAX_RACKS = "kitten.locality.max.racks";
+
+  /**
+   * The nodes and racks to ask for, best first.
+   */
+  public static class Placement {
+    public final String[] nodes;
+    public final String[] racks;
+
+    public Placement(String[] nodes, String[] racks) {
+      this.nodes = nodes;
+      this.racks = racks;
+    }
+
+    @Override
+    public String toString() {
+      return "nodes: " + Arrays.toString(nodes) + " racks: " + Arrays.toString(racks);
+    }
+  }
+
+  /**
+   * Returns the placement for a container reading the given paths, or null if there
+   * is nothing to go on.
+   */
+  public static Placement plan(List<String> inputPaths, Configuration conf) {
+    if (!conf.getBoolean(ENABLED, true) || inputPaths.isEmpty()) {
+      return null;
+    }
+    Map<String, Long> hosts = Maps.newHashMap();
+    Map<String, Long> racks = Maps.newHashMap();
+    try {
+      for (String in : inputPaths) {
+        Path p = new Path(in);
+        add(hosts, HDFSFileFinder.getNumBytesOfGlobHeldByHosts(p, conf));
+        add(racks, HDFSFileFinder.getNumBytesOfGlobHeldByRacks(p, conf));
+      }
+    } catch (IOException e) {
+      LOG.warn("Could not find the block locations of " + inputPaths, e);
+      return null;
+    } catch (IllegalArgumentException e) {
+      LOG.warn("Could not parse input paths " + inputPaths, e);
+      return null;
+    }
+    String[] nodes = top(hosts, conf.getInt(MAX_NODES, 3));
+    if (nodes.length == 0) {
+      return null;
+    }
+    return new Placement(nodes, top(racks, conf.getInt(MAX_RACKS, 1)));
+  }
+
+  private static void add(Map<String, Long> total, Map<String, Long> bytes) {
+    for (Entry<String, Long> e : bytes.entrySet()) {
+      Long t = total.get(e.getKey());
+      total.put(e.getKey(), t == null ? e.getValue() : t + e.getValue());
+    }
+  }
+
+  private static String[] top(Map<String, Long> bytes, int n) {
+    List<Entry<String, Long>> entries = Lists.newArrayList(bytes.entrySet());
+    Collections.sort(entries, new Comparator<Entry<String, Long>>() {
+      @Override
+      public int compare(Entry<String, Long> a, Entry<String, Long> b) {
+        int c = b.getValue().compareTo(a.getValue());
+        return c != 0 ? c : a.getKey().compareTo(b.getKey());
+      }
+    });
+    int size = Math.min(Math.max(n, 0), entries.size());
+    String[] ret = new String[size];
+    for (int i = 0; i < size; i++) {
+      ret[i] = entries.get(i).getKey();
+    }
+    return ret;
+  }
+
+  // Not instantiated.
+  private LocalityPlanner() {}
+}
@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.service;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.records.ContainerExitStatus;
+import org.apache.hadoop.yarn.api.records.NodeId;
+import org.apache.hadoop.yarn.api.records.NodeReport;
+import org.apache.hadoop.yarn.client.api.async.AMRMClientAsync;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Counts container failures per node and asks the ResourceManager to stop handing out
+ * containers on nodes that keep failing them, so that a bad node does not use up the
+ * retries of the operators that land on it.
+ *
+ * <p>Only failures that the node is to blame for count: failed disks, and containers
+ * aborted because the node was lost or became unhealthy. Operator scripts that exit
+ * with an error, and containers that the application master released itself, do not.
+ */
+public class NodeBlacklist {
+
+  private static final Log LOG = LogFactory.getLog(NodeBlacklist.class);
+
+  // The number of failures after which a node is blacklisted; 0 turns blacklisting off.
+  public static final String FAILURES = "kitten.blacklist.failures";
+  // The largest fraction of the cluster's nodes that may be blacklisted.
+  public static final String MAX_FRACTION = "kitten.blacklist.max.fraction";
+
+  private final AMRMClientAsync<?> resourceManager;
+  private final int threshold;
+  private final float maxFraction;
+  private final Map<String, Integer> failures = Maps.newHashMap();
+  private final Set<String> blacklisted = Sets.newHashSet();
+  // The nodes that the ResourceManager last reported as lost or unhealthy.
+  private final Set<String> unusable = Sets.newHashSet();
+
+  public NodeBlacklist(AMRMClientAsync<?> resourceManager, Configuration conf) {
+    this.resourceManager = resourceManager;
+    this.threshold = conf.getInt(FAILURES, 3);
+    this.maxFraction = conf.getFloat(MAX_FRACTION, 0.33f);
+  }
+
+  /**
+   * Keeps track of the nodes that the ResourceManager reports as unusable.
+   */
+  public synchronized void nodesUpdated(List<NodeReport> nodeReports) {
+    for (NodeReport report : nodeReports) {
+      if (report.getNodeState().isUnusable()) {
+        unusable.add(report.getNodeId().getHost());
+      } else {
+        unusable.remove(report.getNodeId().getHost());
+      }
+    }
+  }
+
+  /**
+   * Records that a container failed or was lost on the given node with the given
+   * exit status, if the node is to blame for it.
+   */
+  public synchronized void failed(NodeId node, int exitStatus) {
+    if (node == null || threshold <= 0) {
+      return;
+    }
+    String host = node.getHost();
+    if (exitStatus != ContainerExitStatus.DISKS_FAILED
+        && !(exitStatus == ContainerExitStatus.ABORTED && unusable.contains(host))) {
+      return;
+    }
+    Integer count = failures.get(host);
+    count = count == null ? 1 : count + 1;
+    failures.put(host, count);
+    if (count < threshold || blacklisted.contains(host)) {
+      return;
+    }
+    int nodes = getClusterNodeCount();
+    if (blacklisted.size() + 1 > maxFraction * nodes) {
+      LOG.warn("Not blacklisting node " + host + " after " + count + " failures, "
+          + blacklisted.size() + " of " + nodes + " nodes are already blacklisted");
+      return;
+    }
+    LOG.info("Blacklisting node " + host + " after " + count + " failures");
+    blacklisted.add(host);
+    blacklist(host);
+  }
+
+  @VisibleForTesting
+  int getClusterNodeCount() {
+    return resourceManager.getClusterNodeCount();
+  }
+
+  /**
+   * Asks the ResourceManager not to hand out containers on the given host.
+   */
+  @VisibleForTesting
+  void blacklist(String host) {
+    resourceManager.updateBlacklist(Collections.singletonList(host), null);
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "Blacklisted nodes: " + blacklisted;
+  }
+}
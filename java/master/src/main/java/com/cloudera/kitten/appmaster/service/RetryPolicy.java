@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.service;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.records.ContainerExitStatus;
+
+import com.cloudera.kitten.ContainerLaunchParameters;
+
+/**
+ * Decides whether and when an operator instance whose container was lost for reasons
+ * outside of its control, such as preemption or a failed disk, is run again.
+ */
+public class RetryPolicy {
+
+  // The defaults for operators that do not set max_retries and retry_backoff in Lua.
+  public static final String MAX_RETRIES = "kitten.retry.max";
+  public static final String BACKOFF = "kitten.retry.backoff";
+  // The longest delay between retries, in milliseconds.
+  public static final String MAX_BACKOFF = "kitten.retry.max.backoff";
+
+  private final int maxRetries;
+  private final long backoff;
+  private final long maxBackoff;
+
+  public RetryPolicy(int maxRetries, long backoff, long maxBackoff) {
+    this.maxRetries = maxRetries;
+    this.backoff = backoff;
+    this.maxBackoff = maxBackoff;
+  }
+
+  public static RetryPolicy forOperator(ContainerLaunchParameters params, Configuration conf) {
+    int maxRetries = params.getMaxRetries();
+    long backoff = params.getRetryBackoff();
+    return new RetryPolicy(
+        maxRetries < 0 ? conf.getInt(MAX_RETRIES, 3) : maxRetries,
+        backoff < 0 ? conf.getLong(BACKOFF, 1000L) : backoff,
+        conf.getLong(MAX_BACKOFF, 60000L));
+  }
+
+  /**
+   * Whether a container that exited with the given status was lost rather than failed.
+   */
+  public static boolean isRetryable(int exitStatus) {
+    return exitStatus == ContainerExitStatus.ABORTED
+        || exitStatus == ContainerExitStatus.PREEMPTED
+        || exitStatus == ContainerExitStatus.DISKS_FAILED;
+  }
+
+  /**
+   * Whether an instance that has already been retried {@code retries} times may be
+   * retried again.
+   */
+  public boolean shouldRetry(int retries) {
+    return retries < maxRetries;
+  }
+
+  /**
+   * The delay before the retry that follows {@code retries} earlier ones, in milliseconds.
+   */
+  public long getDelay(int retries) {
+    long delay = backoff;
+    for (int i = 0; i < retries && delay < maxBackoff; i++) {
+      delay *= 2;
+    }
+    return Math.min(delay, maxBackoff);
+  }
+
+  @Override
+  public String toString() {
+    return "max retries: " + maxRetries + " backoff: " + backoff + " ms";
+  }
+}
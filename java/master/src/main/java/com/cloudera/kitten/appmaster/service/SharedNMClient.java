@@ -0,0 +1,213 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.service;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.apache.hadoop.yarn.api.records.ContainerLaunchContext;
+import org.apache.hadoop.yarn.api.records.ContainerStatus;
+import org.apache.hadoop.yarn.api.records.NodeId;
+import org.apache.hadoop.yarn.client.api.async.NMClientAsync;
+
+import com.google.common.collect.Maps;
+
+/**
+ * A single NodeManager client shared by all of the {@code ContainerTracker}s of an
+ * application master. Callbacks are dispatched to the handler that started the
+ * container, keyed by {@code ContainerId}, so the AM runs one bounded launcher pool
+ * however many operators the workflow has. Starts are batched per node by a
+ * {@link BatchingContainerLauncher}.
+ */
+public class SharedNMClient implements NMClientAsync.CallbackHandler {
+
+  private static final Log LOG = LogFactory.getLog(SharedNMClient.class);
+
+  // The maximum number of threads used to talk to the NodeManagers.
+  public static final String LAUNCHER_THREADS = "kitten.nm.launcher.threads";
+  // How long to wait for outstanding requests when stopping, in milliseconds.
+  public static final String STOP_TIMEOUT = "kitten.nm.stop.timeout";
+
+  private final BatchingContainerLauncher launcher;
+  private final long stopTimeout;
+  private final int launcherThreads;
+  private final ConcurrentMap<ContainerId, NMClientAsync.CallbackHandler> owners =
+      Maps.newConcurrentMap();
+
+  private final AtomicInteger pending = new AtomicInteger();
+  private final AtomicInteger maxPending = new AtomicInteger();
+  private final AtomicLong started = new AtomicLong();
+  private final AtomicLong stopped = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+
+  public SharedNMClient(Configuration conf) {
+    this.launcherThreads = conf.getInt(LAUNCHER_THREADS, 16);
+    this.stopTimeout = conf.getLong(STOP_TIMEOUT, 10000L);
+    this.launcher = new BatchingContainerLauncher(conf, launcherThreads, this);
+  }
+
+  public void startContainer(Container c, ContainerLaunchContext ctxt,
+      NMClientAsync.CallbackHandler owner) {
+    owners.put(c.getId(), owner);
+    submitted();
+    launcher.startContainer(c, ctxt);
+  }
+
+  public void getContainerStatus(ContainerId containerId, NodeId nodeId) {
+    submitted();
+    launcher.getContainerStatus(containerId, nodeId);
+  }
+
+  public void stopContainer(ContainerId containerId, NodeId nodeId) {
+    submitted();
+    launcher.stopContainer(containerId, nodeId);
+  }
+
+  /**
+   * Stops a container on behalf of a new owner, e.g., one whose previous owner has
+   * already released it.
+   */
+  public void stopContainer(ContainerId containerId, NodeId nodeId,
+      NMClientAsync.CallbackHandler owner) {
+    owners.put(containerId, owner);
+    stopContainer(containerId, nodeId);
+  }
+
+  /**
+   * Forgets the owner of a container that has finished.
+   */
+  public void release(ContainerId containerId) {
+    owners.remove(containerId);
+  }
+
+  public void stop() {
+    launcher.stop(stopTimeout);
+    LOG.info(this);
+  }
+
+  /**
+   * The maximum number of threads launching, querying and stopping containers.
+   */
+  public int getLauncherThreads() {
+    return launcherThreads;
+  }
+
+  /**
+   * The number of NodeManager requests that have been issued but not yet answered.
+   */
+  public int getPendingRequests() {
+    return pending.get();
+  }
+
+  /**
+   * The largest value {@link #getPendingRequests()} has reached.
+   */
+  public int getMaxPendingRequests() {
+    return maxPending.get();
+  }
+
+  /**
+   * The number of containers whose callbacks are currently being dispatched.
+   */
+  public int getTrackedContainers() {
+    return owners.size();
+  }
+
+  private void submitted() {
+    int p = pending.incrementAndGet();
+    int max = maxPending.get();
+    while (p > max && !maxPending.compareAndSet(max, p)) {
+      max = maxPending.get();
+    }
+  }
+
+  private NMClientAsync.CallbackHandler answered(ContainerId containerId) {
+    pending.decrementAndGet();
+    NMClientAsync.CallbackHandler owner = owners.get(containerId);
+    if (owner == null) {
+      LOG.warn("No owner for NodeManager callback on container id = " + containerId);
+    }
+    return owner;
+  }
+
+  @Override
+  public void onContainerStarted(ContainerId containerId, Map<String, ByteBuffer> allServiceResponse) {
+    started.incrementAndGet();
+    NMClientAsync.CallbackHandler owner = answered(containerId);
+    if (owner != null) {
+      owner.onContainerStarted(containerId, allServiceResponse);
+    }
+  }
+
+  @Override
+  public void onContainerStatusReceived(ContainerId containerId, ContainerStatus containerStatus) {
+    NMClientAsync.CallbackHandler owner = answered(containerId);
+    if (owner != null) {
+      owner.onContainerStatusReceived(containerId, containerStatus);
+    }
+  }
+
+  @Override
+  public void onContainerStopped(ContainerId containerId) {
+    stopped.incrementAndGet();
+    NMClientAsync.CallbackHandler owner = answered(containerId);
+    if (owner != null) {
+      owner.onContainerStopped(containerId);
+    }
+  }
+
+  @Override
+  public void onStartContainerError(ContainerId containerId, Throwable t) {
+    errors.incrementAndGet();
+    NMClientAsync.CallbackHandler owner = answered(containerId);
+    if (owner != null) {
+      owner.onStartContainerError(containerId, t);
+    }
+  }
+
+  @Override
+  public void onGetContainerStatusError(ContainerId containerId, Throwable t) {
+    errors.incrementAndGet();
+    NMClientAsync.CallbackHandler owner = answered(containerId);
+    if (owner != null) {
+      owner.onGetContainerStatusError(containerId, t);
+    }
+  }
+
+  @Override
+  public void onStopContainerError(ContainerId containerId, Throwable t) {
+    errors.incrementAndGet();
+    NMClientAsync.CallbackHandler owner = answered(containerId);
+    if (owner != null) {
+      owner.onStopContainerError(containerId, t);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return String.format("NodeManager client: %d launcher thread(s), %d pending request(s) "
+        + "(max %d), %d container(s) tracked, %d started in %d batch(es), %d stopped, "
+        + "%d error(s)", launcherThreads, pending.get(), maxPending.get(), owners.size(),
+        started.get(), launcher.getBatchCount(), stopped.get(), errors.get());
+  }
+}
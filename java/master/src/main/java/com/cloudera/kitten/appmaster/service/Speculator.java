@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.service;
+
+import java.util.Collection;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+import com.cloudera.kitten.util.OutputCommitter;
+
+/**
+ * Periodically looks for straggling operator instances and asks their trackers to run
+ * a duplicate attempt.
+ *
+ * <p>An instance is a straggler when it has been running for more than {@link #MULTIPLE}
+ * times the median runtime of the instances of the same operator that have already
+ * finished. The first attempt to finish wins, and the others are killed; duplicate
+ * attempts are counted here rather than as container failures.
+ */
+public class Speculator implements Runnable {
+
+  private static final Log LOG = LogFactory.getLog(Speculator.class);
+
+  // How many times the median runtime an instance may run before it is duplicated.
+  public static final String MULTIPLE = "kitten.speculation.multiple";
+  // The fraction of an operator's instances that must finish before any are duplicated.
+  public static final String MIN_FINISHED = "kitten.speculation.min.finished";
+  // How often to look for stragglers, in milliseconds.
+  public static final String INTERVAL = "kitten.speculation.interval";
+
+  private final Collection<ContainerTracker> trackers;
+  private final boolean enabled;
+  private final double multiple;
+  private final double minFinished;
+  private final long interval;
+
+  private final AtomicInteger launched = new AtomicInteger();
+  private final AtomicInteger won = new AtomicInteger();
+  private final AtomicInteger failed = new AtomicInteger();
+  private final AtomicInteger killed = new AtomicInteger();
+
+  public Speculator(Collection<ContainerTracker> trackers, Configuration conf) {
+    this.trackers = trackers;
+    this.enabled = conf.getBoolean(OutputCommitter.SPECULATION, false);
+    this.multiple = conf.getFloat(MULTIPLE, 2.0f);
+    this.minFinished = conf.getFloat(MIN_FINISHED, 0.25f);
+    this.interval = conf.getLong(INTERVAL, 5000L);
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public void start(ScheduledExecutorService timer) {
+    if (enabled) {
+      timer.scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Override
+  public void run() {
+    try {
+      for (ContainerTracker tracker : trackers) {
+        launched.addAndGet(tracker.speculate(multiple, minFinished));
+      }
+    } catch (Throwable t) {
+      LOG.error("Error looking for straggling instances", t);
+    }
+  }
+
+  /**
+   * Records that a duplicate attempt finished before the attempt it was started for.
+   */
+  void duplicateWon() {
+    won.incrementAndGet();
+  }
+
+  /**
+   * Records that an attempt failed while another attempt of the same instance was
+   * still running or had already succeeded.
+   */
+  void duplicateFailed() {
+    failed.incrementAndGet();
+  }
+
+  /**
+   * Records that an attempt was killed because another attempt finished first.
+   */
+  void attemptKilled() {
+    killed.incrementAndGet();
+  }
+
+  public int getLaunchedCount() {
+    return launched.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("Speculation: %d duplicate attempt(s) launched, %d won, "
+        + "%d failed, %d attempt(s) killed", launched.get(), won.get(), failed.get(),
+        killed.get());
+  }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.client.api.async.AMRMClientAsync;
+
+/**
+ * Hands containers that no tracker wants back to the ResourceManager, so that they
+ * are released in the same heartbeat that delivered them instead of being held idle
+ * for the rest of the application, and keeps count of the resources that were
+ * allocated to the application without being used. Containers that were held for a
+ * while before they were given back are also counted in MB-seconds and
+ * vcore-seconds, from the time they were held since.
+ */
+public class SurplusContainerHandler {
+
+  private static final Log LOG = LogFactory.getLog(SurplusContainerHandler.class);
+
+  private final AMRMClientAsync<?> resourceManager;
+  private final AtomicInteger released = new AtomicInteger();
+  private final AtomicLong releasedMemory = new AtomicLong();
+  private final AtomicLong releasedCores = new AtomicLong();
+  private final AtomicLong wastedMemorySeconds = new AtomicLong();
+  private final AtomicLong wastedCoreSeconds = new AtomicLong();
+
+  public SurplusContainerHandler(AMRMClientAsync<?> resourceManager) {
+    this.resourceManager = resourceManager;
+  }
+
+  /**
+   * Releases a container that was handed to the application but is not going to be used.
+   */
+  public void release(Container c) {
+    LOG.info("Releasing surplus container id = " + c.getId() + " on node = " + c.getNodeId()
+        + " cores: " + c.getResource().getVirtualCores() + " mem: " + c.getResource().getMemory());
+    resourceManager.releaseAssignedContainer(c.getId());
+    released.incrementAndGet();
+    releasedMemory.addAndGet(c.getResource().getMemory());
+    releasedCores.addAndGet(c.getResource().getVirtualCores());
+  }
+
+  /**
+   * Releases a container that was held unused since {@code heldSince}, in milliseconds
+   * since the epoch, and counts the resources it tied up for that long.
+   */
+  public void release(Container c, long heldSince) {
+    release(c);
+    held(c, heldSince);
+  }
+
+  /**
+   * Counts the resources of a container that sat unused from {@code heldSince} until
+   * now, for containers that are given back some other way, such as by stopping them.
+   */
+  public void held(Container c, long heldSince) {
+    long seconds = Math.max(0L, System.currentTimeMillis() - heldSince) / 1000L;
+    wastedMemorySeconds.addAndGet(seconds * c.getResource().getMemory());
+    wastedCoreSeconds.addAndGet(seconds * c.getResource().getVirtualCores());
+  }
+
+  public int getReleasedCount() {
+    return released.get();
+  }
+
+  public long getReleasedMemory() {
+    return releasedMemory.get();
+  }
+
+  public long getReleasedCores() {
+    return releasedCores.get();
+  }
+
+  public long getWastedMemorySeconds() {
+    return wastedMemorySeconds.get();
+  }
+
+  public long getWastedCoreSeconds() {
+    return wastedCoreSeconds.get();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("Released %d surplus container(s) (%d MB, %d cores), "
+        + "held unused for %d MB-seconds, %d vcore-seconds",
+        released.get(), releasedMemory.get(), releasedCores.get(),
+        wastedMemorySeconds.get(), wastedCoreSeconds.get());
+  }
+}
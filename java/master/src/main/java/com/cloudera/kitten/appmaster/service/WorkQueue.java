@@ -0,0 +1,188 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.service;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+
+import com.cloudera.kitten.appmaster.util.HDFSFileFinder;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * The input files of a work queue operator, which its containers pull one at a time
+ * so that containers on faster nodes (or with smaller files) naturally take more of
+ * them.
+ *
+ * <p>The file a container is working on is considered done when the container asks
+ * for the next one, or exits successfully; it goes back to the front of the queue if
+ * the container fails or is lost, unless it has been tried {@link #MAX_ATTEMPTS} times.
+ */
+public class WorkQueue {
+
+  private static final Log LOG = LogFactory.getLog(WorkQueue.class);
+
+  // How many times an input file is handed out before it is given up on.
+  public static final String MAX_ATTEMPTS = "kitten.workqueue.max.attempts";
+
+  private final String operator;
+  private final List<String> splits;
+  private final int maxAttempts;
+  private final LinkedList<Integer> pending = new LinkedList<Integer>();
+  private final Map<ContainerId, Integer> inFlight = Maps.newHashMap();
+  private final Map<Integer, Integer> attempts = Maps.newHashMap();
+  private int done;
+  private int failed;
+
+  public WorkQueue(String operator, List<String> splits, int maxAttempts) {
+    this.operator = operator;
+    this.splits = splits;
+    this.maxAttempts = maxAttempts;
+    for (int i = 0; i < splits.size(); i++) {
+      pending.add(i);
+    }
+  }
+
+  /**
+   * Creates the queue of the files under the given HDFS paths (or globs), in order.
+   */
+  public static WorkQueue create(String operator, List<String> paths, Configuration conf)
+      throws IOException {
+    List<String> splits = Lists.newArrayList();
+    for (FileStatus f : HDFSFileFinder.listFiles(paths, conf)) {
+      splits.add(f.getPath().toString());
+    }
+    LOG.info("Operator: " + operator + " has " + splits.size() + " input file(s) to queue");
+    return new WorkQueue(operator, Collections.unmodifiableList(splits),
+        conf.getInt(MAX_ATTEMPTS, 4));
+  }
+
+  public int size() {
+    return splits.size();
+  }
+
+  /**
+   * Marks the file the given container was working on as done, and hands it the next
+   * one as its index in the queue, or returns null if the queue is empty.
+   */
+  public synchronized Integer next(ContainerId worker) {
+    finished(worker, true);
+    Integer split = pending.poll();
+    if (split != null) {
+      inFlight.put(worker, split);
+      Integer count = attempts.get(split);
+      attempts.put(split, count == null ? 1 : count + 1);
+    }
+    return split;
+  }
+
+  public String getSplit(int index) {
+    return splits.get(index);
+  }
+
+  /**
+   * Called when a container has exited; the file it was working on is put back in the
+   * queue unless it succeeded.
+   */
+  public synchronized void finished(ContainerId worker, boolean succeeded) {
+    Integer split = inFlight.remove(worker);
+    if (split == null) {
+      return;
+    }
+    if (succeeded) {
+      done++;
+    } else if (attempts.get(split) >= maxAttempts) {
+      LOG.error("Giving up on " + splits.get(split) + " of operator: " + operator
+          + " after " + maxAttempts + " attempt(s)");
+      failed++;
+    } else {
+      LOG.info("Requeueing " + splits.get(split) + " of operator: " + operator);
+      pending.addFirst(split);
+    }
+  }
+
+  /**
+   * Gives up on the files that no container has picked up yet, and returns how many
+   * there were.
+   */
+  public synchronized int abandon() {
+    int count = pending.size();
+    failed += count;
+    pending.clear();
+    return count;
+  }
+
+  /**
+   * The number of files that no container has picked up yet.
+   */
+  public synchronized int remaining() {
+    return pending.size();
+  }
+
+  /**
+   * Whether every file is done or has been given up on.
+   */
+  public synchronized boolean isDone() {
+    return done + failed == splits.size();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("Work queue of %s: %d of %d file(s) done, %d failed, %d in flight",
+        operator, done, splits.size(), failed, inFlight.size());
+  }
+
+  /**
+   * Serves the next file to the container named by the {@code agent} parameter, as its
+   * index and path separated by a tab, or no content once its operator's queue is empty.
+   * Requests that do not carry the container's secret are turned away.
+   */
+  public static class Handler implements HttpHandler {
+
+    private final WorkflowService service;
+
+    public Handler(WorkflowService service) {
+      this.service = service;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      ContainerId worker = service.control.authenticate(exchange);
+      ContainerTracker tracker = worker == null ? null : service.getTracker(worker);
+      if (tracker == null) {
+        ControlServer.respond(exchange, 404, null);
+        return;
+      }
+      String split = tracker.nextSplit(worker);
+      if (split == null) {
+        ControlServer.respond(exchange, 204, null);
+      } else {
+        ControlServer.respond(exchange, 200, split.getBytes(Charsets.UTF_8));
+      }
+    }
+  }
+}
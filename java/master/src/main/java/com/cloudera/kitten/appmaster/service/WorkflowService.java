@@ -23,6 +23,10 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -33,13 +37,17 @@ import com.google.common.collect.Sets;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.yarn.api.ApplicationConstants;
 import org.apache.hadoop.yarn.api.protocolrecords.RegisterApplicationMasterResponse;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
 import org.apache.hadoop.yarn.api.records.Container;
 import org.apache.hadoop.yarn.api.records.ContainerExitStatus;
 import org.apache.hadoop.yarn.api.records.ContainerId;
 import org.apache.hadoop.yarn.api.records.ContainerLaunchContext;
 import org.apache.hadoop.yarn.api.records.ContainerStatus;
 import org.apache.hadoop.yarn.api.records.FinalApplicationStatus;
+import org.apache.hadoop.yarn.api.records.NodeId;
 import org.apache.hadoop.yarn.api.records.NodeReport;
 import org.apache.hadoop.yarn.api.records.Priority;
 import org.apache.hadoop.yarn.api.records.Resource;
@@ -48,19 +56,24 @@ import org.apache.hadoop.yarn.client.api.AMRMClient.ContainerRequest;
 import org.apache.hadoop.yarn.client.api.async.AMRMClientAsync;
 import org.apache.hadoop.yarn.client.api.async.NMClientAsync;
 import org.apache.hadoop.yarn.conf.YarnConfiguration;
+import org.apache.hadoop.yarn.util.ConverterUtils;
 
 import com.cloudera.kitten.ContainerLaunchParameters;
-import com.cloudera.kitten.appmaster.AbstractClient;
 import com.cloudera.kitten.appmaster.ApplicationMasterParameters;
 import com.cloudera.kitten.appmaster.ApplicationMasterService;
 import com.cloudera.kitten.appmaster.params.lua.WorkflowParameters;
+import com.cloudera.kitten.appmaster.reporter.WorkflowReporter;
 import com.cloudera.kitten.lua.LuaFields;
+import com.cloudera.kitten.util.LocalDataHelper;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Maps;
-import com.google.common.util.concurrent.AbstractScheduledService;
+import com.google.common.util.concurrent.AbstractIdleService;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
 
 public class WorkflowService extends
-    AbstractScheduledService implements ApplicationMasterService,
+    AbstractIdleService implements ApplicationMasterService,
     AMRMClientAsync.CallbackHandler {
 
   private static final Log LOG = LogFactory.getLog(WorkflowService.class);
@@ -69,11 +82,36 @@ public class WorkflowService extends
   public final YarnConfiguration conf;
   private final AtomicInteger totalFailures = new AtomicInteger();
   private HashMap<String,ContainerTracker> trackers;
-  private HashMap<ContainerId, ContainerTracker> containerAllocation;
-  public int prior;
+  private final Map<ContainerId, ContainerTracker> containerAllocation = Maps.newConcurrentMap();
+  private final Map<ContainerId, NodeId> containerNodes = Maps.newConcurrentMap();
+  // Containers that failed to start, and were already handled as failed attempts.
+  private final Set<ContainerId> startFailures = Sets.newSetFromMap(
+      Maps.<ContainerId, Boolean>newConcurrentMap());
+  // The trackers that asked for containers in advance, by the priority they asked at.
+  final Map<Integer, ContainerTracker> anticipations = Maps.newConcurrentMap();
+  // When held containers were last given back to each starved tracker; timer thread only.
+  private final Map<ContainerTracker, Long> starvationReliefs = Maps.newHashMap();
+  final AllocationIndex allocationIndex = new AllocationIndex();
+  SurplusContainerHandler surplus;
+  private NodeBlacklist blacklist;
+  HeartbeatController heartbeat;
+  private WorkflowReporter reporter;
   public AMRMClientAsync<ContainerRequest> resourceManager;
+  SharedNMClient nodeManager;
+  ScheduledExecutorService timer;
+  // Sets up downstream operators, which asks the NameNode about their inputs, away
+  // from the ResourceManager and NodeManager callback threads.
+  ExecutorService planner;
+  // The application that holds leases on the shared staging area, once known.
+  private ApplicationId leaseOwner;
+  Speculator speculator;
+  ContainerPool pool;
+  ControlServer control;
+  private boolean workQueueStarted = false;
+  private boolean stageReportsStarted = false;
   private boolean hasRunningContainers = false;
   private Throwable throwable;
+  private final CountDownLatch completion = new CountDownLatch(1);
 
 protected ContainerLaunchContextFactory factory;
 
@@ -81,7 +119,6 @@ protected ContainerLaunchContextFactory factory;
 	  this.trackers = new HashMap<String, ContainerTracker>();
     this.parameters = Preconditions.checkNotNull(parameters);
     this.conf = new YarnConfiguration(conf);
-    this.prior=1;
   }
 
   @Override
@@ -95,11 +132,16 @@ protected ContainerLaunchContextFactory factory;
   }
   
   @Override
-  protected void startUp() throws IOException {
-	  this.containerAllocation = new HashMap<ContainerId, ContainerTracker>();
-    this.resourceManager = AMRMClientAsync.createAMRMClientAsync(1000, this);
+  protected void startUp() throws Exception {
+    this.reporter = WorkflowReporter.create(parameters.jobName, parameters.workflow, conf);
+    this.reporter.start();
+    this.resourceManager = AMRMClientAsync.createAMRMClientAsync(
+        HeartbeatController.getMinInterval(conf), this);
     this.resourceManager.init(conf);
     this.resourceManager.start();
+    this.heartbeat = new HeartbeatController(resourceManager, conf);
+    this.surplus = new SurplusContainerHandler(resourceManager);
+    this.blacklist = new NodeBlacklist(resourceManager, conf);
 
     RegisterApplicationMasterResponse registration;
     try {
@@ -115,8 +157,31 @@ protected ContainerLaunchContextFactory factory;
 
     factory = new ContainerLaunchContextFactory(
         registration.getMaximumResourceCapability());
+    nodeManager = new SharedNMClient(conf);
+    timer = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setNameFormat("WorkflowTimer").setDaemon(true).build());
+    planner = Executors.newSingleThreadExecutor(
+        new ThreadFactoryBuilder().setNameFormat("WorkflowPlanner").setDaemon(true).build());
+    control = new ControlServer(parameters.getHostname());
+    pool = new ContainerPool(this, conf);
+    pool.start(control);
     
     trackers = parameters.createTrackers(this);
+    CriticalPathScheduler.assignPriorities(trackers.values());
+    speculator = new Speculator(trackers.values(), conf);
+    speculator.start(timer);
+    if (conf.getFloat(ContainerTracker.SLOW_START, 1.0f) < 1.0f) {
+      final long starvation = conf.getLong(ContainerTracker.SLOW_START_STARVATION, 10000L);
+      long period = Math.max(100L, starvation / 4);
+      timer.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          releaseHeldIfStarved(starvation);
+        }
+      }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    startLeaseRenewal();
 
     for(ContainerTracker t : trackers.values()){
 	    t.init(factory);
@@ -135,6 +200,60 @@ protected ContainerLaunchContextFactory factory;
     trackers.get("Move_MySQL_HBase").init(factory);*/
     
     this.hasRunningContainers = true;
+    statusChanged();
+    checkCompletion();
+  }
+
+  /**
+   * Keeps the leases that this application holds on entries of the shared staging area
+   * alive while it runs, so that they are not removed before its last operator starts.
+   */
+  private void startLeaseRenewal() {
+    String containerId = System.getenv(ApplicationConstants.Environment.CONTAINER_ID.name());
+    if (containerId == null) {
+      return;
+    }
+    leaseOwner = ConverterUtils.toContainerId(containerId).getApplicationAttemptId()
+        .getApplicationId();
+    long period = Math.max(1000L, conf.getLong(LocalDataHelper.SHARED_STAGING_LEASE,
+        LocalDataHelper.DEFAULT_SHARED_STAGING_LEASE) / 4);
+    timer.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          LocalDataHelper.renewLeases(FileSystem.get(conf),
+              parameters.getLocalFileUris().values(), leaseOwner);
+        } catch (IOException e) {
+          LOG.warn("Could not renew the leases on the shared staging area", e);
+        }
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public void awaitCompletion() throws InterruptedException {
+    completion.await();
+  }
+
+  /**
+   * Called whenever the status of an operator or dataset in the workflow changes.
+   */
+  void statusChanged() {
+    reporter.update();
+  }
+
+  /**
+   * Called from the container callbacks whenever a container finishes; releases
+   * {@link #awaitCompletion()} once the workflow has either completed or failed.
+   */
+  void checkCompletion() {
+    if (totalFailures.get() > parameters.getAllowedFailures()) {
+      LOG.info("Failure threshold exceeded: " + totalFailures.get() + " failed container(s)");
+      completion.countDown();
+    } else if (allTrackersFinished()) {
+      LOG.info("All operators have finished");
+      completion.countDown();
+    }
   }
   
   @Override
@@ -142,12 +261,27 @@ protected ContainerLaunchContextFactory factory;
     // Stop the containers in the case that we're finishing because of a timeout.
     LOG.info("Stopping trackers");
     this.hasRunningContainers = false;
+    completion.countDown();
 
+    if (timer != null) {
+      timer.shutdownNow();
+    }
+    if (planner != null) {
+      planner.shutdownNow();
+    }
     for (ContainerTracker tracker : trackers.values()) {
       if (tracker.hasRunningContainers()) {
         tracker.kill();
       }
     }
+    if (leaseOwner != null) {
+      try {
+        LocalDataHelper.releaseLeases(FileSystem.get(conf),
+            parameters.getLocalFileUris().values(), leaseOwner);
+      } catch (IOException e) {
+        LOG.warn("Could not release the leases on the shared staging area", e);
+      }
+    }
     FinalApplicationStatus status;
     String message = null;
     if (state() == State.FAILED || totalFailures.get() > parameters.getAllowedFailures()) {
@@ -159,27 +293,59 @@ protected ContainerLaunchContextFactory factory;
     } else {
       status = FinalApplicationStatus.SUCCEEDED;
     }
+    LOG.info(surplus);
+    if (speculator != null) {
+      LOG.info(speculator);
+    }
+    LOG.info(blacklist);
+    LOG.info(heartbeat);
+    if (pool != null && pool.isEnabled()) {
+      LOG.info(pool);
+    }
+    for (ContainerTracker tracker : trackers.values()) {
+      if (tracker.getRetryCount() > 0) {
+        LOG.info("Operator: " + tracker.params.getName() + " retried " + tracker.getRetryCount()
+            + " lost instance(s)");
+      }
+    }
     LOG.info("Sending finish request with status = " + status);
     try {
       resourceManager.unregisterApplicationMaster(status, message, null);
     } catch (Exception e) {
       LOG.error("Error finishing application master", e);
     }
+    if (pool != null) {
+      pool.stop();
+    }
+    if (control != null) {
+      control.stop();
+    }
+    if (nodeManager != null) {
+      nodeManager.stop();
+    }
+    reporter.close(conf.getLong(WorkflowReporter.CLOSE_TIMEOUT,
+        conf.getLong(WorkflowReporter.CONNECT_TIMEOUT, 5000L)
+        + conf.getLong(WorkflowReporter.READ_TIMEOUT, 10000L)));
   }
 
-  @Override
-  protected Scheduler scheduler() {
-    return Scheduler.newFixedRateSchedule(0, 1, TimeUnit.SECONDS);
+  /**
+   * Hands a container that a tracker no longer needs back to the ResourceManager.
+   */
+  void releaseContainer(Container c) {
+    containerAllocation.remove(c.getId());
+    containerNodes.remove(c.getId());
+    surplus.release(c);
+    heartbeat.activity();
   }
-  
-  @Override
-  protected void runOneIteration() throws Exception {
 
-	  AbstractClient.issueRequest(parameters.jobName, parameters.workflow);
-    if (totalFailures.get() > parameters.getAllowedFailures() ||
-        allTrackersFinished()) {
-      stop();
-    }
+  /**
+   * Hands back a container that a tracker held unused since {@code heldSince}.
+   */
+  void releaseContainer(Container c, long heldSince) {
+    containerAllocation.remove(c.getId());
+    containerNodes.remove(c.getId());
+    surplus.release(c, heldSince);
+    heartbeat.activity();
   }
 
   private boolean allTrackersFinished() {
@@ -199,49 +365,205 @@ protected ContainerLaunchContextFactory factory;
   public void onContainersCompleted(List<ContainerStatus> containerStatuses) {
     LOG.info(containerStatuses.size() + " containers have completed");
     for (ContainerStatus status : containerStatuses) {
-      int exitStatus = status.getExitStatus();
-      if (0 != exitStatus) {
-        // container failed
-        if (ContainerExitStatus.ABORTED != exitStatus) {
-            totalFailures.incrementAndGet();
-      	  containerAllocation.remove(status.getContainerId()).containerCompleted(status.getContainerId());
-        } else {
-          // container was killed by framework, possibly preempted
-          // we should re-try as the container was lost for some reason
+      control.forget(status.getContainerId());
+      if (startFailures.remove(status.getContainerId())) {
+        // handled when it failed to start, whatever the RM reports for it now
+        continue;
+      }
+      pool.containerCompleted(status.getContainerId());
+      completed(status.getContainerId(), status.getExitStatus());
+    }
+    checkCompletion();
+  }
+
+  /**
+   * Called by a tracker when one of its containers could not be started. The container
+   * is given back and the attempt fails right away, rather than once the RM notices
+   * that the container was never used, and the RM's report of it later is skipped.
+   */
+  void startFailed(ContainerId containerId) {
+    startFailures.add(containerId);
+    resourceManager.releaseAssignedContainer(containerId);
+    completed(containerId, ContainerExitStatus.INVALID);
+    checkCompletion();
+  }
+
+  /**
+   * Called by the {@link ContainerPool} when an operator instance that ran in a reused
+   * container has finished; the container itself stays up for the next one.
+   */
+  void taskCompleted(ContainerId containerId, int exitStatus) {
+    completed(containerId, exitStatus);
+    checkCompletion();
+  }
+
+  /**
+   * Gives back containers held for operators whose inputs are not ready, once an
+   * operator whose inputs are ready has waited longer than {@code starvation} for a
+   * container, so that the held containers cannot starve the operators they wait on.
+   * Only containers that the starved operator could run in are given back, no more than
+   * it waits for, and not again for the same operator until it has starved once more.
+   */
+  private void releaseHeldIfStarved(long starvation) {
+    long now = System.currentTimeMillis();
+    for (ContainerTracker t : trackers.values()) {
+      Long askedAt = t.getOldestAsk();
+      if (askedAt == null || now - askedAt <= starvation) {
+        continue;
+      }
+      Long relieved = starvationReliefs.get(t);
+      if (relieved != null && now - relieved <= starvation) {
+        continue;
+      }
+      int wanted = t.getNeeded();
+      int released = 0;
+      for (ContainerTracker held : trackers.values()) {
+        if (released >= wanted) {
+          break;
+        }
+        if (held != t) {
+          released += held.releaseHeldContainers(t, wanted - released);
         }
-      } else {
-        // nothing to do
-        // container completed successfully
-          LOG.info("Container id = " + status.getContainerId() + " completed successfully");
-    	  containerAllocation.remove(status.getContainerId()).containerCompleted(status.getContainerId());
       }
+      if (released > 0) {
+        starvationReliefs.put(t, now);
+      }
+    }
+  }
+
+  /**
+   * Called by a tracker when an attempt succeeded but its output could not be
+   * committed, which fails the attempt.
+   */
+  void outputCommitFailed(ContainerId containerId) {
+    LOG.warn("Container id = " + containerId + " failed to commit its output");
+    totalFailures.incrementAndGet();
+  }
+
+  /**
+   * Starts serving the input files of work queue operators to their containers.
+   */
+  synchronized void startWorkQueue() throws IOException {
+    if (!workQueueStarted) {
+      control.addHandler("/split", new WorkQueue.Handler(this));
+      workQueueStarted = true;
+    }
+  }
+
+  /**
+   * Starts taking the reports of fused containers on which of their operators have
+   * finished.
+   */
+  synchronized void startStageReports() throws IOException {
+    if (!stageReportsStarted) {
+      control.addHandler("/stage", new StageHandler());
+      stageReportsStarted = true;
+    }
+  }
+
+  /**
+   * Hands the index of the finished operator that the container named by the
+   * {@code agent} parameter reports in {@code stage} to the container's tracker, if the
+   * request carries that container's secret.
+   */
+  private class StageHandler implements HttpHandler {
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      ContainerId agent = control.authenticate(exchange);
+      String stage = ControlServer.getParameter(exchange, "stage");
+      ContainerTracker tracker;
+      int index;
+      try {
+        tracker = agent == null ? null : getTracker(agent);
+        index = Integer.parseInt(stage);
+      } catch (RuntimeException e) {
+        // missing or malformed parameters
+        tracker = null;
+        index = -1;
+      }
+      if (tracker == null || index < 0) {
+        ControlServer.respond(exchange, 404, null);
+        return;
+      }
+      tracker.stageCompleted(index);
+      ControlServer.respond(exchange, 204, null);
+    }
+  }
+
+  /**
+   * Returns the tracker that the given running container belongs to, or null.
+   */
+  ContainerTracker getTracker(ContainerId containerId) {
+    return containerAllocation.get(containerId);
+  }
+
+  /**
+   * Called by the {@link ContainerPool} when it hands a running container to a tracker.
+   */
+  void assigned(Container c, ContainerTracker tracker) {
+    containerAllocation.put(c.getId(), tracker);
+    containerNodes.put(c.getId(), c.getNodeId());
+  }
+
+  private void completed(ContainerId containerId, int exitStatus) {
+    ContainerTracker tracker = containerAllocation.remove(containerId);
+    NodeId node = containerNodes.remove(containerId);
+    if (tracker == null) {
+      // e.g., a surplus container that we released
+      return;
+    }
+    if (tracker.releaseHeldContainer(containerId)) {
+      // allocated in advance, but taken back before its inputs were ready
+      return;
+    }
+    if (0 != exitStatus) {
+      if (RetryPolicy.isRetryable(exitStatus) && tracker.retryLostContainer(containerId, exitStatus)) {
+        // container was killed by framework, possibly preempted; it will be re-tried
+        blacklist.failed(node, exitStatus);
+        return;
+      }
+      // container failed
+      if (tracker.attemptFailed(containerId)) {
+        totalFailures.incrementAndGet();
+        blacklist.failed(node, exitStatus);
+      }
+      tracker.containerCompleted(containerId, false);
+    } else {
+      // container completed successfully
+      LOG.info("Container id = " + containerId + " completed successfully");
+      tracker.containerCompleted(containerId, true);
     }
   }
 
   @Override
   public void onContainersAllocated(List<Container> allocatedContainers) {
     LOG.info("Allocating " + allocatedContainers.size() + " container(s)");
-    Set<Container> assigned = Sets.newHashSet();
-    for (ContainerTracker tracker : trackers.values()) {
-        for (Container allocated : allocatedContainers) {
-            if (tracker.isInitilized && tracker.needsContainers()) {
-	          if (!assigned.contains(allocated) && tracker.matches(allocated)) {
-	        	  LOG.info("Allocated cores: "+allocated.getResource().getVirtualCores());
-	            tracker.launchContainer(allocated);
-	            assigned.add(allocated);
-	            containerAllocation.put(allocated.getId(), tracker);
-	          }
-            }
+    for (Container allocated : allocatedContainers) {
+      ContainerTracker early = anticipations.get(allocated.getPriority().getPriority());
+      if (early != null) {
+        containerAllocation.put(allocated.getId(), early);
+        containerNodes.put(allocated.getId(), allocated.getNodeId());
+        if (!early.earlyContainerAllocated(allocated)) {
+          releaseContainer(allocated);
         }
+        continue;
+      }
+      ContainerTracker tracker = allocationIndex.match(allocated);
+      if (tracker == null) {
+        surplus.release(allocated);
+        heartbeat.activity();
+        continue;
+      }
+      LOG.info("Allocated cores: "+allocated.getResource().getVirtualCores());
+      if (!tracker.launchContainer(allocated)) {
+        surplus.release(allocated);
+        heartbeat.activity();
+        continue;
+      }
+      containerAllocation.put(allocated.getId(), tracker);
+      containerNodes.put(allocated.getId(), allocated.getNodeId());
+      LOG.info("Allocated: "+allocated.getId()+" to operator: "+tracker.params.getName());
     }
-    for(Entry<ContainerId, ContainerTracker> e: containerAllocation.entrySet()){
-    	LOG.info("Allocated: "+e.getKey()+" to operator: "+e.getValue().params.getName());
-    }
-    /*if (assigned.size() < allocatedContainers.size()) {
-      LOG.error(String.format("Not all containers were allocated (%d out of %d)", assigned.size(),
-          allocatedContainers.size()));
-      stop();
-    }*/
   }
 
   @Override
@@ -251,7 +573,7 @@ protected ContainerLaunchContextFactory factory;
 
   @Override
   public void onNodesUpdated(List<NodeReport> nodeReports) {
-    //TODO
+    blacklist.nodesUpdated(nodeReports);
   }
 
   @Override
@@ -259,7 +581,10 @@ protected ContainerLaunchContextFactory factory;
     int num = 0, den = 0;
     for (ContainerTracker tracker : trackers.values()) {
       num += tracker.completed.get();
-      den += tracker.params.getNumInstances();
+      den += tracker.getNumInstances();
+    }
+    if (heartbeat != null) {
+      heartbeat.tick(!allocationIndex.isEmpty());
     }
     if (den == 0) {
       return 0.0f;
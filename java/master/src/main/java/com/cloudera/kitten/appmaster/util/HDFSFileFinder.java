@@ -15,8 +15,11 @@
 package com.cloudera.kitten.appmaster.util;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -26,34 +29,66 @@ import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.net.NetworkTopology;
 import org.apache.hadoop.util.Tool;
 import org.apache.hadoop.util.ToolRunner;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 public class HDFSFileFinder extends Configured implements Tool {
   
   private static Log LOG = LogFactory.getLog(HDFSFileFinder.class);
+
+  // What the byte counts are keyed by.
+  private static final int DATANODES = 0;
+  private static final int HOSTS = 1;
+  private static final int RACKS = 2;
   
   public Map<String,Long> getNumBytesOfGlobHeldByDatanodes(Path p) throws IOException {
     return getNumBytesOfGlobHeldByDatanodes(p, getConf());
   }
   
   public static Map<String,Long> getNumBytesOfGlobHeldByDatanodes(Path p, Configuration conf) throws IOException {
+    return getNumBytesOfGlobHeld(p, conf, DATANODES);
+  }
+
+  /**
+   * Like {@link #getNumBytesOfGlobHeldByDatanodes(Path, Configuration)}, but keyed by the
+   * hostnames that YARN uses to identify nodes rather than by datanode address.
+   */
+  public static Map<String,Long> getNumBytesOfGlobHeldByHosts(Path p, Configuration conf) throws IOException {
+    return getNumBytesOfGlobHeld(p, conf, HOSTS);
+  }
+
+  /**
+   * Returns the number of bytes of the files matching the glob that are held on each rack.
+   */
+  public static Map<String,Long> getNumBytesOfGlobHeldByRacks(Path p, Configuration conf) throws IOException {
+    return getNumBytesOfGlobHeld(p, conf, RACKS);
+  }
+
+  private static Map<String,Long> getNumBytesOfGlobHeld(Path p, Configuration conf, int level) throws IOException {
     FileSystem fs = p.getFileSystem(conf);
     
     HashMap<String,Long> bytesHeld = Maps.newHashMap();
-    for (FileStatus f : fs.globStatus(p)) {
-      BlockLocation[] bls = fs.getFileBlockLocations(p, 0, f.getLen());
-      if (bls.length > 0) {
-        for (BlockLocation bl : bls) {
-          long l = bl.getLength();
-          for (String name : bl.getNames()) {
-            if (bytesHeld.containsKey(name))
-              bytesHeld.put(name, bytesHeld.get(name) + l);
-            else
-              bytesHeld.put(name, l);
-          }
+    FileStatus[] files = fs.globStatus(p);
+    if (files == null) {
+      return bytesHeld;
+    }
+    for (FileStatus f : files) {
+      if (f.isDirectory()) {
+        continue;
+      }
+      BlockLocation[] bls = fs.getFileBlockLocations(f, 0, f.getLen());
+      for (BlockLocation bl : bls) {
+        long l = bl.getLength();
+        for (String name : namesOf(bl, level)) {
+          if (bytesHeld.containsKey(name))
+            bytesHeld.put(name, bytesHeld.get(name) + l);
+          else
+            bytesHeld.put(name, l);
         }
       }
     }
@@ -61,6 +96,81 @@ public class HDFSFileFinder extends Configured implements Tool {
     return bytesHeld;
   }
 
+  /**
+   * Lists the files under the given paths (or globs), in order, looking one level into
+   * directories and skipping hidden files such as _SUCCESS.
+   */
+  public static List<FileStatus> listFiles(List<String> paths, Configuration conf) throws IOException {
+    List<FileStatus> files = Lists.newArrayList();
+    for (String p : paths) {
+      Path path = new Path(p);
+      FileSystem fs = path.getFileSystem(conf);
+      FileStatus[] matches = fs.globStatus(path);
+      if (matches == null) {
+        continue;
+      }
+      for (FileStatus match : matches) {
+        if (match.isDirectory()) {
+          for (FileStatus child : fs.listStatus(match.getPath())) {
+            if (!child.isDirectory() && !isHidden(child.getPath())) {
+              files.add(child);
+            }
+          }
+        } else {
+          files.add(match);
+        }
+      }
+    }
+    return files;
+  }
+
+  /**
+   * Returns the host that holds the most bytes of the given file, or null if its blocks
+   * have no locations (e.g., it is empty).
+   */
+  public static String getPrimaryHost(FileStatus f, Configuration conf) throws IOException {
+    FileSystem fs = f.getPath().getFileSystem(conf);
+    Map<String, Long> bytesHeld = Maps.newHashMap();
+    for (BlockLocation bl : fs.getFileBlockLocations(f, 0, f.getLen())) {
+      for (String host : namesOf(bl, HOSTS)) {
+        Long held = bytesHeld.get(host);
+        bytesHeld.put(host, (held == null ? 0L : held) + bl.getLength());
+      }
+    }
+    String primary = null;
+    long most = -1L;
+    for (Map.Entry<String, Long> e : bytesHeld.entrySet()) {
+      if (e.getValue() > most) {
+        primary = e.getKey();
+        most = e.getValue();
+      }
+    }
+    return primary;
+  }
+
+  private static boolean isHidden(Path p) {
+    return p.getName().startsWith("_") || p.getName().startsWith(".");
+  }
+
+  private static Set<String> namesOf(BlockLocation bl, int level) throws IOException {
+    Set<String> names = Sets.newHashSet();
+    switch (level) {
+    case HOSTS:
+      names.addAll(Arrays.asList(bl.getHosts()));
+      break;
+    case RACKS:
+      // Topology paths are of the form /rack/datanode.
+      for (String path : bl.getTopologyPaths()) {
+        int i = path.lastIndexOf('/');
+        names.add(i > 0 ? path.substring(0, i) : NetworkTopology.DEFAULT_RACK);
+      }
+      break;
+    default:
+      names.addAll(Arrays.asList(bl.getNames()));
+    }
+    return names;
+  }
+
   @Override
   public int run(String[] args) throws Exception {
     Configuration conf = getConf();
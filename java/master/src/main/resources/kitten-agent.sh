@@ -0,0 +1,49 @@
+#!/bin/bash
+#
+# Runs the operator tasks that the Kitten application master hands to this
+# container, one after another, until the master releases the container or
+# can no longer be reached.
+#
+# Usage: kitten-agent.sh <master url> <container id>
+#
+# Every request carries the secret that the master put in the environment of
+# this container as KITTEN_CONTROL_TOKEN.
+
+URL="$1"
+AGENT="$2"
+AUTH="X-Kitten-Token: $KITTEN_CONTROL_TOKEN"
+MAX_FAILURES=10
+
+failures=0
+while true; do
+  code=$(curl -s -H "$AUTH" -o task.sh -w '%{http_code}' "$URL/task?agent=$AGENT")
+  case "$code" in
+    200)
+      failures=0
+      chmod u+x task.sh
+      ./task.sh
+      status=$?
+      until curl -s -f -H "$AUTH" -X POST "$URL/done?agent=$AGENT&status=$status" > /dev/null; do
+        failures=$((failures + 1))
+        if [ $failures -ge $MAX_FAILURES ]; then
+          exit 1
+        fi
+        sleep 1
+      done
+      failures=0
+      ;;
+    204)
+      # no work yet, ask again
+      ;;
+    410)
+      exit 0
+      ;;
+    *)
+      failures=$((failures + 1))
+      if [ $failures -ge $MAX_FAILURES ]; then
+        exit 1
+      fi
+      sleep 1
+      ;;
+  esac
+done
@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.params.lua;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.records.Resource;
+import org.apache.hadoop.yarn.util.Records;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+public class OperatorFusionTest {
+
+  Configuration conf;
+  Map<String, Resource> fusable;
+  Map<String, Set<String>> upstream;
+
+  @Before
+  public void setUp() {
+    conf = new Configuration(false);
+    fusable = Maps.newHashMap();
+    upstream = Maps.newHashMap();
+  }
+
+  private void operator(String name, int memory, int cores, String... inputs) {
+    Resource r = Records.newRecord(Resource.class);
+    r.setMemory(memory);
+    r.setVirtualCores(cores);
+    fusable.put(name, r);
+    upstream.put(name, ImmutableSet.copyOf(inputs));
+  }
+
+  private List<List<String>> chains() {
+    return new OperatorFusion(null, conf).chains(fusable, upstream);
+  }
+
+  @Test
+  public void testLinearChain() {
+    operator("a", 1024, 1);
+    operator("b", 1024, 1, "a");
+    operator("c", 1024, 1, "b");
+    assertEquals(ImmutableList.of(ImmutableList.of("a", "b", "c")), chains());
+  }
+
+  @Test
+  public void testFanOut() {
+    operator("a", 1024, 1);
+    operator("b", 1024, 1, "a");
+    operator("c", 1024, 1, "a");
+    assertTrue(chains().isEmpty());
+  }
+
+  @Test
+  public void testFanIn() {
+    operator("a", 1024, 1);
+    operator("b", 1024, 1);
+    operator("c", 1024, 1, "a", "b");
+    assertTrue(chains().isEmpty());
+  }
+
+  @Test
+  public void testFanInAfterChain() {
+    operator("a", 1024, 1);
+    operator("b", 1024, 1, "a");
+    operator("x", 1024, 1);
+    operator("c", 1024, 1, "b", "x");
+    assertEquals(ImmutableList.of(ImmutableList.of("a", "b")), chains());
+  }
+
+  @Test
+  public void testMismatchedCores() {
+    operator("a", 1024, 1);
+    operator("b", 1024, 2, "a");
+    operator("c", 1024, 2, "b");
+    assertEquals(ImmutableList.of(ImmutableList.of("b", "c")), chains());
+  }
+
+  @Test
+  public void testMemoryRatio() {
+    operator("a", 1024, 1);
+    operator("b", 2048, 1, "a");
+    operator("c", 4097, 1, "b");
+    // c asks for more than twice the memory of b
+    assertEquals(ImmutableList.of(ImmutableList.of("a", "b")), chains());
+  }
+
+  @Test
+  public void testMemoryRatioConfigured() {
+    conf.setFloat(OperatorFusion.MEMORY_RATIO, 4.0f);
+    operator("a", 1024, 1);
+    operator("b", 4096, 1, "a");
+    assertEquals(ImmutableList.of(ImmutableList.of("a", "b")), chains());
+  }
+
+  @Test
+  public void testUpstreamNotFusable() {
+    operator("b", 1024, 1, "a");
+    operator("c", 1024, 1, "b");
+    // a reads from a dataset or is not a script operator
+    upstream.put("a", ImmutableSet.<String>of());
+    assertEquals(ImmutableList.of(ImmutableList.of("b", "c")), chains());
+  }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.reporter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import gr.ntua.cslab.asap.rest.beans.WorkflowDictionary;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+public class WorkflowReporterTest {
+
+  File dir;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = Files.createTempDir();
+    dir.deleteOnExit();
+  }
+
+  /**
+   * Encodes the number of reports encoded so far, without looking at the workflow.
+   */
+  static class CountingEncoder implements StatusEncoder {
+    final AtomicInteger encoded = new AtomicInteger();
+
+    @Override
+    public byte[] encode(String workflowId, WorkflowDictionary workflow) {
+      return ("report " + encoded.incrementAndGet()).getBytes(Charsets.UTF_8);
+    }
+
+    @Override
+    public void delivered(boolean success) {
+    }
+
+    @Override
+    public String getContentType() {
+      return "text/plain";
+    }
+  }
+
+  /**
+   * Rejects the first report, and records when each report was sent.
+   */
+  static class FlakySink implements StatusSink {
+    final List<Long> attempts = Lists.newArrayList();
+
+    @Override
+    public synchronized void send(String workflowId, byte[] payload, String contentType)
+        throws IOException {
+      attempts.add(System.currentTimeMillis());
+      if (attempts.size() == 1) {
+        throw new IOException("unavailable");
+      }
+    }
+
+    @Override
+    public void close() {
+    }
+
+    synchronized int count() {
+      return attempts.size();
+    }
+  }
+
+  @Test
+  public void testFileSink() throws Exception {
+    CountingEncoder encoder = new CountingEncoder();
+    WorkflowReporter reporter = new WorkflowReporter("wf", null, encoder,
+        new FileStatusSink(dir), 0, 10L, 10L, 60000L);
+    reporter.start();
+    reporter.update();
+    reporter.close(5000L);
+
+    // close() always sends one last report of the current state
+    assertEquals("report " + encoder.encoded.get(),
+        Files.toString(new File(dir, "wf"), Charsets.UTF_8));
+    assertEquals(1, dir.list().length);
+  }
+
+  @Test
+  public void testUpdatesDoNotCutBackoffShort() throws Exception {
+    FlakySink sink = new FlakySink();
+    WorkflowReporter reporter = new WorkflowReporter("wf", null, new CountingEncoder(),
+        sink, 3, 500L, 500L, 60000L);
+    reporter.start();
+    reporter.update();
+    long deadline = System.currentTimeMillis() + 5000L;
+    while (sink.count() < 2 && System.currentTimeMillis() < deadline) {
+      reporter.update();
+      Thread.sleep(10L);
+    }
+    reporter.close(5000L);
+
+    assertTrue(sink.count() >= 2);
+    synchronized (sink) {
+      assertTrue(sink.attempts.get(1) - sink.attempts.get(0) >= 500L);
+    }
+  }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.service;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.apache.hadoop.yarn.api.records.Container;
+import org.apache.hadoop.yarn.api.records.Priority;
+import org.apache.hadoop.yarn.api.records.Resource;
+import org.apache.hadoop.yarn.util.Records;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AllocationIndexTest {
+
+  AllocationIndex index;
+
+  @Before
+  public void setUp() {
+    index = new AllocationIndex();
+  }
+
+  private static Priority priority(int p) {
+    Priority priority = Records.newRecord(Priority.class);
+    priority.setPriority(p);
+    return priority;
+  }
+
+  private static Resource resource(int memory, int cores) {
+    Resource r = Records.newRecord(Resource.class);
+    r.setMemory(memory);
+    r.setVirtualCores(cores);
+    return r;
+  }
+
+  private static Container container(int p, int memory, int cores) {
+    Container c = Records.newRecord(Container.class);
+    c.setPriority(priority(p));
+    c.setResource(resource(memory, cores));
+    return c;
+  }
+
+  private ContainerTracker tracker(int p, int memory, int cores, int needed) {
+    ContainerTracker t = new ContainerTracker(priority(p), resource(memory, cores), needed);
+    index.register(t);
+    return t;
+  }
+
+  @Test
+  public void testExactProfile() {
+    tracker(1, 1024, 1, 1);
+    ContainerTracker exact = tracker(1, 2048, 1, 1);
+    assertSame(exact, index.match(container(1, 2048, 1)));
+  }
+
+  @Test
+  public void testBestFitAtSamePriority() {
+    tracker(1, 512, 1, 1);
+    ContainerTracker closest = tracker(1, 1536, 1, 1);
+    tracker(1, 4096, 1, 1);
+    // rounded up by the scheduler
+    assertSame(closest, index.match(container(1, 2048, 1)));
+  }
+
+  @Test
+  public void testSkipsTrackersThatAreSatisfied() {
+    tracker(1, 2048, 1, 0);
+    ContainerTracker waiting = tracker(1, 1024, 1, 1);
+    assertSame(waiting, index.match(container(1, 2048, 1)));
+  }
+
+  @Test
+  public void testNoMatchAtOtherPriority() {
+    tracker(2, 1024, 1, 1);
+    assertNull(index.match(container(1, 2048, 1)));
+  }
+
+  @Test
+  public void testNoMatchWhenTooSmall() {
+    tracker(1, 4096, 1, 1);
+    tracker(1, 1024, 4, 1);
+    assertNull(index.match(container(1, 2048, 2)));
+  }
+
+  @Test
+  public void testUnregister() {
+    ContainerTracker t = tracker(1, 1024, 1, 1);
+    index.unregister(t);
+    assertNull(index.match(container(1, 1024, 1)));
+  }
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.client.api.async.AMRMClientAsync;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HeartbeatControllerTest {
+
+  Configuration conf;
+
+  @Before
+  public void setUp() {
+    conf = new Configuration(false);
+  }
+
+  private HeartbeatController controller() {
+    // Never started, so setting the interval does not talk to a ResourceManager.
+    AMRMClientAsync<?> client = AMRMClientAsync.createAMRMClientAsync(
+        HeartbeatController.getMinInterval(conf), null);
+    return new HeartbeatController(client, conf);
+  }
+
+  /**
+   * Runs a stage that makes no asks for as many heartbeats as it takes to back off
+   * fully, then makes the asks of the next stage, and returns how long they can wait
+   * before they are sent: the heartbeat that is already sleeping keeps its interval.
+   */
+  private static long stageBoundaryLatency(HeartbeatController heartbeat) {
+    for (int i = 0; i < 100; i++) {
+      heartbeat.tick(false);
+    }
+    long sleeping = heartbeat.getInterval();
+    heartbeat.activity();
+    return sleeping;
+  }
+
+  @Test
+  public void testStageBoundaryLatencyWithinFixedInterval() {
+    HeartbeatController heartbeat = controller();
+    long latency = stageBoundaryLatency(heartbeat);
+    assertTrue("asks waited " + latency + " ms",
+        latency <= HeartbeatController.DEFAULT_MAX_INTERVAL);
+    // and the heartbeats after that carry the asks without delay
+    assertEquals(100, heartbeat.getInterval());
+    heartbeat.tick(true);
+    assertEquals(100, heartbeat.getInterval());
+  }
+
+  @Test
+  public void testStageBoundaryLatencyFollowsMaximum() {
+    conf.setInt(HeartbeatController.MAX_INTERVAL, 400);
+    assertEquals(400, stageBoundaryLatency(controller()));
+  }
+
+  @Test
+  public void testBacksOffWithoutAsks() {
+    conf.setInt(HeartbeatController.MIN_INTERVAL, 50);
+    HeartbeatController heartbeat = controller();
+    heartbeat.tick(false);
+    assertEquals(100, heartbeat.getInterval());
+    heartbeat.tick(false);
+    assertEquals(200, heartbeat.getInterval());
+    heartbeat.tick(true);
+    assertEquals(50, heartbeat.getInterval());
+  }
+
+  @Test
+  public void testActivityCountsForNextHeartbeat() {
+    HeartbeatController heartbeat = controller();
+    heartbeat.tick(false);
+    heartbeat.activity();
+    heartbeat.tick(false);
+    assertEquals(100, heartbeat.getInterval());
+    heartbeat.tick(false);
+    assertEquals(200, heartbeat.getInterval());
+  }
+
+  @Test
+  public void testMaximumNotBelowMinimum() {
+    conf.setInt(HeartbeatController.MIN_INTERVAL, 2000);
+    conf.setInt(HeartbeatController.MAX_INTERVAL, 500);
+    HeartbeatController heartbeat = controller();
+    heartbeat.tick(false);
+    assertEquals(2000, heartbeat.getInterval());
+  }
+}
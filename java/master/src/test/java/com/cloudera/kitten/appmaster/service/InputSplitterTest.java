@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.Path;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+public class InputSplitterTest {
+
+  private static List<FileStatus> files(long... sizes) {
+    List<FileStatus> files = Lists.newArrayList();
+    for (int i = 0; i < sizes.length; i++) {
+      files.add(new FileStatus(sizes[i], false, 1, 128L, 0L, new Path("/in/f" + i)));
+    }
+    return files;
+  }
+
+  private static long total(List<FileStatus> files) {
+    long total = 0;
+    for (FileStatus f : files) {
+      total += f.getLen();
+    }
+    return total;
+  }
+
+  @Test
+  public void testInstances() {
+    assertEquals(3, InputSplitter.instances(300L, 10, 100L, -1, -1));
+    assertEquals(4, InputSplitter.instances(301L, 10, 100L, -1, -1));
+    assertEquals(2, InputSplitter.instances(1000L, 10, 100L, -1, 2));
+    assertEquals(5, InputSplitter.instances(100L, 10, 100L, 5, -1));
+  }
+
+  @Test
+  public void testInstancesWithoutFiles() {
+    assertEquals(1, InputSplitter.instances(0L, 0, 100L, -1, -1));
+    assertEquals(1, InputSplitter.instances(0L, 0, 100L, 4, -1));
+  }
+
+  @Test
+  public void testInstancesCappedToFiles() {
+    // Files are not split, even when more instances are wanted.
+    assertEquals(2, InputSplitter.instances(1000L, 2, 100L, -1, -1));
+    assertEquals(3, InputSplitter.instances(10L, 3, 100L, 8, -1));
+  }
+
+  @Test
+  public void testCutEvenly() {
+    List<FileStatus> files = files(10, 10, 10, 10);
+    List<List<String>> splits = InputSplitter.cut(files, total(files), 2);
+    assertEquals(ImmutableList.of(
+        ImmutableList.of("/in/f0", "/in/f1"),
+        ImmutableList.of("/in/f2", "/in/f3")), splits);
+  }
+
+  @Test
+  public void testCutBySize() {
+    List<FileStatus> files = files(30, 5, 5, 5, 5);
+    List<List<String>> splits = InputSplitter.cut(files, total(files), 2);
+    assertEquals(ImmutableList.of(
+        ImmutableList.of("/in/f0"),
+        ImmutableList.of("/in/f1", "/in/f2", "/in/f3", "/in/f4")), splits);
+  }
+
+  @Test
+  public void testCutLeavesNoInstanceEmpty() {
+    // The first file passes every boundary, but each instance still gets a file.
+    List<FileStatus> files = files(100, 1, 1);
+    List<List<String>> splits = InputSplitter.cut(files, total(files), 3);
+    assertEquals(ImmutableList.of(
+        ImmutableList.of("/in/f0"),
+        ImmutableList.of("/in/f1"),
+        ImmutableList.of("/in/f2")), splits);
+  }
+
+  @Test
+  public void testCutFewerFilesThanInstances() {
+    List<FileStatus> files = files(10, 10);
+    List<List<String>> splits = InputSplitter.cut(files, total(files), 5);
+    assertEquals(2, splits.size());
+  }
+
+  @Test
+  public void testCutWithoutFiles() {
+    List<List<String>> splits = InputSplitter.cut(files(), 0L, 1);
+    assertEquals(1, splits.size());
+    assertEquals(0, splits.get(0).size());
+  }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.yarn.api.records.ContainerExitStatus;
+import org.apache.hadoop.yarn.api.records.NodeId;
+import org.apache.hadoop.yarn.api.records.NodeReport;
+import org.apache.hadoop.yarn.api.records.NodeState;
+import org.apache.hadoop.yarn.util.Records;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+public class NodeBlacklistTest {
+
+  Configuration conf;
+  int clusterNodes;
+  List<String> blacklisted;
+
+  @Before
+  public void setUp() {
+    conf = new Configuration(false);
+    clusterNodes = 10;
+    blacklisted = Lists.newArrayList();
+  }
+
+  private NodeBlacklist blacklist() {
+    return new NodeBlacklist(null, conf) {
+      @Override
+      int getClusterNodeCount() {
+        return clusterNodes;
+      }
+
+      @Override
+      void blacklist(String host) {
+        blacklisted.add(host);
+      }
+    };
+  }
+
+  private static NodeId node(String host) {
+    return NodeId.newInstance(host, 8041);
+  }
+
+  private static List<NodeReport> report(String host, NodeState state) {
+    NodeReport report = Records.newRecord(NodeReport.class);
+    report.setNodeId(node(host));
+    report.setNodeState(state);
+    return Collections.singletonList(report);
+  }
+
+  private static void fail(NodeBlacklist b, String host, int exitStatus, int times) {
+    for (int i = 0; i < times; i++) {
+      b.failed(node(host), exitStatus);
+    }
+  }
+
+  @Test
+  public void testThreshold() {
+    NodeBlacklist b = blacklist();
+    fail(b, "a", ContainerExitStatus.DISKS_FAILED, 2);
+    assertEquals(0, blacklisted.size());
+    fail(b, "a", ContainerExitStatus.DISKS_FAILED, 1);
+    assertEquals(ImmutableList.of("a"), blacklisted);
+    // only asked for once
+    fail(b, "a", ContainerExitStatus.DISKS_FAILED, 3);
+    assertEquals(ImmutableList.of("a"), blacklisted);
+  }
+
+  @Test
+  public void testThresholdPerNode() {
+    NodeBlacklist b = blacklist();
+    fail(b, "a", ContainerExitStatus.DISKS_FAILED, 2);
+    fail(b, "b", ContainerExitStatus.DISKS_FAILED, 2);
+    assertEquals(0, blacklisted.size());
+  }
+
+  @Test
+  public void testDisabled() {
+    conf.setInt(NodeBlacklist.FAILURES, 0);
+    NodeBlacklist b = blacklist();
+    fail(b, "a", ContainerExitStatus.DISKS_FAILED, 10);
+    assertEquals(0, blacklisted.size());
+  }
+
+  @Test
+  public void testOperatorFailuresDoNotCount() {
+    NodeBlacklist b = blacklist();
+    fail(b, "a", 1, 5);
+    fail(b, "a", ContainerExitStatus.PREEMPTED, 5);
+    // aborted by the master itself, on a healthy node
+    fail(b, "a", ContainerExitStatus.ABORTED, 5);
+    assertEquals(0, blacklisted.size());
+  }
+
+  @Test
+  public void testAbortedOnUnusableNode() {
+    NodeBlacklist b = blacklist();
+    b.nodesUpdated(report("a", NodeState.UNHEALTHY));
+    fail(b, "a", ContainerExitStatus.ABORTED, 3);
+    assertEquals(ImmutableList.of("a"), blacklisted);
+  }
+
+  @Test
+  public void testAbortedAfterNodeRecovered() {
+    NodeBlacklist b = blacklist();
+    b.nodesUpdated(report("a", NodeState.LOST));
+    b.nodesUpdated(report("a", NodeState.RUNNING));
+    fail(b, "a", ContainerExitStatus.ABORTED, 3);
+    assertEquals(0, blacklisted.size());
+  }
+
+  @Test
+  public void testMaxFraction() {
+    conf.setFloat(NodeBlacklist.MAX_FRACTION, 0.2f);
+    NodeBlacklist b = blacklist();
+    fail(b, "a", ContainerExitStatus.DISKS_FAILED, 3);
+    fail(b, "b", ContainerExitStatus.DISKS_FAILED, 3);
+    fail(b, "c", ContainerExitStatus.DISKS_FAILED, 3);
+    // at most 2 of the 10 nodes
+    assertEquals(ImmutableList.of("a", "b"), blacklisted);
+  }
+
+  @Test
+  public void testMaxFractionOfSmallCluster() {
+    clusterNodes = 2;
+    NodeBlacklist b = blacklist();
+    fail(b, "a", ContainerExitStatus.DISKS_FAILED, 3);
+    // a third of two nodes is less than one
+    assertEquals(0, blacklisted.size());
+  }
+
+  @Test
+  public void testUnknownNode() {
+    NodeBlacklist b = blacklist();
+    b.failed(null, ContainerExitStatus.DISKS_FAILED);
+    assertEquals(0, blacklisted.size());
+  }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.hadoop.yarn.api.records.ContainerExitStatus;
+import org.junit.Test;
+
+public class RetryPolicyTest {
+
+  @Test
+  public void testDelayDoubles() {
+    RetryPolicy policy = new RetryPolicy(5, 1000L, 60000L);
+    assertEquals(1000L, policy.getDelay(0));
+    assertEquals(2000L, policy.getDelay(1));
+    assertEquals(4000L, policy.getDelay(2));
+    assertEquals(8000L, policy.getDelay(3));
+  }
+
+  @Test
+  public void testDelayCapped() {
+    RetryPolicy policy = new RetryPolicy(100, 1000L, 5000L);
+    assertEquals(4000L, policy.getDelay(2));
+    assertEquals(5000L, policy.getDelay(3));
+    // does not overflow however many retries there were
+    assertEquals(5000L, policy.getDelay(100));
+    assertEquals(5000L, policy.getDelay(Integer.MAX_VALUE));
+  }
+
+  @Test
+  public void testDelayCappedFromStart() {
+    assertEquals(500L, new RetryPolicy(3, 1000L, 500L).getDelay(0));
+  }
+
+  @Test
+  public void testShouldRetry() {
+    RetryPolicy policy = new RetryPolicy(3, 1000L, 60000L);
+    assertTrue(policy.shouldRetry(0));
+    assertTrue(policy.shouldRetry(2));
+    assertFalse(policy.shouldRetry(3));
+    assertFalse(policy.shouldRetry(4));
+  }
+
+  @Test
+  public void testNoRetries() {
+    assertFalse(new RetryPolicy(0, 1000L, 60000L).shouldRetry(0));
+  }
+
+  @Test
+  public void testRetryable() {
+    assertTrue(RetryPolicy.isRetryable(ContainerExitStatus.PREEMPTED));
+    assertTrue(RetryPolicy.isRetryable(ContainerExitStatus.ABORTED));
+    assertTrue(RetryPolicy.isRetryable(ContainerExitStatus.DISKS_FAILED));
+    assertFalse(RetryPolicy.isRetryable(ContainerExitStatus.SUCCESS));
+    assertFalse(RetryPolicy.isRetryable(1));
+  }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright (c) 2012, Cloudera, Inc. All Rights Reserved.
+ *
+ * Cloudera, Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"). You may not use this file except in
+ * compliance with the License. You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * This software is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR
+ * CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package com.cloudera.kitten.appmaster.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.apache.hadoop.yarn.api.records.ApplicationAttemptId;
+import org.apache.hadoop.yarn.api.records.ApplicationId;
+import org.apache.hadoop.yarn.api.records.ContainerId;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class WorkQueueTest {
+
+  private static ContainerId container(int id) {
+    return ContainerId.newInstance(
+        ApplicationAttemptId.newInstance(ApplicationId.newInstance(1L, 1), 1), id);
+  }
+
+  private static WorkQueue queue(int files, int maxAttempts) {
+    ImmutableList.Builder<String> splits = ImmutableList.builder();
+    for (int i = 0; i < files; i++) {
+      splits.add("/in/f" + i);
+    }
+    return new WorkQueue("op", splits.build(), maxAttempts);
+  }
+
+  @Test
+  public void testInOrder() {
+    WorkQueue q = queue(3, 4);
+    ContainerId w = container(1);
+    assertEquals(Integer.valueOf(0), q.next(w));
+    assertEquals(Integer.valueOf(1), q.next(w));
+    assertEquals(Integer.valueOf(2), q.next(w));
+    assertFalse(q.isDone());
+    assertNull(q.next(w));
+    assertTrue(q.isDone());
+  }
+
+  @Test
+  public void testExitFinishesLastFile() {
+    WorkQueue q = queue(1, 4);
+    ContainerId w = container(1);
+    q.next(w);
+    q.finished(w, true);
+    assertTrue(q.isDone());
+  }
+
+  @Test
+  public void testRequeueToFront() {
+    WorkQueue q = queue(3, 4);
+    ContainerId a = container(1);
+    ContainerId b = container(2);
+    assertEquals(Integer.valueOf(0), q.next(a));
+    assertEquals(Integer.valueOf(1), q.next(b));
+    q.finished(a, false);
+    assertEquals(2, q.remaining());
+    // the failed file is handed out before the ones that were never tried
+    assertEquals(Integer.valueOf(0), q.next(b));
+    assertEquals(Integer.valueOf(2), q.next(b));
+  }
+
+  @Test
+  public void testMaxAttempts() {
+    WorkQueue q = queue(2, 2);
+    ContainerId w = container(1);
+    assertEquals(Integer.valueOf(0), q.next(w));
+    q.finished(w, false);
+    assertEquals(Integer.valueOf(0), q.next(w));
+    q.finished(w, false);
+    // given up on after two attempts
+    assertEquals(Integer.valueOf(1), q.next(w));
+    assertFalse(q.isDone());
+    q.finished(w, true);
+    assertTrue(q.isDone());
+  }
+
+  @Test
+  public void testFinishedTwice() {
+    WorkQueue q = queue(2, 4);
+    ContainerId w = container(1);
+    q.next(w);
+    q.finished(w, false);
+    q.finished(w, false);
+    assertEquals(2, q.remaining());
+  }
+
+  @Test
+  public void testAbandon() {
+    WorkQueue q = queue(4, 4);
+    ContainerId w = container(1);
+    q.next(w);
+    assertEquals(3, q.abandon());
+    assertEquals(0, q.remaining());
+    assertFalse(q.isDone());
+    assertNull(q.next(w));
+    assertTrue(q.isDone());
+  }
+
+  @Test
+  public void testAbandonAfterFailures() {
+    WorkQueue q = queue(2, 1);
+    ContainerId w = container(1);
+    q.next(w);
+    q.finished(w, false);
+    assertEquals(1, q.abandon());
+    assertTrue(q.isDone());
+  }
+}